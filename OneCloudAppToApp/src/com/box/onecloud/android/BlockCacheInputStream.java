@@ -0,0 +1,93 @@
+package com.box.onecloud.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream over the Box file data that reads through a OneCloudBlockCache with positional reads, so blocks that are already cached never cross the
+ * binder. Box's own input stream position is left untouched. Used by OneCloudData.getInputStream() when a block cache is attached, and by
+ * OneCloudData.openReadSession() when Box does not keep session cursors, in which case the cache key may be null to read from Box directly.
+ * 
+ */
+final class BlockCacheInputStream extends InputStream {
+
+    /** Transaction being read. */
+    private final OneCloudData mOneCloudData;
+
+    /** Cache key of the version being read, or null to read from Box directly. */
+    private final String mCacheKey;
+
+    /** Position of the next byte. */
+    private long mPosition;
+
+    /** Position of the mark. */
+    private long mMark;
+
+    /**
+     * Default constructor.
+     * 
+     * @param oneCloudData
+     *            Transaction to read.
+     * @param cacheKey
+     *            Cache key of the version to read, or null to read from Box directly.
+     */
+    BlockCacheInputStream(final OneCloudData oneCloudData, final String cacheKey) {
+        mOneCloudData = oneCloudData;
+        mCacheKey = cacheKey;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] data = mOneCloudData.readAt(mCacheKey, mPosition, 1);
+        if (data == null) {
+            return -1;
+        }
+        mPosition++;
+        return data[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        byte[] data = mOneCloudData.readAt(mCacheKey, mPosition, Math.min(length, OneCloudData.MAX_CHUNK_SIZE));
+        if (data == null) {
+            return -1;
+        }
+        System.arraycopy(data, 0, buffer, offset, data.length);
+        mPosition += data.length;
+        return data.length;
+    }
+
+    /**
+     * Skip bytes without reading them. Skipping past the end of the file data is allowed; later reads return -1.
+     * 
+     * @param byteCount
+     *            Number of bytes to skip.
+     * @return Number of bytes skipped.
+     */
+    @Override
+    public long skip(final long byteCount) {
+        if (byteCount <= 0) {
+            return 0;
+        }
+        mPosition += byteCount;
+        return byteCount;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(final int readLimit) {
+        mMark = mPosition;
+    }
+
+    @Override
+    public void reset() {
+        mPosition = mMark;
+    }
+}
@@ -0,0 +1,181 @@
+package com.box.onecloud.android;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.net.Uri;
+import android.os.IBinder;
+import android.os.Process;
+
+/**
+ * Process-wide cache of what has been verified about the installed Box app: its version code, its UID, and which Box binders have already completed a
+ * handshake. This lets later transactions with the same Box install skip PackageManager lookups and handshake round trips. Everything is forgotten when the Box
+ * package is installed, replaced or removed.
+ * 
+ */
+final class BoxIdentityCache {
+
+    /** Version code value meaning the Box app is not installed. */
+    private static final int NOT_INSTALLED = -1;
+
+    /** Whether the Box package state below has been looked up. */
+    private static boolean sLoaded;
+
+    /** Version code of the installed Box app, or NOT_INSTALLED. */
+    private static int sVersionCode = NOT_INSTALLED;
+
+    /** UID of the installed Box app, if it does not share its UID with other packages. -1 otherwise. */
+    private static int sBoxUid = -1;
+
+    /** Box binders that have completed a handshake, mapped to the Box version code they were verified against. */
+    private static final Map<IBinder, Integer> sVerifiedBinders = new WeakHashMap<IBinder, Integer>();
+
+    /** Whether the package change receiver has been registered. */
+    private static boolean sReceiverRegistered;
+
+    /**
+     * Not instantiable.
+     */
+    private BoxIdentityCache() {
+    }
+
+    /**
+     * Get the version code of the installed Box app, or of the installed LocalBoxService.
+     * 
+     * @param context
+     *            Context.
+     * @return Version code, or -1 if the Box app is not installed.
+     */
+    static synchronized int getBoxVersionCode(final Context context) {
+        LocalBoxService local = LocalBoxService.getInstalled();
+        if (local != null) {
+            return local.getVersionCode();
+        }
+        load(context);
+        return sVersionCode;
+    }
+
+    /**
+     * Check whether a UID belongs to the installed Box app, or to the installed LocalBoxService.
+     * 
+     * @param context
+     *            Context.
+     * @param uid
+     *            UID, typically Binder.getCallingUid().
+     * @return True if the UID is Box's.
+     */
+    static synchronized boolean isBoxUid(final Context context, final int uid) {
+        if (LocalBoxService.getInstalled() != null) {
+            // The stand-in runs in this process.
+            return uid == Process.myUid();
+        }
+        load(context);
+        return sBoxUid != -1 && sBoxUid == uid;
+    }
+
+    /**
+     * Check whether a Box binder has already completed a handshake against the installed Box app.
+     * 
+     * @param binder
+     *            Binder.
+     * @param versionCode
+     *            Version code of the installed Box app.
+     * @return True if the binder is known to belong to Box.
+     */
+    static synchronized boolean isVerified(final IBinder binder, final int versionCode) {
+        Integer verifiedVersionCode = sVerifiedBinders.get(binder);
+        return verifiedVersionCode != null && verifiedVersionCode == versionCode && versionCode == sVersionCode;
+    }
+
+    /**
+     * Remember that a Box binder has completed a handshake.
+     * 
+     * @param binder
+     *            Binder.
+     * @param versionCode
+     *            Version code of the Box app it was verified against.
+     */
+    static synchronized void markVerified(final IBinder binder, final int versionCode) {
+        if (versionCode == sVersionCode) {
+            sVerifiedBinders.put(binder, versionCode);
+        }
+    }
+
+    /**
+     * Forget everything known about the Box app.
+     */
+    static synchronized void invalidate() {
+        sLoaded = false;
+        sVersionCode = NOT_INSTALLED;
+        sBoxUid = -1;
+        sVerifiedBinders.clear();
+    }
+
+    /**
+     * Look up the Box package if it has not been looked up since the last invalidation.
+     * 
+     * @param context
+     *            Context.
+     */
+    private static void load(final Context context) {
+        boolean listening = registerReceiver(context);
+        if (sLoaded) {
+            return;
+        }
+        // Without a package change receiver the lookup cannot be trusted to stay current, so it is only kept if we are listening.
+        sLoaded = listening;
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(BoxOneCloudReceiver.BOX_PACKAGE_NAME, 0);
+            sVersionCode = info.versionCode;
+            int uid = info.applicationInfo.uid;
+            String[] packages = context.getPackageManager().getPackagesForUid(uid);
+            sBoxUid = packages != null && packages.length == 1 && packages[0].equals(BoxOneCloudReceiver.BOX_PACKAGE_NAME) ? uid : -1;
+        }
+        catch (NameNotFoundException e) {
+            sVersionCode = NOT_INSTALLED;
+            sBoxUid = -1;
+        }
+    }
+
+    /**
+     * Listen for changes to the Box package so that the cache never outlives the install it describes.
+     * 
+     * @param context
+     *            Context.
+     * @return True if the receiver is registered.
+     */
+    private static boolean registerReceiver(final Context context) {
+        if (sReceiverRegistered) {
+            return true;
+        }
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        try {
+            context.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+
+                @Override
+                public void onReceive(final Context receiverContext, final Intent intent) {
+                    Uri data = intent.getData();
+                    if (data != null && BoxOneCloudReceiver.BOX_PACKAGE_NAME.equals(data.getSchemeSpecificPart())) {
+                        invalidate();
+                    }
+                }
+            }, filter);
+            sReceiverRegistered = true;
+        }
+        catch (RuntimeException e) {
+            // Cannot listen from this context.
+        }
+        return sReceiverRegistered;
+    }
+}
@@ -1,13 +1,29 @@
 package com.box.onecloud.android;
 
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
 
 /**
  * Abstract BroadcastReceiver for handling braodcasts sent by the Box app and other OneCloud partners. Also provides methods for communicating back to Box.
  * 
+ * Broadcasts are handled on the main thread by default. Override isAsyncDispatchEnabled() to return true and, on Android 3.0 and later, broadcasts are kept
+ * alive with goAsync() and handled on a small pool of background threads shared by all receivers, so the handshake with Box and the on*Requested hooks never
+ * run on the main thread, and a burst of broadcasts is handled concurrently. The two-argument hooks then run on those background threads too, so only opt in
+ * once they are safe to call off the main thread. Each hook is given a Completion to finish() once it is done with the broadcast; the default
+ * implementations call the two-argument hooks and finish straight away. Android still expects a broadcast to be finished within about ten seconds, so hand
+ * longer work to an activity or service. If more broadcasts arrive than the pool can queue, the extra ones are handled on the main thread.
+ * 
  */
 public abstract class BoxOneCloudReceiver extends BroadcastReceiver {
 
@@ -29,6 +45,9 @@ public abstract class BoxOneCloudReceiver extends BroadcastReceiver {
     /** Intent action for restoring a OneCloudData object. */
     public static final String ACTION_BOX_RESTORE_ONE_CLOUD_DATA = "com.box.android.RESTORE_ONE_CLOUD_DATA";
 
+    /** Intent action for restoring several OneCloudData objects at once. */
+    public static final String ACTION_BOX_RESTORE_ONE_CLOUD_DATA_BATCH = "com.box.android.RESTORE_ONE_CLOUD_DATA_BATCH";
+
     /** Intent action for creating a sibling OneCloudData. */
     public static final String ACTION_BOX_CREATE_SIBLING_ONE_CLOUD_DATA = "com.box.android.CREATE_SIBLING_ONE_CLOUD_DATA";
 
@@ -38,6 +57,9 @@ public abstract class BoxOneCloudReceiver extends BroadcastReceiver {
     /** Extras key for a OneCloudData token. */
     public static final String EXTRA_ONE_CLOUD_TOKEN = "com.box.android.ONE_CLOUD_TOKEN";
 
+    /** Extras key for an array of OneCloudData tokens. */
+    public static final String EXTRA_ONE_CLOUD_TOKENS = "com.box.android.ONE_CLOUD_TOKENS";
+
     /** Extras key for a OneCloudData transaction object. */
     public static final String EXTRA_ONE_CLOUD = "com.box.android.ONE_CLOUD";
 
@@ -53,44 +75,271 @@ public abstract class BoxOneCloudReceiver extends BroadcastReceiver {
     /** OneCloud receiver on Box side. */
     public static final String BOX_RECEIVER_CLASS_NAME = "com.box.android.onecloud.OneCloudReceiver";
 
+    /** Number of background threads handling broadcasts. */
+    public static final int DISPATCH_THREADS = 3;
+
+    /** Number of broadcasts that may wait for a dispatch thread before further broadcasts are handled on the main thread. */
+    public static final int MAX_QUEUED_BROADCASTS = 16;
+
+    /** Time after which idle dispatch threads exit. */
+    private static final long DISPATCH_KEEP_ALIVE_SECONDS = 30;
+
+    /** Background threads shared by all receivers in the process. */
+    private static final ThreadPoolExecutor sDispatcher = createDispatcher();
+
+    /**
+     * Handle through which a hook reports that it is done with a broadcast. Until finish() is called, Android keeps the receiving process in the foreground
+     * and delivers no further ordered broadcasts to it.
+     * 
+     */
+    public static final class Completion {
+
+        /** Pending broadcast from goAsync(), or null if the broadcast is not kept alive. */
+        private final PendingResult mPendingResult;
+
+        /** Whether finish() has been called. */
+        private final AtomicBoolean mFinished = new AtomicBoolean();
+
+        /**
+         * Default constructor.
+         * 
+         * @param pendingResult
+         *            Pending broadcast from goAsync(), or null.
+         */
+        Completion(final PendingResult pendingResult) {
+            mPendingResult = pendingResult;
+        }
+
+        /**
+         * Finish handling the broadcast. Calls after the first are ignored.
+         */
+        public void finish() {
+            if (mFinished.compareAndSet(false, true) && mPendingResult != null) {
+                mPendingResult.finish();
+            }
+        }
+
+        /**
+         * Check whether finish() has been called.
+         * 
+         * @return True if finished.
+         */
+        public boolean isFinished() {
+            return mFinished.get();
+        }
+    }
+
     @Override
     public void onReceive(final Context context, final Intent intent) {
-        OneCloudData oneCloudData = null;
-        if (intent.getParcelableExtra(EXTRA_ONE_CLOUD) != null) {
-            oneCloudData = (OneCloudData) intent.getParcelableExtra(EXTRA_ONE_CLOUD);
-            oneCloudData.sendHandshake(context);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || !isAsyncDispatchEnabled()) {
+            dispatch(context, intent, new Completion(null));
+            return;
+        }
+        final Completion completion = new Completion(goAsync());
+        try {
+            sDispatcher.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    dispatch(context, intent, completion);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // Burst beyond the queue. Handle this one here rather than drop it.
+            dispatch(context, intent, completion);
+        }
+    }
+
+    /**
+     * Whether broadcasts are handled on background threads. Override to return true once every on*Requested hook you implement is safe to call off the main
+     * thread. Has no effect before Android 3.0.
+     * 
+     * @return True to handle broadcasts on background threads. False by default, which handles them on the main thread.
+     */
+    protected boolean isAsyncDispatchEnabled() {
+        return false;
+    }
+
+    /**
+     * Whether the handshake with Box is deferred until the OneCloudData object is first used, rather than sent as soon as the broadcast arrives. Override to
+     * return true if broadcasts such as ACTION_BOX_LAUNCH often go unused, so they cost no round trip to Box. The deferred handshake then runs on whichever
+     * thread first uses the data, so avoid touching it on the main thread.
+     * 
+     * @return True to defer the handshake. See OneCloudData.prepareHandshake().
+     */
+    protected boolean isLazyHandshakeEnabled() {
+        return false;
+    }
+
+    /**
+     * Verify the OneCloudData object in a broadcast and pass it to the matching hook.
+     * 
+     * @param context
+     *            The Context in which the receiver is running.
+     * @param intent
+     *            Broadcast.
+     * @param completion
+     *            Handle to finish the broadcast with.
+     */
+    private void dispatch(final Context context, final Intent intent, final Completion completion) {
+        boolean handedOff = false;
+        try {
+            OneCloudData oneCloudData = null;
+            if (intent.getParcelableExtra(EXTRA_ONE_CLOUD) != null) {
+                oneCloudData = (OneCloudData) intent.getParcelableExtra(EXTRA_ONE_CLOUD);
+                if (isLazyHandshakeEnabled()) {
+                    oneCloudData.prepareHandshake(context);
+                }
+                else {
+                    oneCloudData.sendHandshake(context);
+                }
+            }
+
+            if (intent.getAction().equals(ACTION_BOX_EDIT_FILE)) {
+                handedOff = true;
+                onEditFileRequested(context, oneCloudData, completion);
+            }
+            else if (intent.getAction().equals(ACTION_BOX_CREATE_FILE)) {
+                handedOff = true;
+                onCreateFileRequested(context, oneCloudData, completion);
+            }
+            else if (intent.getAction().equals(ACTION_BOX_VIEW_FILE)) {
+                handedOff = true;
+                onViewFileRequested(context, oneCloudData, completion);
+            }
+            else if (intent.getAction().equals(ACTION_BOX_LAUNCH)) {
+                handedOff = true;
+                onLaunchRequested(context, oneCloudData, completion);
+            }
+            else if (intent.getAction().equals("com.android.vending.INSTALL_REFERRER")) {
+                final String referrer = intent.getStringExtra("referrer");
+                if (referrer == null) {
+                    return;
+                }
+                if (!referrer.toLowerCase().contains("box")) {
+                    // We only care about installations that happened as a result of a Box referral.
+                    return;
+                }
+
+                Intent broadcast = new Intent(ACTION_BOX_INSTALL_REFERRED);
+                broadcast.setComponent(new ComponentName(BOX_PACKAGE_NAME, BOX_RECEIVER_CLASS_NAME));
+                broadcast.putExtra(EXTRA_REFERRER, referrer);
+                broadcast.putExtra(EXTRA_PACKAGE_NAME, context.getPackageName());
+                context.sendBroadcast(broadcast);
+            }
         }
+        catch (RuntimeException e) {
+            completion.finish();
+            throw e;
+        }
+        finally {
+            if (!handedOff) {
+                completion.finish();
+            }
+        }
+    }
 
-        if (intent.getAction().equals(ACTION_BOX_EDIT_FILE)) {
+    /**
+     * Box has requested that you modify an existing Box file. Called on a background thread when dispatch is asynchronous. The default implementation calls
+     * onEditFileRequested(Context, OneCloudData) and finishes the broadcast.
+     * 
+     * @param context
+     *            The Context in which the receiver is running.
+     * @param oneCloudData
+     *            OneCloudData transaction object.
+     * @param completion
+     *            Handle to finish() once you are done with the broadcast.
+     */
+    public void onEditFileRequested(final Context context, final OneCloudData oneCloudData, final Completion completion) {
+        try {
             onEditFileRequested(context, oneCloudData);
         }
-        else if (intent.getAction().equals(ACTION_BOX_CREATE_FILE)) {
+        finally {
+            completion.finish();
+        }
+    }
+
+    /**
+     * Box has requested that you create a new file. Called on a background thread when dispatch is asynchronous. The default implementation calls
+     * onCreateFileRequested(Context, OneCloudData) and finishes the broadcast.
+     * 
+     * @param context
+     *            The Context in which the receiver is running.
+     * @param oneCloudData
+     *            OneCloudData transaction object.
+     * @param completion
+     *            Handle to finish() once you are done with the broadcast.
+     */
+    public void onCreateFileRequested(final Context context, final OneCloudData oneCloudData, final Completion completion) {
+        try {
             onCreateFileRequested(context, oneCloudData);
         }
-        else if (intent.getAction().equals(ACTION_BOX_VIEW_FILE)) {
+        finally {
+            completion.finish();
+        }
+    }
+
+    /**
+     * Box has requested that you show the contents of a file. Called on a background thread when dispatch is asynchronous. The default implementation calls
+     * onViewFileRequested(Context, OneCloudData) and finishes the broadcast.
+     * 
+     * @param context
+     *            The Context in which the receiver is running.
+     * @param oneCloudData
+     *            OneCloudData transaction object.
+     * @param completion
+     *            Handle to finish() once you are done with the broadcast.
+     */
+    public void onViewFileRequested(final Context context, final OneCloudData oneCloudData, final Completion completion) {
+        try {
             onViewFileRequested(context, oneCloudData);
         }
-        else if (intent.getAction().equals(ACTION_BOX_LAUNCH)) {
-            onLaunchRequested(context, oneCloudData);
+        finally {
+            completion.finish();
         }
-        else if (intent.getAction().equals("com.android.vending.INSTALL_REFERRER")) {
-            final String referrer = intent.getStringExtra("referrer");
-            if (referrer == null) {
-                return;
-            }
-            if (!referrer.toLowerCase().contains("box")) {
-                // We only care about installations that happened as a result of a Box referral.
-                return;
-            }
+    }
 
-            Intent broadcast = new Intent(ACTION_BOX_INSTALL_REFERRED);
-            broadcast.setComponent(new ComponentName(BOX_PACKAGE_NAME, BOX_RECEIVER_CLASS_NAME));
-            broadcast.putExtra(EXTRA_REFERRER, referrer);
-            broadcast.putExtra(EXTRA_PACKAGE_NAME, context.getPackageName());
-            context.sendBroadcast(broadcast);
+    /**
+     * Box has requested that you launch your app. Called on a background thread when dispatch is asynchronous. The default implementation calls
+     * onLaunchRequested(Context, OneCloudData) and finishes the broadcast.
+     * 
+     * @param context
+     *            The Context in which the receiver is running.
+     * @param oneCloudData
+     *            OneCloudData transaction object.
+     * @param completion
+     *            Handle to finish() once you are done with the broadcast.
+     */
+    public void onLaunchRequested(final Context context, final OneCloudData oneCloudData, final Completion completion) {
+        try {
+            onLaunchRequested(context, oneCloudData);
+        }
+        finally {
+            completion.finish();
         }
     }
 
+    /**
+     * Create the pool of dispatch threads.
+     * 
+     * @return Executor with DISPATCH_THREADS threads and room for MAX_QUEUED_BROADCASTS waiting broadcasts.
+     */
+    private static ThreadPoolExecutor createDispatcher() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DISPATCH_THREADS, DISPATCH_THREADS, DISPATCH_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(MAX_QUEUED_BROADCASTS), new ThreadFactory() {
+
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(runnable, "BoxOneCloudReceiver-" + mCount.incrementAndGet());
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /**
      * Box has requested that you modify an existing Box file. You should load UI for the user to modify the file and save it back to Box by calling
      * uploadNewVersion().
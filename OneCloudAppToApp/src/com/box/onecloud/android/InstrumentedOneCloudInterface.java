@@ -0,0 +1,778 @@
+package com.box.onecloud.android;
+
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+
+/**
+ * OneCloudInterface that passes every call on to another OneCloudInterface and reports it to OneCloudMetrics. OneCloudData talks to Box through one of these,
+ * so every transaction it makes is visible to OneCloudMetrics without changing any call site.
+ * 
+ */
+final class InstrumentedOneCloudInterface implements OneCloudInterface {
+
+    /** Interface calls are passed on to. */
+    private final OneCloudInterface mDelegate;
+
+    /**
+     * Default constructor.
+     * 
+     * @param delegate
+     *            Interface calls are passed on to.
+     */
+    private InstrumentedOneCloudInterface(final OneCloudInterface delegate) {
+        mDelegate = delegate;
+    }
+
+    /**
+     * Wrap an interface so that its calls are reported to OneCloudMetrics.
+     * 
+     * @param binder
+     *            Interface to wrap, or null.
+     * @return Instrumented interface, or null if binder is null.
+     */
+    static OneCloudInterface wrap(final OneCloudInterface binder) {
+        if (binder == null || binder instanceof InstrumentedOneCloudInterface) {
+            return binder;
+        }
+        return new InstrumentedOneCloudInterface(binder);
+    }
+
+    @Override
+    public IBinder asBinder() {
+        return mDelegate.asBinder();
+    }
+
+    @Override
+    public int iAvailable() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.iAvailable");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            return mDelegate.iAvailable();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "iAvailable", start, 0, error);
+        }
+    }
+
+    @Override
+    public void iClose() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.iClose");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.iClose();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "iClose", start, 0, error);
+        }
+    }
+
+    @Override
+    public void iMark(final int readLimit) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.iMark");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.iMark(readLimit);
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "iMark", start, 0, error);
+        }
+    }
+
+    @Override
+    public boolean iMarkSupported() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.iMarkSupported");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            return mDelegate.iMarkSupported();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "iMarkSupported", start, 0, error);
+        }
+    }
+
+    @Override
+    public int iReadAll(final byte[] buffer) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.iReadAll");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        long bytes = 0;
+        try {
+            int result = mDelegate.iReadAll(buffer);
+            bytes = Math.max(result, 0);
+            return result;
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "iReadAll", start, bytes, error);
+        }
+    }
+
+    @Override
+    public int iReadOne() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.iReadOne");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        long bytes = 0;
+        try {
+            int result = mDelegate.iReadOne();
+            bytes = result == -1 ? 0 : 1;
+            return result;
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "iReadOne", start, bytes, error);
+        }
+    }
+
+    @Override
+    public int iRead(final byte[] buffer, final int offset, final int length) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.iRead");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        long bytes = 0;
+        try {
+            int result = mDelegate.iRead(buffer, offset, length);
+            bytes = Math.max(result, 0);
+            return result;
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "iRead", start, bytes, error);
+        }
+    }
+
+    @Override
+    public void iReset() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.iReset");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.iReset();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "iReset", start, 0, error);
+        }
+    }
+
+    @Override
+    public long iSkip(final long byteCount) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.iSkip");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            return mDelegate.iSkip(byteCount);
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "iSkip", start, 0, error);
+        }
+    }
+
+    @Override
+    public void oClose() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.oClose");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.oClose();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "oClose", start, 0, error);
+        }
+    }
+
+    @Override
+    public void oFlush() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.oFlush");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.oFlush();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "oFlush", start, 0, error);
+        }
+    }
+
+    @Override
+    public void oWrite(final byte[] buffer, final int offset, final int count) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.oWrite");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.oWrite(buffer, offset, count);
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "oWrite", start, error == null ? count : 0, error);
+        }
+    }
+
+    @Override
+    public void oWriteAll(final byte[] buffer) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.oWriteAll");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.oWriteAll(buffer);
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "oWriteAll", start, error == null ? buffer.length : 0, error);
+        }
+    }
+
+    @Override
+    public void oWriteOne(final int oneByte) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.oWriteOne");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.oWriteOne(oneByte);
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "oWriteOne", start, error == null ? 1 : 0, error);
+        }
+    }
+
+    @Override
+    public void sendHandshake(final HandshakeCallback handshakeCallback) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.sendHandshake");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.sendHandshake(handshakeCallback);
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "sendHandshake", start, 0, error);
+        }
+    }
+
+    @Override
+    public void uploadNewVersion(final FileUploadCallbacks uploadCallbacks) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.uploadNewVersion");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.uploadNewVersion(uploadCallbacks);
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "uploadNewVersion", start, 0, error);
+        }
+    }
+
+    @Override
+    public void uploadNewVersionWithNewName(final String newFileName, final FileUploadCallbacks uploadCallbacks) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.uploadNewVersionWithNewName");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.uploadNewVersionWithNewName(newFileName, uploadCallbacks);
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "uploadNewVersionWithNewName", start, 0, error);
+        }
+    }
+
+    @Override
+    public void uploadNewFile(final String suggestedFileName, final FileUploadCallbacks uploadCallbacks) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.uploadNewFile");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.uploadNewFile(suggestedFileName, uploadCallbacks);
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "uploadNewFile", start, 0, error);
+        }
+    }
+
+    @Override
+    public void launch() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.launch");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.launch();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "launch", start, 0, error);
+        }
+    }
+
+    @Override
+    public String getFileName() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.getFileName");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            return mDelegate.getFileName();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "getFileName", start, 0, error);
+        }
+    }
+
+    @Override
+    public String getMimeType() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.getMimeType");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            return mDelegate.getMimeType();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "getMimeType", start, 0, error);
+        }
+    }
+
+    @Override
+    public long getFileSize() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.getFileSize");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            return mDelegate.getFileSize();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "getFileSize", start, 0, error);
+        }
+    }
+
+    @Override
+    public long getToken() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.getToken");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            return mDelegate.getToken();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "getToken", start, 0, error);
+        }
+    }
+
+    @Override
+    public long getFileId() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.getFileId");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            return mDelegate.getFileId();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "getFileId", start, 0, error);
+        }
+    }
+
+    @Override
+    public long getFolderId() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.getFolderId");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            return mDelegate.getFolderId();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "getFolderId", start, 0, error);
+        }
+    }
+
+    @Override
+    public String getFolderPath() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.getFolderPath");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            return mDelegate.getFolderPath();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "getFolderPath", start, 0, error);
+        }
+    }
+
+    @Override
+    public String getUsername() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.getUsername");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            return mDelegate.getUsername();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "getUsername", start, 0, error);
+        }
+    }
+
+    @Override
+    public void notifyDataChanged() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.notifyDataChanged");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.notifyDataChanged();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "notifyDataChanged", start, 0, error);
+        }
+    }
+
+    @Override
+    public ParcelFileDescriptor openReadChannel() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.openReadChannel");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            return mDelegate.openReadChannel();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "openReadChannel", start, 0, error);
+        }
+    }
+
+    @Override
+    public ParcelFileDescriptor openWriteChannel() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.openWriteChannel");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            return mDelegate.openWriteChannel();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "openWriteChannel", start, 0, error);
+        }
+    }
+
+    @Override
+    public byte[] iReadBounded(final int length) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.iReadBounded");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        long bytes = 0;
+        try {
+            byte[] result = mDelegate.iReadBounded(length);
+            bytes = result == null ? 0 : result.length;
+            return result;
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "iReadBounded", start, bytes, error);
+        }
+    }
+
+    @Override
+    public OneCloudMetadata getMetadata() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.getMetadata");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            return mDelegate.getMetadata();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "getMetadata", start, 0, error);
+        }
+    }
+
+    @Override
+    public String startChunkedUpload(final int uploadType, final String fileName, final int chunkSize, final ChunkedUploadCallbacks uploadCallbacks)
+        throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.startChunkedUpload");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            return mDelegate.startChunkedUpload(uploadType, fileName, chunkSize, uploadCallbacks);
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "startChunkedUpload", start, 0, error);
+        }
+    }
+
+    @Override
+    public void resumeChunkedUpload(final String uploadSessionId, final long offset, final ChunkedUploadCallbacks uploadCallbacks) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.resumeChunkedUpload");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.resumeChunkedUpload(uploadSessionId, offset, uploadCallbacks);
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "resumeChunkedUpload", start, 0, error);
+        }
+    }
+
+    @Override
+    public void cancelChunkedUpload(final String uploadSessionId) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.cancelChunkedUpload");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.cancelChunkedUpload(uploadSessionId);
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "cancelChunkedUpload", start, 0, error);
+        }
+    }
+
+    @Override
+    public byte[] readAt(final long position, final int length) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.readAt");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        long bytes = 0;
+        try {
+            byte[] result = mDelegate.readAt(position, length);
+            bytes = result == null ? 0 : result.length;
+            return result;
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "readAt", start, bytes, error);
+        }
+    }
+
+    @Override
+    public String getEtag() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.getEtag");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            return mDelegate.getEtag();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "getEtag", start, 0, error);
+        }
+    }
+
+    @Override
+    public void adoptStagingFile(final ParcelFileDescriptor stagingFile, final long length) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.adoptStagingFile");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.adoptStagingFile(stagingFile, length);
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "adoptStagingFile", start, length, error);
+        }
+    }
+
+    @Override
+    public int openReadSession() throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.openReadSession");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            return mDelegate.openReadSession();
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "openReadSession", start, 0, error);
+        }
+    }
+
+    @Override
+    public byte[] sessionRead(final int sessionId, final int length) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.sessionRead");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        long bytes = 0;
+        try {
+            byte[] result = mDelegate.sessionRead(sessionId, length);
+            bytes = result == null ? 0 : result.length;
+            return result;
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "sessionRead", start, bytes, error);
+        }
+    }
+
+    @Override
+    public void sessionSeek(final int sessionId, final long position) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.sessionSeek");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.sessionSeek(sessionId, position);
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "sessionSeek", start, 0, error);
+        }
+    }
+
+    @Override
+    public void closeReadSession(final int sessionId) throws RemoteException {
+        int flags = OneCloudMetrics.begin("OneCloud.closeReadSession");
+        long start = System.nanoTime();
+        RemoteException error = null;
+        try {
+            mDelegate.closeReadSession(sessionId);
+        }
+        catch (RemoteException e) {
+            error = e;
+            throw e;
+        }
+        finally {
+            OneCloudMetrics.end(flags, "closeReadSession", start, 0, error);
+        }
+    }
+}
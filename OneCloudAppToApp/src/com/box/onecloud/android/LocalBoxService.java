@@ -0,0 +1,600 @@
+package com.box.onecloud.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.os.RemoteException;
+
+/**
+ * In-process stand-in for the Box app, for load and performance testing on devices and emulators that do not have Box installed. Files live in a local
+ * directory that plays the role of the user's Box account, and every OneCloud transaction works on its own copy of one of them, just as it does in Box.
+ * 
+ * Latency, bandwidth and failures can be injected into every call to reproduce slow links and flaky connections. Injected values are drawn from a seeded random
+ * source so that a scenario can be replayed; with several threads calling at once the order of the draws, and so the exact outcome, still depends on
+ * scheduling.
+ * 
+ * Once installed, OneCloudData treats this process as Box: restore, sibling and batch requests are answered by this stand-in instead of being broadcast, and
+ * handshakes from it are accepted. Since that turns off the check that Box is who it claims to be, it can only be installed in a debuggable build.
+ * 
+ * <pre>
+ * LocalBoxService box = new LocalBoxService(new File(getCacheDir(), &quot;box&quot;), 1234);
+ * box.setLatency(20, 80);
+ * box.setBandwidth(256 * 1024);
+ * box.setFailureRate(0.01);
+ * box.install(context);
+ * box.sendEditFile(context, new MyReceiver(), &quot;report.pdf&quot;);
+ * </pre>
+ * 
+ */
+public final class LocalBoxService {
+
+    /** Box app version code reported by default. Enables every API in this library. */
+    public static final int DEFAULT_VERSION_CODE = 22000;
+
+    /** Error code reported to chunked upload callbacks for an injected failure. */
+    public static final int ERROR_INJECTED_FAILURE = -1000;
+
+    /** Name of the directory inside the root that holds the working copies of open transactions. */
+    static final String TRANSACTION_DIR = ".onecloud";
+
+    /** Stand-in currently installed, or null. */
+    private static volatile LocalBoxService sInstalled;
+
+    /** Directory playing the role of the user's Box account. */
+    private final File mRoot;
+
+    /** Directory holding the working copies of open transactions. */
+    private final File mTransactionDir;
+
+    /** Source of injected latencies and failures. */
+    private final Random mRandom;
+
+    /** Open transactions by token. */
+    private final Map<Long, LocalOneCloudInterface> mTransactions = new HashMap<Long, LocalOneCloudInterface>();
+
+    /** Token of the next transaction. */
+    private long mNextToken = 1;
+
+    /** Runs broadcasts and uploads, which are asynchronous in Box. */
+    private final ExecutorService mExecutor;
+
+    /** Box app version code reported to OneCloudData. */
+    private volatile int mVersionCode = DEFAULT_VERSION_CODE;
+
+    /** Smallest injected latency per call. */
+    private volatile long mMinLatencyMillis;
+
+    /** Largest injected latency per call. */
+    private volatile long mMaxLatencyMillis;
+
+    /** Bandwidth shared by all file data transfers, or 0 for no limit. */
+    private volatile long mBandwidth;
+
+    /** Probability of each call failing. */
+    private volatile double mFailureRate;
+
+    /** Time at which the simulated link has finished sending everything queued on it so far. */
+    private long mLinkFreeNanos;
+
+    /** Number of failures injected so far. */
+    private final AtomicInteger mInjectedFailures = new AtomicInteger();
+
+    /**
+     * Create a stand-in with a random seed.
+     * 
+     * @param root
+     *            Directory playing the role of the user's Box account. Created if necessary.
+     */
+    public LocalBoxService(final File root) {
+        this(root, System.nanoTime());
+    }
+
+    /**
+     * Create a stand-in whose injected latencies and failures can be replayed.
+     * 
+     * @param root
+     *            Directory playing the role of the user's Box account. Created if necessary.
+     * @param seed
+     *            Seed for the injected latencies and failures.
+     */
+    public LocalBoxService(final File root, final long seed) {
+        mRoot = root;
+        mTransactionDir = new File(root, TRANSACTION_DIR);
+        mTransactionDir.mkdirs();
+        mRandom = new Random(seed);
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable, "LocalBox-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Get the directory playing the role of the user's Box account.
+     * 
+     * @return Directory.
+     */
+    public File getRoot() {
+        return mRoot;
+    }
+
+    /**
+     * Set the Box app version code reported to OneCloudData, to test fallbacks for older Box versions.
+     * 
+     * @param versionCode
+     *            Version code.
+     */
+    public void setVersionCode(final int versionCode) {
+        mVersionCode = versionCode;
+    }
+
+    /**
+     * Get the Box app version code reported to OneCloudData.
+     * 
+     * @return Version code.
+     */
+    public int getVersionCode() {
+        return mVersionCode;
+    }
+
+    /**
+     * Inject latency into every call and every broadcast. Each one is delayed by a time drawn uniformly between the bounds.
+     * 
+     * @param minMillis
+     *            Smallest delay.
+     * @param maxMillis
+     *            Largest delay.
+     */
+    public void setLatency(final long minMillis, final long maxMillis) {
+        if (minMillis < 0 || maxMillis < minMillis) {
+            throw new IllegalArgumentException("Invalid latency range: " + minMillis + "-" + maxMillis);
+        }
+        mMinLatencyMillis = minMillis;
+        mMaxLatencyMillis = maxMillis;
+    }
+
+    /**
+     * Cap the rate at which file data moves between the app and this stand-in, including uploads. All transactions share the cap, as they would share a slow
+     * link.
+     * 
+     * @param bytesPerSecond
+     *            Bandwidth, or 0 for no limit.
+     */
+    public void setBandwidth(final long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid bandwidth: " + bytesPerSecond);
+        }
+        mBandwidth = bytesPerSecond;
+    }
+
+    /**
+     * Make calls fail at random. A failed call throws RemoteException, a failed broadcast is never answered, and a failed upload chunk reports an error
+     * through the upload callbacks.
+     * 
+     * @param failureRate
+     *            Probability of each call failing, between 0 and 1.
+     */
+    public void setFailureRate(final double failureRate) {
+        if (failureRate < 0 || failureRate > 1) {
+            throw new IllegalArgumentException("Invalid failure rate: " + failureRate);
+        }
+        mFailureRate = failureRate;
+    }
+
+    /**
+     * Get the number of failures injected so far.
+     * 
+     * @return Failure count.
+     */
+    public int getInjectedFailureCount() {
+        return mInjectedFailures.get();
+    }
+
+    /**
+     * Make this stand-in answer OneCloudData's requests to Box for this process, replacing any other installed stand-in.
+     * 
+     * @param context
+     *            Context of the app under test.
+     * @throws IllegalStateException
+     *             Thrown if the app is not debuggable.
+     */
+    public void install(final Context context) {
+        if ((context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0) {
+            throw new IllegalStateException("LocalBoxService can only be installed in a debuggable build.");
+        }
+        sInstalled = this;
+        BoxIdentityCache.invalidate();
+    }
+
+    /**
+     * Stop answering OneCloudData's requests to Box. Open transactions keep working.
+     */
+    public void uninstall() {
+        if (sInstalled == this) {
+            sInstalled = null;
+            BoxIdentityCache.invalidate();
+        }
+    }
+
+    /**
+     * Open a transaction on a file, as Box does when the user picks an app to edit or view it, and complete the handshake a receiver would. The stand-in must
+     * be installed.
+     * 
+     * @param context
+     *            Context to verify the handshake in.
+     * @param fileName
+     *            Name of the file in the root directory. It does not need to exist yet.
+     * @return Verified OneCloudData for the transaction.
+     * @throws IOException
+     *             Thrown if the working copy could not be made.
+     */
+    public OneCloudData openFile(final Context context, final String fileName) throws IOException {
+        return verify(context, openTransaction(fileName));
+    }
+
+    /**
+     * Open a transaction for a new file, as Box does when the user picks an app to create one, and complete the handshake a receiver would. The stand-in must
+     * be installed.
+     * 
+     * @param context
+     *            Context to verify the handshake in.
+     * @return Verified OneCloudData for the transaction.
+     * @throws IOException
+     *             Thrown if the working copy could not be made.
+     */
+    public OneCloudData createFile(final Context context) throws IOException {
+        return verify(context, openTransaction(null));
+    }
+
+    /**
+     * Open a transaction on a file and return its binder as Box sends it, for example to serve it from a Service in another process of the app. Whoever
+     * receives it wraps it in a OneCloudData and completes a handshake, which only succeeds in a process with a stand-in installed.
+     * 
+     * @param fileName
+     *            Name of the file in the root directory. It does not need to exist yet.
+     * @return Binder for the transaction.
+     * @throws IOException
+     *             Thrown if the working copy could not be made.
+     */
+    public OneCloudInterface openBinder(final String fileName) throws IOException {
+        return openTransaction(fileName);
+    }
+
+    /**
+     * Deliver an edit request to a receiver, as Box does when the user picks the app to edit a file.
+     * 
+     * @param context
+     *            Context to receive in.
+     * @param receiver
+     *            App's receiver.
+     * @param fileName
+     *            Name of the file in the root directory.
+     * @throws IOException
+     *             Thrown if the working copy could not be made.
+     */
+    public void sendEditFile(final Context context, final BoxOneCloudReceiver receiver, final String fileName) throws IOException {
+        send(context, receiver, BoxOneCloudReceiver.ACTION_BOX_EDIT_FILE, openTransaction(fileName));
+    }
+
+    /**
+     * Deliver a view request to a receiver, as Box does when the user picks the app to view a file.
+     * 
+     * @param context
+     *            Context to receive in.
+     * @param receiver
+     *            App's receiver.
+     * @param fileName
+     *            Name of the file in the root directory.
+     * @throws IOException
+     *             Thrown if the working copy could not be made.
+     */
+    public void sendViewFile(final Context context, final BoxOneCloudReceiver receiver, final String fileName) throws IOException {
+        send(context, receiver, BoxOneCloudReceiver.ACTION_BOX_VIEW_FILE, openTransaction(fileName));
+    }
+
+    /**
+     * Deliver a create request to a receiver, as Box does when the user picks the app to create a file.
+     * 
+     * @param context
+     *            Context to receive in.
+     * @param receiver
+     *            App's receiver.
+     * @throws IOException
+     *             Thrown if the working copy could not be made.
+     */
+    public void sendCreateFile(final Context context, final BoxOneCloudReceiver receiver) throws IOException {
+        send(context, receiver, BoxOneCloudReceiver.ACTION_BOX_CREATE_FILE, openTransaction(null));
+    }
+
+    /**
+     * Simulate the Box app process being killed, as it may be under memory pressure, and restarted. Every binder handed out so far fails with
+     * DeadObjectException from then on. Restoring a transaction through its token returns a new binder over the same working copy, with data that was not
+     * yet oClose()d lost.
+     */
+    public void simulateProcessDeath() {
+        synchronized (mTransactions) {
+            for (Map.Entry<Long, LocalOneCloudInterface> entry : mTransactions.entrySet()) {
+                entry.setValue(entry.getValue().restart());
+            }
+        }
+    }
+
+    /**
+     * Close every transaction and stop the stand-in's threads. Uninstalls the stand-in if it is installed.
+     */
+    public void shutdown() {
+        uninstall();
+        mExecutor.shutdownNow();
+        synchronized (mTransactions) {
+            for (LocalOneCloudInterface transaction : mTransactions.values()) {
+                transaction.close();
+            }
+            mTransactions.clear();
+        }
+    }
+
+    /**
+     * Get the installed stand-in.
+     * 
+     * @return Stand-in, or null if none is installed.
+     */
+    static LocalBoxService getInstalled() {
+        return sInstalled;
+    }
+
+    /**
+     * Answer a broadcast meant for Box if a stand-in is installed. The answer arrives asynchronously, as Box's would.
+     * 
+     * @param intent
+     *            Broadcast for Box.
+     * @return True if the installed stand-in took the broadcast, false if it should be sent to Box.
+     */
+    static boolean deliver(final Intent intent) {
+        final LocalBoxService service = sInstalled;
+        if (service == null) {
+            return false;
+        }
+        service.mExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    service.beforeCall();
+                    service.answer(intent);
+                }
+                catch (RemoteException e) {
+                    // Lost, as a broadcast to Box can be. The app's future times out.
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Delay the current call by the injected latency and fail it at the injected rate.
+     * 
+     * @throws RemoteException
+     *             Thrown if the call fails.
+     */
+    void beforeCall() throws RemoteException {
+        long maxLatency = mMaxLatencyMillis;
+        long minLatency = Math.min(mMinLatencyMillis, maxLatency);
+        double failureRate = mFailureRate;
+        long latency;
+        boolean fail;
+        synchronized (mRandom) {
+            latency = minLatency + (maxLatency > minLatency ? (long) (mRandom.nextDouble() * (maxLatency - minLatency + 1)) : 0);
+            fail = failureRate > 0 && mRandom.nextDouble() < failureRate;
+        }
+        if (latency > 0) {
+            sleepUntil(System.nanoTime() + latency * 1000000);
+        }
+        if (fail) {
+            mInjectedFailures.incrementAndGet();
+            throw new RemoteException();
+        }
+    }
+
+    /**
+     * Block until the simulated link has carried some file data.
+     * 
+     * @param bytes
+     *            Number of bytes.
+     * @throws RemoteException
+     *             Thrown if interrupted.
+     */
+    void throttle(final long bytes) throws RemoteException {
+        long bandwidth = mBandwidth;
+        if (bandwidth <= 0 || bytes <= 0) {
+            return;
+        }
+        long wakeNanos;
+        synchronized (this) {
+            mLinkFreeNanos = Math.max(mLinkFreeNanos, System.nanoTime()) + bytes * 1000000000L / bandwidth;
+            wakeNanos = mLinkFreeNanos;
+        }
+        sleepUntil(wakeNanos);
+    }
+
+    /**
+     * Check whether file data transfers are throttled.
+     * 
+     * @return True if a bandwidth cap is set.
+     */
+    boolean isThrottled() {
+        return mBandwidth > 0;
+    }
+
+    /**
+     * Run a task asynchronously, as Box runs uploads.
+     * 
+     * @param task
+     *            Task.
+     */
+    void execute(final Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Open a transaction and register it under a new token.
+     * 
+     * @param fileName
+     *            Name of the file in the root directory, or null for a new file.
+     * @return Transaction.
+     * @throws IOException
+     *             Thrown if the working copy could not be made.
+     */
+    private LocalOneCloudInterface openTransaction(final String fileName) throws IOException {
+        synchronized (mTransactions) {
+            long token = mNextToken++;
+            LocalOneCloudInterface transaction = new LocalOneCloudInterface(this, token, mRoot, new File(mTransactionDir, Long.toString(token)), fileName);
+            mTransactions.put(token, transaction);
+            return transaction;
+        }
+    }
+
+    /**
+     * Look up an open transaction.
+     * 
+     * @param token
+     *            Token.
+     * @return Transaction, or null if the token is unknown.
+     */
+    private LocalOneCloudInterface getTransaction(final long token) {
+        synchronized (mTransactions) {
+            return mTransactions.get(token);
+        }
+    }
+
+    /**
+     * Answer a broadcast meant for Box through the handshake it carries. As in Box, nothing is sent back unless the app completes the handshake.
+     * 
+     * @param intent
+     *            Broadcast for Box.
+     * @throws RemoteException
+     *             Thrown if the app could not be reached.
+     */
+    private void answer(final Intent intent) throws RemoteException {
+        OneCloudHandshake handshake = intent.getParcelableExtra(BoxOneCloudReceiver.EXTRA_ONE_CLOUD_HANDSHAKE);
+        if (handshake == null) {
+            return;
+        }
+        final boolean[] shaken = new boolean[1];
+        handshake.sendHandshake(new HandshakeCallback.Stub() {
+
+            @Override
+            public void onShake() {
+                shaken[0] = true;
+            }
+        });
+        if (!shaken[0]) {
+            return;
+        }
+
+        String action = intent.getAction();
+        if (BoxOneCloudReceiver.ACTION_BOX_RESTORE_ONE_CLOUD_DATA_BATCH.equals(action)) {
+            long[] tokens = intent.getLongArrayExtra(BoxOneCloudReceiver.EXTRA_ONE_CLOUD_TOKENS);
+            if (tokens == null) {
+                return;
+            }
+            for (long token : tokens) {
+                LocalOneCloudInterface transaction = getTransaction(token);
+                if (transaction != null) {
+                    handshake.sendRestoredOneCloudData(token, transaction);
+                }
+            }
+            return;
+        }
+
+        LocalOneCloudInterface transaction = getTransaction(intent.getLongExtra(BoxOneCloudReceiver.EXTRA_ONE_CLOUD_TOKEN, -1));
+        if (transaction == null) {
+            return;
+        }
+        if (BoxOneCloudReceiver.ACTION_BOX_CREATE_SIBLING_ONE_CLOUD_DATA.equals(action)) {
+            try {
+                handshake.sendOneCloudData(openTransaction(null));
+            }
+            catch (IOException e) {
+                // Box cannot create the sibling. The app's future times out.
+            }
+        }
+        else if (BoxOneCloudReceiver.ACTION_BOX_RESTORE_ONE_CLOUD_DATA.equals(action)) {
+            handshake.sendOneCloudData(transaction);
+        }
+    }
+
+    /**
+     * Wrap a transaction in a OneCloudData and complete a handshake with it.
+     * 
+     * @param context
+     *            Context to verify the handshake in.
+     * @param transaction
+     *            Transaction.
+     * @return Verified OneCloudData.
+     * @throws IllegalStateException
+     *             Thrown if this stand-in is not installed, since the handshake could never pass.
+     */
+    private OneCloudData verify(final Context context, final LocalOneCloudInterface transaction) {
+        if (sInstalled != this) {
+            throw new IllegalStateException("LocalBoxService must be installed before opening transactions.");
+        }
+        OneCloudData oneCloudData = new OneCloudData(transaction);
+        oneCloudData.sendHandshake(context);
+        return oneCloudData;
+    }
+
+    /**
+     * Deliver a request to a receiver. As with a broadcast from Box, the receiver completes the handshake itself.
+     * 
+     * @param context
+     *            Context to receive in.
+     * @param receiver
+     *            App's receiver.
+     * @param action
+     *            Intent action.
+     * @param transaction
+     *            Transaction.
+     */
+    private void send(final Context context, final BoxOneCloudReceiver receiver, final String action, final LocalOneCloudInterface transaction) {
+        Intent intent = new Intent(action);
+        intent.putExtra(BoxOneCloudReceiver.EXTRA_ONE_CLOUD, new OneCloudData(transaction));
+        receiver.onReceive(context, intent);
+    }
+
+    /**
+     * Sleep until a point in time.
+     * 
+     * @param wakeNanos
+     *            Time to wake, from System.nanoTime().
+     * @throws RemoteException
+     *             Thrown if interrupted.
+     */
+    private static void sleepUntil(final long wakeNanos) throws RemoteException {
+        long remaining;
+        while ((remaining = wakeNanos - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException();
+            }
+        }
+    }
+}
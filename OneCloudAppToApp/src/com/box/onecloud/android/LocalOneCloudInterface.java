@@ -0,0 +1,1065 @@
+package com.box.onecloud.android;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.os.DeadObjectException;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+
+/**
+ * Box side of one OneCloud transaction hosted by LocalBoxService. The transaction works on a copy of the file. Data written through the output stream methods
+ * or the write channel is staged and replaces the copy on oClose(), and uploads copy it back into the root directory, as Box uploads it to the user's account.
+ * Every call pays the stand-in's injected latency and may fail at its injected rate.
+ * 
+ */
+final class LocalOneCloudInterface extends OneCloudInterface.Stub {
+
+    /** Size of the pieces file data is copied in. */
+    private static final int COPY_CHUNK_SIZE = 64 * 1024;
+
+    /** Error code for a new version upload of a file that was never uploaded. */
+    private static final int ERROR_NO_TARGET = -1001;
+
+    /** Error code for resuming an unknown upload session. */
+    private static final int ERROR_UNKNOWN_SESSION = -1002;
+
+    /** Error code for a chunked upload that could not read or store its data. */
+    private static final int ERROR_IO = -1003;
+
+    /** Stand-in hosting the transaction. */
+    private final LocalBoxService mService;
+
+    /** Transaction token. */
+    private final long mToken;
+
+    /** Directory playing the role of the user's Box account. */
+    private final File mRoot;
+
+    /** Working copy of the file. */
+    private final File mWorkingFile;
+
+    /** Data written since the last oClose(). */
+    private final File mStagingFile;
+
+    /** Name of the file in the root directory, or null if it has not been uploaded yet. */
+    private String mFileName;
+
+    /** Input stream position in the working copy, opened on first read. */
+    private RandomAccessFile mIn;
+
+    /** Position of the input stream mark. */
+    private long mMark;
+
+    /** Staging output stream, opened on first write. */
+    private OutputStream mOut;
+
+    /** Chunked upload sessions by id. */
+    private final Map<String, UploadSession> mSessions = new HashMap<String, UploadSession>();
+
+    /** Number of chunked upload sessions started. */
+    private int mSessionCount;
+
+    /** Number of times the working copy has been replaced, reported as part of the etag. */
+    private int mRevision;
+
+    /** Open read sessions by id, each with a file of its own. */
+    private final Map<Integer, RandomAccessFile> mReadSessions = new HashMap<Integer, RandomAccessFile>();
+
+    /** Number of read sessions opened. */
+    private int mReadSessionCount;
+
+    /** Whether the simulated Box process hosting this binder has been killed. */
+    private volatile boolean mDead;
+
+    /**
+     * Default constructor.
+     * 
+     * @param service
+     *            Stand-in hosting the transaction.
+     * @param token
+     *            Transaction token.
+     * @param root
+     *            Directory playing the role of the user's Box account.
+     * @param workingFile
+     *            Where to keep the working copy.
+     * @param fileName
+     *            Name of the file in the root directory, or null for a new file.
+     * @throws IOException
+     *             Thrown if the working copy could not be made.
+     */
+    LocalOneCloudInterface(final LocalBoxService service, final long token, final File root, final File workingFile, final String fileName) throws IOException {
+        mService = service;
+        mToken = token;
+        mRoot = root;
+        mWorkingFile = workingFile;
+        mStagingFile = new File(workingFile.getPath() + ".staged");
+        mFileName = fileName;
+        File source = fileName != null ? new File(root, fileName) : null;
+        if (source != null && source.isFile()) {
+            copy(source, workingFile);
+        }
+        else {
+            new FileOutputStream(workingFile).close();
+        }
+    }
+
+    /**
+     * Constructor for the same transaction in a restarted Box process. The working copy, the file name and the chunked upload sessions carry over; open
+     * streams, read sessions and data that was not yet oClose()d do not.
+     * 
+     * @param previous
+     *            Binder of the killed process.
+     */
+    private LocalOneCloudInterface(final LocalOneCloudInterface previous) {
+        mService = previous.mService;
+        mToken = previous.mToken;
+        mRoot = previous.mRoot;
+        mWorkingFile = previous.mWorkingFile;
+        mStagingFile = previous.mStagingFile;
+        mFileName = previous.mFileName;
+        mSessions.putAll(previous.mSessions);
+        mSessionCount = previous.mSessionCount;
+        mRevision = previous.mRevision;
+    }
+
+    @Override
+    public int iAvailable() throws RemoteException {
+        beforeCall();
+        synchronized (this) {
+            try {
+                return (int) Math.min(Integer.MAX_VALUE, mWorkingFile.length() - input().getFilePointer());
+            }
+            catch (IOException e) {
+                throw new RemoteException();
+            }
+        }
+    }
+
+    @Override
+    public void iClose() throws RemoteException {
+        beforeCall();
+        synchronized (this) {
+            closeQuietly(mIn);
+            mIn = null;
+            mMark = 0;
+        }
+    }
+
+    @Override
+    public void iMark(final int readLimit) throws RemoteException {
+        beforeCall();
+        synchronized (this) {
+            try {
+                mMark = input().getFilePointer();
+            }
+            catch (IOException e) {
+                throw new RemoteException();
+            }
+        }
+    }
+
+    @Override
+    public boolean iMarkSupported() throws RemoteException {
+        beforeCall();
+        return true;
+    }
+
+    @Override
+    public int iReadAll(final byte[] buffer) throws RemoteException {
+        return iRead(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public int iReadOne() throws RemoteException {
+        beforeCall();
+        int oneByte;
+        synchronized (this) {
+            try {
+                oneByte = input().read();
+            }
+            catch (IOException e) {
+                throw new RemoteException();
+            }
+        }
+        mService.throttle(oneByte == -1 ? 0 : 1);
+        return oneByte;
+    }
+
+    @Override
+    public int iRead(final byte[] buffer, final int offset, final int length) throws RemoteException {
+        beforeCall();
+        int read;
+        synchronized (this) {
+            try {
+                read = input().read(buffer, offset, length);
+            }
+            catch (IOException e) {
+                throw new RemoteException();
+            }
+        }
+        mService.throttle(read);
+        return read;
+    }
+
+    @Override
+    public void iReset() throws RemoteException {
+        beforeCall();
+        synchronized (this) {
+            try {
+                input().seek(mMark);
+            }
+            catch (IOException e) {
+                throw new RemoteException();
+            }
+        }
+    }
+
+    @Override
+    public long iSkip(final long byteCount) throws RemoteException {
+        beforeCall();
+        synchronized (this) {
+            try {
+                RandomAccessFile in = input();
+                long position = in.getFilePointer();
+                long skipped = Math.max(0, Math.min(byteCount, in.length() - position));
+                in.seek(position + skipped);
+                return skipped;
+            }
+            catch (IOException e) {
+                throw new RemoteException();
+            }
+        }
+    }
+
+    @Override
+    public void oClose() throws RemoteException {
+        beforeCall();
+        synchronized (this) {
+            try {
+                output().close();
+                mOut = null;
+                closeQuietly(mIn);
+                mIn = null;
+                mMark = 0;
+                if (!mWorkingFile.delete() || !mStagingFile.renameTo(mWorkingFile)) {
+                    throw new IOException("Could not replace " + mWorkingFile);
+                }
+                mRevision++;
+            }
+            catch (IOException e) {
+                throw new RemoteException();
+            }
+        }
+    }
+
+    @Override
+    public void oFlush() throws RemoteException {
+        beforeCall();
+    }
+
+    @Override
+    public void oWrite(final byte[] buffer, final int offset, final int count) throws RemoteException {
+        beforeCall();
+        mService.throttle(count);
+        synchronized (this) {
+            try {
+                output().write(buffer, offset, count);
+            }
+            catch (IOException e) {
+                throw new RemoteException();
+            }
+        }
+    }
+
+    @Override
+    public void oWriteAll(final byte[] buffer) throws RemoteException {
+        oWrite(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public void oWriteOne(final int oneByte) throws RemoteException {
+        beforeCall();
+        mService.throttle(1);
+        synchronized (this) {
+            try {
+                output().write(oneByte);
+            }
+            catch (IOException e) {
+                throw new RemoteException();
+            }
+        }
+    }
+
+    @Override
+    public void sendHandshake(final HandshakeCallback handshakeCallback) throws RemoteException {
+        beforeCall();
+        handshakeCallback.onShake();
+    }
+
+    @Override
+    public void uploadNewVersion(final FileUploadCallbacks uploadCallbacks) throws RemoteException {
+        beforeCall();
+        String fileName = getFileNameLocked();
+        upload(fileName != null ? new File(mRoot, fileName) : null, uploadCallbacks);
+    }
+
+    @Override
+    public void uploadNewVersionWithNewName(final String newFileName, final FileUploadCallbacks uploadCallbacks) throws RemoteException {
+        beforeCall();
+        upload(new File(mRoot, newFileName), uploadCallbacks);
+    }
+
+    @Override
+    public void uploadNewFile(final String suggestedFileName, final FileUploadCallbacks uploadCallbacks) throws RemoteException {
+        beforeCall();
+        upload(uniqueFile(suggestedFileName), uploadCallbacks);
+    }
+
+    @Override
+    public void launch() throws RemoteException {
+        beforeCall();
+    }
+
+    @Override
+    public String getFileName() throws RemoteException {
+        beforeCall();
+        return getFileNameLocked();
+    }
+
+    @Override
+    public String getMimeType() throws RemoteException {
+        beforeCall();
+        return guessMimeType(getFileNameLocked());
+    }
+
+    @Override
+    public long getFileSize() throws RemoteException {
+        beforeCall();
+        return mWorkingFile.length();
+    }
+
+    @Override
+    public long getToken() throws RemoteException {
+        beforeCall();
+        return mToken;
+    }
+
+    @Override
+    public long getFileId() throws RemoteException {
+        beforeCall();
+        return mToken;
+    }
+
+    @Override
+    public long getFolderId() throws RemoteException {
+        beforeCall();
+        return 0;
+    }
+
+    @Override
+    public String getFolderPath() throws RemoteException {
+        beforeCall();
+        return "/";
+    }
+
+    @Override
+    public String getUsername() throws RemoteException {
+        beforeCall();
+        return "local";
+    }
+
+    @Override
+    public void notifyDataChanged() throws RemoteException {
+        beforeCall();
+    }
+
+    @Override
+    public ParcelFileDescriptor openReadChannel() throws RemoteException {
+        beforeCall();
+        try {
+            if (!mService.isThrottled()) {
+                // Share the working copy itself, as Box may.
+                return ParcelFileDescriptor.open(mWorkingFile, ParcelFileDescriptor.MODE_READ_ONLY);
+            }
+            final InputStream in = new FileInputStream(mWorkingFile);
+            final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+            mService.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    pump(in, new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]), false);
+                }
+            });
+            return pipe[0];
+        }
+        catch (IOException e) {
+            throw new RemoteException();
+        }
+    }
+
+    @Override
+    public ParcelFileDescriptor openWriteChannel() throws RemoteException {
+        beforeCall();
+        try {
+            final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+            mService.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    pump(new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]), null, true);
+                }
+            });
+            return pipe[1];
+        }
+        catch (IOException e) {
+            throw new RemoteException();
+        }
+    }
+
+    @Override
+    public byte[] iReadBounded(final int length) throws RemoteException {
+        beforeCall();
+        byte[] data;
+        synchronized (this) {
+            try {
+                RandomAccessFile in = input();
+                int read = (int) Math.max(0, Math.min(length, in.length() - in.getFilePointer()));
+                if (read == 0 && length > 0) {
+                    return null;
+                }
+                data = new byte[read];
+                in.readFully(data);
+            }
+            catch (IOException e) {
+                throw new RemoteException();
+            }
+        }
+        mService.throttle(data.length);
+        return data;
+    }
+
+    @Override
+    public OneCloudMetadata getMetadata() throws RemoteException {
+        beforeCall();
+        String fileName = getFileNameLocked();
+        return new OneCloudMetadata(fileName, guessMimeType(fileName), mWorkingFile.length(), mToken, 0, "/", "local");
+    }
+
+    @Override
+    public String startChunkedUpload(final int uploadType, final String fileName, final int chunkSize, final ChunkedUploadCallbacks uploadCallbacks)
+        throws RemoteException {
+        beforeCall();
+        File target;
+        if (uploadType == ResumableUpload.TYPE_NEW_FILE) {
+            target = uniqueFile(fileName);
+        }
+        else if (uploadType == ResumableUpload.TYPE_NEW_VERSION_WITH_NEW_NAME) {
+            target = new File(mRoot, fileName);
+        }
+        else {
+            String currentName = getFileNameLocked();
+            target = currentName != null ? new File(mRoot, currentName) : null;
+        }
+        if (target == null) {
+            uploadCallbacks.onError(ERROR_NO_TARGET, "No file to upload a new version of", 0);
+            return null;
+        }
+        UploadSession session;
+        synchronized (this) {
+            session = new UploadSession("local-" + mToken + "-" + ++mSessionCount, target, chunkSize > 0 ? chunkSize : COPY_CHUNK_SIZE);
+            mSessions.put(session.mId, session);
+        }
+        uploadChunks(session, 0, uploadCallbacks);
+        return session.mId;
+    }
+
+    @Override
+    public void resumeChunkedUpload(final String uploadSessionId, final long offset, final ChunkedUploadCallbacks uploadCallbacks) throws RemoteException {
+        beforeCall();
+        UploadSession session;
+        synchronized (this) {
+            session = mSessions.get(uploadSessionId);
+        }
+        if (session == null) {
+            uploadCallbacks.onError(ERROR_UNKNOWN_SESSION, "Unknown upload session " + uploadSessionId, 0);
+            return;
+        }
+        session.mCancelled = false;
+        uploadChunks(session, offset, uploadCallbacks);
+    }
+
+    @Override
+    public void cancelChunkedUpload(final String uploadSessionId) throws RemoteException {
+        beforeCall();
+        UploadSession session;
+        synchronized (this) {
+            session = mSessions.remove(uploadSessionId);
+        }
+        if (session != null) {
+            session.mCancelled = true;
+        }
+    }
+
+    @Override
+    public byte[] readAt(final long position, final int length) throws RemoteException {
+        beforeCall();
+        byte[] data;
+        RandomAccessFile file = null;
+        try {
+            // A file of its own, so positional reads leave the input stream where it is.
+            file = new RandomAccessFile(mWorkingFile, "r");
+            int read = (int) Math.max(0, Math.min(length, file.length() - position));
+            if (read == 0 && length > 0) {
+                return null;
+            }
+            data = new byte[read];
+            file.seek(position);
+            file.readFully(data);
+        }
+        catch (IOException e) {
+            throw new RemoteException();
+        }
+        finally {
+            closeQuietly(file);
+        }
+        mService.throttle(data.length);
+        return data;
+    }
+
+    @Override
+    public String getEtag() throws RemoteException {
+        beforeCall();
+        synchronized (this) {
+            return mToken + "." + mRevision;
+        }
+    }
+
+    @Override
+    public void adoptStagingFile(final ParcelFileDescriptor stagingFile, final long length) throws RemoteException {
+        beforeCall();
+        synchronized (this) {
+            InputStream in = null;
+            OutputStream out = null;
+            try {
+                // Our own descriptor, as Box would keep.
+                in = new ParcelFileDescriptor.AutoCloseInputStream(stagingFile.dup());
+                out = new FileOutputStream(mStagingFile);
+                byte[] buffer = new byte[COPY_CHUNK_SIZE];
+                long remaining = length;
+                int len;
+                while (remaining > 0 && (len = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                    out.write(buffer, 0, len);
+                    remaining -= len;
+                }
+                out.close();
+                out = null;
+                closeQuietly(mOut);
+                mOut = null;
+                closeQuietly(mIn);
+                mIn = null;
+                mMark = 0;
+                if (!mWorkingFile.delete() || !mStagingFile.renameTo(mWorkingFile)) {
+                    throw new IOException("Could not replace " + mWorkingFile);
+                }
+                mRevision++;
+            }
+            catch (IOException e) {
+                throw new RemoteException();
+            }
+            finally {
+                closeQuietly(in);
+                closeQuietly(out);
+            }
+        }
+    }
+
+    @Override
+    public int openReadSession() throws RemoteException {
+        beforeCall();
+        synchronized (this) {
+            try {
+                // Sessions opened before the working copy is replaced keep reading the data they were opened on.
+                mReadSessions.put(++mReadSessionCount, new RandomAccessFile(mWorkingFile, "r"));
+            }
+            catch (IOException e) {
+                throw new RemoteException();
+            }
+            return mReadSessionCount;
+        }
+    }
+
+    @Override
+    public byte[] sessionRead(final int sessionId, final int length) throws RemoteException {
+        beforeCall();
+        RandomAccessFile file = readSession(sessionId);
+        byte[] data;
+        // Only the session is locked, so sessions read in parallel.
+        synchronized (file) {
+            try {
+                int read = (int) Math.max(0, Math.min(length, file.length() - file.getFilePointer()));
+                if (read == 0 && length > 0) {
+                    return null;
+                }
+                data = new byte[read];
+                file.readFully(data);
+            }
+            catch (IOException e) {
+                throw new RemoteException();
+            }
+        }
+        mService.throttle(data.length);
+        return data;
+    }
+
+    @Override
+    public void sessionSeek(final int sessionId, final long position) throws RemoteException {
+        beforeCall();
+        RandomAccessFile file = readSession(sessionId);
+        synchronized (file) {
+            try {
+                file.seek(position);
+            }
+            catch (IOException e) {
+                throw new RemoteException();
+            }
+        }
+    }
+
+    @Override
+    public void closeReadSession(final int sessionId) throws RemoteException {
+        beforeCall();
+        RandomAccessFile file;
+        synchronized (this) {
+            file = mReadSessions.remove(sessionId);
+        }
+        closeQuietly(file);
+    }
+
+    /**
+     * Kill the simulated Box process hosting this binder. Every call fails with DeadObjectException from then on.
+     * 
+     * @return Binder for the same transaction in the restarted process.
+     */
+    synchronized LocalOneCloudInterface restart() {
+        mDead = true;
+        closeQuietly(mIn);
+        mIn = null;
+        closeQuietly(mOut);
+        mOut = null;
+        for (RandomAccessFile file : mReadSessions.values()) {
+            closeQuietly(file);
+        }
+        mReadSessions.clear();
+        return new LocalOneCloudInterface(this);
+    }
+
+    /**
+     * Close the transaction's streams and delete its working copy.
+     */
+    synchronized void close() {
+        closeQuietly(mIn);
+        mIn = null;
+        closeQuietly(mOut);
+        mOut = null;
+        for (RandomAccessFile file : mReadSessions.values()) {
+            closeQuietly(file);
+        }
+        mReadSessions.clear();
+        mStagingFile.delete();
+        mWorkingFile.delete();
+    }
+
+    /**
+     * Fail calls to a killed process, then apply the stand-in's injected latency and failures.
+     * 
+     * @throws RemoteException
+     *             Thrown if the process has been killed or the call fails.
+     */
+    private void beforeCall() throws RemoteException {
+        if (mDead) {
+            throw new DeadObjectException();
+        }
+        mService.beforeCall();
+    }
+
+    /**
+     * Look up an open read session.
+     * 
+     * @param sessionId
+     *            Session id from openReadSession().
+     * @return The session's file.
+     * @throws RemoteException
+     *             Thrown if the session is not open.
+     */
+    private synchronized RandomAccessFile readSession(final int sessionId) throws RemoteException {
+        RandomAccessFile file = mReadSessions.get(sessionId);
+        if (file == null) {
+            throw new RemoteException();
+        }
+        return file;
+    }
+
+    /**
+     * Get the input stream, opening it if necessary. Must be called with the lock held.
+     * 
+     * @return Working copy positioned at the input stream position.
+     * @throws IOException
+     *             Thrown if the working copy could not be opened.
+     */
+    private RandomAccessFile input() throws IOException {
+        if (mIn == null) {
+            mIn = new RandomAccessFile(mWorkingFile, "r");
+        }
+        return mIn;
+    }
+
+    /**
+     * Get the staging output stream, opening it if necessary. Must be called with the lock held.
+     * 
+     * @return Staging stream.
+     * @throws IOException
+     *             Thrown if the staging file could not be opened.
+     */
+    private OutputStream output() throws IOException {
+        if (mOut == null) {
+            mOut = new FileOutputStream(mStagingFile);
+        }
+        return mOut;
+    }
+
+    /**
+     * Get the file name.
+     * 
+     * @return File name, or null.
+     */
+    private synchronized String getFileNameLocked() {
+        return mFileName;
+    }
+
+    /**
+     * Copy one end of a channel pipe, at the stand-in's bandwidth.
+     * 
+     * @param in
+     *            Source.
+     * @param out
+     *            Destination, or null to stage into the transaction and commit at end of stream.
+     * @param commit
+     *            Whether this is the write channel.
+     */
+    private void pump(final InputStream in, final OutputStream out, final boolean commit) {
+        byte[] buffer = new byte[COPY_CHUNK_SIZE];
+        try {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                mService.throttle(len);
+                if (commit) {
+                    synchronized (this) {
+                        output().write(buffer, 0, len);
+                    }
+                }
+                else {
+                    out.write(buffer, 0, len);
+                }
+            }
+            if (commit) {
+                oClose();
+            }
+        }
+        catch (IOException e) {
+            // Other end went away.
+        }
+        catch (RemoteException e) {
+            // Injected failure. The other end sees the pipe break.
+        }
+        finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Copy the working copy into the root directory asynchronously, reporting progress as each chunk arrives.
+     * 
+     * @param target
+     *            File to upload to, or null if there is none.
+     * @param uploadCallbacks
+     *            Callbacks to report to.
+     */
+    private void upload(final File target, final FileUploadCallbacks uploadCallbacks) {
+        mService.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    if (target == null) {
+                        uploadCallbacks.onError();
+                        return;
+                    }
+                    File part = new File(target.getPath() + ".part");
+                    long total = mWorkingFile.length();
+                    InputStream in = new FileInputStream(mWorkingFile);
+                    OutputStream out = new FileOutputStream(part);
+                    try {
+                        byte[] buffer = new byte[COPY_CHUNK_SIZE];
+                        long transferred = 0;
+                        int len;
+                        while ((len = in.read(buffer)) != -1) {
+                            beforeCall();
+                            mService.throttle(len);
+                            out.write(buffer, 0, len);
+                            transferred += len;
+                            uploadCallbacks.onProgress(transferred, total);
+                        }
+                    }
+                    finally {
+                        closeQuietly(in);
+                        closeQuietly(out);
+                    }
+                    commitUpload(part, target);
+                    uploadCallbacks.onComplete();
+                }
+                catch (IOException e) {
+                    reportError(uploadCallbacks);
+                }
+                catch (RemoteException e) {
+                    reportError(uploadCallbacks);
+                }
+            }
+        });
+    }
+
+    /**
+     * Upload the working copy from an offset onwards asynchronously, acknowledging each chunk with its CRC32 as it is stored.
+     * 
+     * @param session
+     *            Upload session.
+     * @param offset
+     *            Offset to start from.
+     * @param uploadCallbacks
+     *            Callbacks to report to.
+     */
+    private void uploadChunks(final UploadSession session, final long offset, final ChunkedUploadCallbacks uploadCallbacks) {
+        mService.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                File part = new File(session.mTarget.getPath() + ".part");
+                long acknowledged = offset;
+                RandomAccessFile in = null;
+                RandomAccessFile out = null;
+                try {
+                    in = new RandomAccessFile(mWorkingFile, "r");
+                    out = new RandomAccessFile(part, "rw");
+                    long total = in.length();
+                    byte[] buffer = new byte[session.mChunkSize];
+                    CRC32 crc = new CRC32();
+                    in.seek(offset);
+                    out.seek(offset);
+                    while (acknowledged < total) {
+                        if (session.mCancelled) {
+                            return;
+                        }
+                        int length = (int) Math.min(buffer.length, total - acknowledged);
+                        in.readFully(buffer, 0, length);
+                        try {
+                            beforeCall();
+                            mService.throttle(length);
+                        }
+                        catch (RemoteException e) {
+                            uploadCallbacks.onError(LocalBoxService.ERROR_INJECTED_FAILURE, "Injected failure", acknowledged);
+                            return;
+                        }
+                        out.write(buffer, 0, length);
+                        crc.reset();
+                        crc.update(buffer, 0, length);
+                        uploadCallbacks.onChunkAcknowledged(acknowledged, length, crc.getValue());
+                        acknowledged += length;
+                        uploadCallbacks.onProgress(acknowledged, total);
+                    }
+                    out.setLength(total);
+                    closeQuietly(out);
+                    out = null;
+                    commitUpload(part, session.mTarget);
+                    synchronized (LocalOneCloudInterface.this) {
+                        mSessions.remove(session.mId);
+                    }
+                    uploadCallbacks.onComplete();
+                }
+                catch (IOException e) {
+                    try {
+                        uploadCallbacks.onError(ERROR_IO, String.valueOf(e.getMessage()), acknowledged);
+                    }
+                    catch (RemoteException e1) {
+                        // App went away.
+                    }
+                }
+                catch (RemoteException e) {
+                    // App went away.
+                }
+                finally {
+                    closeQuietly(in);
+                    closeQuietly(out);
+                }
+            }
+        });
+    }
+
+    /**
+     * Move a finished upload into place and make it the file this transaction refers to.
+     * 
+     * @param part
+     *            Uploaded data.
+     * @param target
+     *            Its place in the root directory.
+     * @throws IOException
+     *             Thrown if it could not be moved.
+     */
+    private void commitUpload(final File part, final File target) throws IOException {
+        if (target.exists() && !target.delete() || !part.renameTo(target)) {
+            throw new IOException("Could not store " + target);
+        }
+        synchronized (this) {
+            mFileName = target.getName();
+        }
+    }
+
+    /**
+     * Pick a name for a new file in the root directory that does not collide with an existing one, as Box does.
+     * 
+     * @param suggestedFileName
+     *            Suggested name.
+     * @return File.
+     */
+    private File uniqueFile(final String suggestedFileName) {
+        String name = suggestedFileName != null ? suggestedFileName : "Untitled";
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        File file = new File(mRoot, name);
+        for (int i = 1; file.exists(); i++) {
+            file = new File(mRoot, base + " (" + i + ")" + extension);
+        }
+        return file;
+    }
+
+    /**
+     * Report a failed plain upload.
+     * 
+     * @param uploadCallbacks
+     *            Callbacks to report to.
+     */
+    private static void reportError(final FileUploadCallbacks uploadCallbacks) {
+        try {
+            uploadCallbacks.onError();
+        }
+        catch (RemoteException e) {
+            // App went away.
+        }
+    }
+
+    /**
+     * Guess a mime type from a file name.
+     * 
+     * @param fileName
+     *            File name, or null.
+     * @return Mime type.
+     */
+    private static String guessMimeType(final String fileName) {
+        String mimeType = fileName != null ? URLConnection.guessContentTypeFromName(fileName) : null;
+        return mimeType != null ? mimeType : "application/octet-stream";
+    }
+
+    /**
+     * Copy a file.
+     * 
+     * @param source
+     *            Source.
+     * @param destination
+     *            Destination.
+     * @throws IOException
+     *             Thrown if the copy failed.
+     */
+    private static void copy(final File source, final File destination) throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(destination);
+            try {
+                byte[] buffer = new byte[COPY_CHUNK_SIZE];
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, len);
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Close a stream, ignoring errors.
+     * 
+     * @param stream
+     *            Stream to close, or null.
+     */
+    private static void closeQuietly(final Closeable stream) {
+        if (stream == null) {
+            return;
+        }
+        try {
+            stream.close();
+        }
+        catch (IOException e) {
+            // Nothing more to do.
+        }
+    }
+
+    /**
+     * State of one chunked upload session.
+     * 
+     */
+    private static final class UploadSession {
+
+        /** Session id. */
+        private final String mId;
+
+        /** Where the upload is stored. */
+        private final File mTarget;
+
+        /** Chunk size. */
+        private final int mChunkSize;
+
+        /** Whether the session was cancelled. */
+        private volatile boolean mCancelled;
+
+        /**
+         * Default constructor.
+         * 
+         * @param id
+         *            Session id.
+         * @param target
+         *            Where the upload is stored.
+         * @param chunkSize
+         *            Chunk size.
+         */
+        UploadSession(final String id, final File target, final int chunkSize) {
+            mId = id;
+            mTarget = target;
+            mChunkSize = chunkSize;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.box.onecloud.android;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Disk-backed cache of Box file data in fixed-size blocks, so that reopening a file that has not changed reads it from local storage instead of streaming it
+ * from Box again. Blocks are keyed by the Box file id and the content version (etag) Box reports for the data, so a new version of a file never hits old
+ * blocks. The least recently used blocks are evicted once the cache grows beyond its byte budget.
+ * 
+ * Attach a cache to a OneCloudData object with setBlockCache(); its input streams and seekable channels then go through the cache. One cache may be shared by
+ * any number of OneCloudData objects and threads, but each directory should only be used by one cache at a time. Caching requires the Box app to be at version
+ * 2.1.0 or greater; with older versions reads bypass the cache.
+ * 
+ * <pre>
+ * OneCloudBlockCache cache = new OneCloudBlockCache(new File(context.getCacheDir(), &quot;box-blocks&quot;), 50 * 1024 * 1024);
+ * oneCloudData.setBlockCache(cache);
+ * InputStream in = oneCloudData.getInputStream();
+ * </pre>
+ * 
+ */
+public final class OneCloudBlockCache {
+
+    /** Size of a cached block. Reads are rounded out to whole blocks. */
+    public static final int BLOCK_SIZE = OneCloudData.DEFAULT_CHUNK_SIZE;
+
+    /** Suffix of block files. */
+    private static final String BLOCK_SUFFIX = ".blk";
+
+    /** Suffix of block files that are still being written. */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Directory holding the blocks. */
+    private final File mDirectory;
+
+    /** Byte budget. */
+    private final long mMaxBytes;
+
+    /** Block file names mapped to their sizes, least recently used first. Guarded by this. */
+    private final LinkedHashMap<String, Long> mBlocks = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    /** Total size of the blocks. Guarded by this. */
+    private long mSize;
+
+    /** Number of block reads served from disk. Guarded by this. */
+    private long mHitCount;
+
+    /** Number of block reads that had to go to Box. Guarded by this. */
+    private long mMissCount;
+
+    /**
+     * Loads a block of file data from Box on a cache miss.
+     * 
+     */
+    interface BlockLoader {
+
+        /**
+         * Load file data.
+         * 
+         * @param position
+         *            Position of the block in the file data.
+         * @param length
+         *            Block size.
+         * @return The block, shorter than length only at the end of the file data.
+         * @throws IOException
+         *             Thrown if the data could not be loaded.
+         */
+        byte[] load(long position, int length) throws IOException;
+    }
+
+    /**
+     * Open a cache. Blocks left in the directory by an earlier cache are kept, oldest first in eviction order.
+     * 
+     * @param directory
+     *            Directory holding the blocks. Created if necessary.
+     * @param maxBytes
+     *            Byte budget. Must be at least 0.
+     */
+    public OneCloudBlockCache(final File directory, final long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Byte budget must be at least 0: " + maxBytes);
+        }
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        directory.mkdirs();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+
+            @Override
+            public int compare(final File lhs, final File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : lhsModified == rhsModified ? 0 : 1;
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(BLOCK_SUFFIX)) {
+                mBlocks.put(file.getName(), file.length());
+                mSize += file.length();
+            }
+            else if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            }
+        }
+        trimToSize();
+    }
+
+    /**
+     * Get the byte budget.
+     * 
+     * @return Maximum total size of the cached blocks.
+     */
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Get the total size of the cached blocks.
+     * 
+     * @return Size in bytes.
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Get the number of block reads served from the cache.
+     * 
+     * @return Hit count.
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Get the number of block reads that had to go to Box.
+     * 
+     * @return Miss count.
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Drop every cached version of a file. OneCloudData.notifyDataChanged() does this for files read through the cache.
+     * 
+     * @param fileId
+     *            Box file id.
+     */
+    public synchronized void invalidate(final long fileId) {
+        String prefix = fileId + "-";
+        Iterator<Map.Entry<String, Long>> iterator = mBlocks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                iterator.remove();
+                mSize -= entry.getValue();
+                new File(mDirectory, entry.getKey()).delete();
+            }
+        }
+    }
+
+    /**
+     * Drop every cached block.
+     */
+    public synchronized void clear() {
+        for (String name : mBlocks.keySet()) {
+            new File(mDirectory, name).delete();
+        }
+        mBlocks.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Build the cache key of one version of a file.
+     * 
+     * @param fileId
+     *            Box file id.
+     * @param etag
+     *            Content version reported by Box.
+     * @return Key.
+     */
+    static String key(final long fileId, final String etag) {
+        StringBuilder key = new StringBuilder().append(fileId).append('-');
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(etag.getBytes("UTF-8"));
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+        }
+        catch (NoSuchAlgorithmException e) {
+            key.append(Integer.toHexString(etag.hashCode())).append('-').append(etag.length());
+        }
+        catch (IOException e) {
+            key.append(Integer.toHexString(etag.hashCode())).append('-').append(etag.length());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Read file data through the cache. Only the block containing position is read, so fewer than length bytes may be returned even before the end of the
+     * file data.
+     * 
+     * @param key
+     *            Cache key of the file version, from key().
+     * @param position
+     *            Position in the file data.
+     * @param length
+     *            Largest number of bytes to return.
+     * @param loader
+     *            Loads the block from Box on a miss.
+     * @return Bytes read, or null if position is at or past the end of the file data.
+     * @throws IOException
+     *             Thrown if the block was not cached and could not be loaded.
+     */
+    byte[] read(final String key, final long position, final int length, final BlockLoader loader) throws IOException {
+        long index = position / BLOCK_SIZE;
+        String name = key + "-" + index + BLOCK_SUFFIX;
+        byte[] block = readBlock(name);
+        if (block == null) {
+            block = loader.load(index * BLOCK_SIZE, BLOCK_SIZE);
+            if (block == null) {
+                block = new byte[0];
+            }
+            writeBlock(name, block);
+        }
+        int offset = (int) (position - index * BLOCK_SIZE);
+        if (offset >= block.length) {
+            return null;
+        }
+        if (offset == 0 && length >= block.length) {
+            return block;
+        }
+        return Arrays.copyOfRange(block, offset, Math.min(block.length, offset + length));
+    }
+
+    /**
+     * Read a cached block.
+     * 
+     * @param name
+     *            Block file name.
+     * @return Block, or null on a miss.
+     */
+    private byte[] readBlock(final String name) {
+        synchronized (this) {
+            if (mBlocks.get(name) == null) {
+                mMissCount++;
+                return null;
+            }
+        }
+        File file = new File(mDirectory, name);
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] block = new byte[(int) file.length()];
+                int read = 0;
+                int len;
+                while (read < block.length && (len = in.read(block, read, block.length - read)) != -1) {
+                    read += len;
+                }
+                if (read < block.length) {
+                    throw new IOException("Short block " + name);
+                }
+                synchronized (this) {
+                    mHitCount++;
+                }
+                // Keeps the eviction order across restarts.
+                file.setLastModified(System.currentTimeMillis());
+                return block;
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            // Evicted in the meantime, or damaged. Load it again.
+            synchronized (this) {
+                Long size = mBlocks.remove(name);
+                if (size != null) {
+                    mSize -= size;
+                }
+                mMissCount++;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Store a block and evict the least recently used blocks beyond the budget. Failures are ignored; the block is just not cached.
+     * 
+     * @param name
+     *            Block file name.
+     * @param block
+     *            Block.
+     */
+    private void writeBlock(final String name, final byte[] block) {
+        if (block.length > mMaxBytes) {
+            return;
+        }
+        File temp = new File(mDirectory, name + TEMP_SUFFIX);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(block);
+            }
+            finally {
+                out.close();
+            }
+            synchronized (this) {
+                if (!temp.renameTo(new File(mDirectory, name))) {
+                    throw new IOException("Could not store block " + name);
+                }
+                Long previous = mBlocks.put(name, (long) block.length);
+                mSize += block.length - (previous != null ? previous : 0);
+                trimToSize();
+            }
+        }
+        catch (IOException e) {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Evict the least recently used blocks until the cache is within its budget.
+     */
+    private synchronized void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iterator = mBlocks.entrySet().iterator();
+        while (mSize > mMaxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            iterator.remove();
+            mSize -= entry.getValue();
+            new File(mDirectory, entry.getKey()).delete();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.box.onecloud.android;
+
+import java.util.ArrayDeque;
+
+/**
+ * Thread-safe pool of byte arrays in power-of-two size classes from MIN_BUFFER_SIZE up to OneCloudData.MAX_CHUNK_SIZE. The streams, channels and transform
+ * pipeline of this SDK take their chunk buffers from the default pool and give them back when they are done, so that once a transfer has warmed up it no
+ * longer allocates. Apps can share the default pool for their own copy loops through acquire() and release().
+ * 
+ * <pre>
+ * byte[] buffer = OneCloudBufferPool.getDefault().acquire(OneCloudData.DEFAULT_CHUNK_SIZE);
+ * try {
+ *     while ((len = in.read(buffer, 0, OneCloudData.DEFAULT_CHUNK_SIZE)) != -1) {
+ *         out.write(buffer, 0, len);
+ *     }
+ * }
+ * finally {
+ *     OneCloudBufferPool.getDefault().release(buffer);
+ * }
+ * </pre>
+ * 
+ * getAllocationCount() only increases when the pool has to allocate, so comparing it before and after a transfer shows whether the transfer ran
+ * allocation-free.
+ * 
+ */
+public final class OneCloudBufferPool {
+
+    /** Size of the smallest size class. Smaller requests are served from this class. */
+    public static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+    /** Default number of idle buffers kept per size class. */
+    public static final int DEFAULT_MAX_IDLE_PER_CLASS = 8;
+
+    /** Pool used by the SDK. */
+    private static final OneCloudBufferPool sDefault = new OneCloudBufferPool(DEFAULT_MAX_IDLE_PER_CLASS);
+
+    /** Number of idle buffers kept per size class. Extra released buffers are left to the garbage collector. */
+    private final int mMaxIdlePerClass;
+
+    /** Idle buffers per size class, smallest class first. Guarded by this. */
+    private final ArrayDeque<byte[]>[] mIdle;
+
+    /** Number of buffers allocated by this pool. Guarded by this. */
+    private long mAllocationCount;
+
+    /** Number of bytes allocated by this pool. Guarded by this. */
+    private long mAllocatedBytes;
+
+    /** Number of acquire() calls served from an idle buffer. Guarded by this. */
+    private long mReuseCount;
+
+    /**
+     * Create a pool.
+     * 
+     * @param maxIdlePerClass
+     *            Number of idle buffers kept per size class. Must be at least 0.
+     */
+    @SuppressWarnings("unchecked")
+    public OneCloudBufferPool(final int maxIdlePerClass) {
+        if (maxIdlePerClass < 0) {
+            throw new IllegalArgumentException("Idle buffer limit must be at least 0: " + maxIdlePerClass);
+        }
+        mMaxIdlePerClass = maxIdlePerClass;
+        mIdle = new ArrayDeque[sizeClass(OneCloudData.MAX_CHUNK_SIZE) + 1];
+        for (int i = 0; i < mIdle.length; i++) {
+            mIdle[i] = new ArrayDeque<byte[]>();
+        }
+    }
+
+    /**
+     * Get the pool used by the SDK's own streams.
+     * 
+     * @return Default pool.
+     */
+    public static OneCloudBufferPool getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Get a buffer of at least the given size. The buffer may be longer than requested and its contents are undefined. Give it back with release() once it
+     * is no longer used.
+     * 
+     * @param minSize
+     *            Minimum buffer size. Must be between 0 and OneCloudData.MAX_CHUNK_SIZE.
+     * @return Buffer.
+     */
+    public byte[] acquire(final int minSize) {
+        if (minSize < 0 || minSize > OneCloudData.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be between 0 and " + OneCloudData.MAX_CHUNK_SIZE + ": " + minSize);
+        }
+        int sizeClass = sizeClass(minSize);
+        synchronized (this) {
+            byte[] buffer = mIdle[sizeClass].pollFirst();
+            if (buffer != null) {
+                mReuseCount++;
+                return buffer;
+            }
+            mAllocationCount++;
+            mAllocatedBytes += MIN_BUFFER_SIZE << sizeClass;
+        }
+        return new byte[MIN_BUFFER_SIZE << sizeClass];
+    }
+
+    /**
+     * Give a buffer back to the pool. The caller must not touch the buffer afterwards, and must not release the same buffer twice. Buffers that did not come
+     * from acquire() are accepted as long as their length is one of the size classes; anything else is ignored.
+     * 
+     * @param buffer
+     *            Buffer, or null.
+     */
+    public void release(final byte[] buffer) {
+        if (buffer == null || buffer.length < MIN_BUFFER_SIZE || buffer.length > OneCloudData.MAX_CHUNK_SIZE) {
+            return;
+        }
+        int sizeClass = sizeClass(buffer.length);
+        if (MIN_BUFFER_SIZE << sizeClass != buffer.length) {
+            return;
+        }
+        synchronized (this) {
+            ArrayDeque<byte[]> idle = mIdle[sizeClass];
+            if (idle.size() < mMaxIdlePerClass) {
+                idle.addFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     * Drop all idle buffers, for example from ComponentCallbacks2.onTrimMemory().
+     */
+    public synchronized void trim() {
+        for (ArrayDeque<byte[]> idle : mIdle) {
+            idle.clear();
+        }
+    }
+
+    /**
+     * Get the number of buffers this pool has allocated since it was created.
+     * 
+     * @return Allocation count.
+     */
+    public synchronized long getAllocationCount() {
+        return mAllocationCount;
+    }
+
+    /**
+     * Get the number of bytes this pool has allocated since it was created.
+     * 
+     * @return Allocated bytes.
+     */
+    public synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    /**
+     * Get the number of acquire() calls that were served without allocating.
+     * 
+     * @return Reuse count.
+     */
+    public synchronized long getReuseCount() {
+        return mReuseCount;
+    }
+
+    /**
+     * Get the number of bytes held in idle buffers.
+     * 
+     * @return Idle bytes.
+     */
+    public synchronized long getIdleBytes() {
+        long bytes = 0;
+        for (int i = 0; i < mIdle.length; i++) {
+            bytes += (long) mIdle[i].size() * (MIN_BUFFER_SIZE << i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the size class that serves a buffer size.
+     * 
+     * @param size
+     *            Buffer size, at most OneCloudData.MAX_CHUNK_SIZE.
+     * @return Index of the smallest size class at least as large as size.
+     */
+    private static int sizeClass(final int size) {
+        int sizeClass = 0;
+        while (MIN_BUFFER_SIZE << sizeClass < size) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+}
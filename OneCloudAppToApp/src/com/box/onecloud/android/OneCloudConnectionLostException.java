@@ -0,0 +1,22 @@
+package com.box.onecloud.android;
+
+import java.io.IOException;
+
+/**
+ * Thrown by OneCloudData streams and reads when the Box app process has died, as it may when the system is low on memory. Unlike other IOExceptions, retrying
+ * on the same OneCloudData object cannot succeed unless automatic reconnection is turned on with OneCloudData.setAutoReconnect(); otherwise restore the
+ * transaction with OneCloudData.restoreFromToken().
+ * 
+ */
+public class OneCloudConnectionLostException extends IOException {
+
+    /** Serialization version. */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default constructor.
+     */
+    public OneCloudConnectionLostException() {
+        super("The Box app is no longer running.");
+    }
+}
@@ -1,34 +1,119 @@
 package com.box.onecloud.android;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Binder;
+import android.os.DeadObjectException;
+import android.os.IBinder;
 import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 import android.os.RemoteException;
 
 /**
  * Represents a OneCloud transaction. Data can be read and written to through this, and can be uploaded back to Box. This class implements Parcelable which
  * means you can pass it around your activities and other contexts through intent extras.
+ * 
+ * A single instance may be shared by any number of threads without external synchronization. Verification of the binder moves through the states unverified,
+ * verifying, verified and dead without locks, so checking it on every call is a single volatile read once the handshake has completed.
+ * 
+ * If the Box app process dies, for example under memory pressure, the object notices straight away through a death notification. Uploads waiting for Box
+ * fail with onError(), and streams and reads throw OneCloudConnectionLostException. With setAutoReconnect(), the transaction is instead restored through its
+ * token on the next call, and input streams and read sessions carry on from where they were.
  */
 public class OneCloudData implements Parcelable {
 
-    /** Binder back to Box through AIDL. */
-    private OneCloudInterface mBinder;
+    /** Default number of bytes transferred per binder transaction by the streams of this class. */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
 
-    /** Whether or not a handshake has taken place to verify the identity on the other side of the binder. */
-    private boolean mHandshaken = false;
+    /**
+     * Largest number of bytes the streams of this class will transfer per binder transaction. Binder transactions share a 1MB buffer per process, so chunks are
+     * kept well below it.
+     */
+    public static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    /** Time after which createNewSibling() and restoreFromToken() give up waiting for Box. */
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 3000;
+
+    /** Default number of full chunks an output stream lets wait for its writer thread before writers block. */
+    private static final int DEFAULT_MAX_PENDING_CHUNKS = 4;
+
+    /** Time a local write channel pump may go without moving any data before the write channel is considered left open. */
+    private static final long WRITE_CHANNEL_IDLE_TIMEOUT_MILLIS = 10000;
+
+    /** State before the identity on the other side of the binder has been verified. */
+    private static final int STATE_UNVERIFIED = 0;
+
+    /** State while a handshake is in flight. */
+    private static final int STATE_VERIFYING = 1;
+
+    /** State once a handshake has verified that the other side of the binder is Box. */
+    private static final int STATE_VERIFIED = 2;
+
+    /** State once the binder has died. Final, unless automatic reconnection restores the transaction. */
+    private static final int STATE_DEAD = 3;
+
+    /** Binder back to Box through AIDL, instrumented for OneCloudMetrics. */
+    private volatile OneCloudInterface mBinder;
+
+    /** Verification state of the binder. */
+    private final AtomicInteger mState = new AtomicInteger(STATE_UNVERIFIED);
+
+    /** Application context for a handshake deferred by prepareHandshake(), or null if none is pending. */
+    private final AtomicReference<Context> mPendingHandshakeContext = new AtomicReference<Context>();
+
+    /** Counted down when the handshake in flight completes, or null if none is in flight. Concurrent callers wait on it instead of sending their own. */
+    private final AtomicReference<CountDownLatch> mHandshakeInFlight = new AtomicReference<CountDownLatch>();
 
     /** Box app version. Gets sent during handshake. */
-    private int mBoxAppVersionCode = 0;
+    private volatile int mBoxAppVersionCode = 0;
+
+    /** Cached metadata snapshot, or null if it has not been fetched or has been invalidated. */
+    private volatile OneCloudMetadata mMetadata;
+
+    /** Bumped by every invalidation, so a fetch that raced with one does not cache its stale result. Guarded by mMetadataLock. */
+    private int mMetadataGeneration;
+
+    /** Guards mMetadataGeneration and writes to mMetadata. Never held across a binder call. */
+    private final Object mMetadataLock = new Object();
+
+    /** Background pump feeding a locally created write channel into the output stream when the Box app does not support bulk channels. */
+    private volatile ChannelPump mWriteChannelPump;
+
+    /** Cache that input streams and seekable channels read through, or null. */
+    private volatile OneCloudBlockCache mBlockCache;
+
+    /** Death notification registered on the binder, or null. */
+    private volatile IBinder.DeathRecipient mDeathRecipient;
+
+    /** Context used to restore the transaction if Box dies, or null if automatic reconnection is off. */
+    private volatile Context mReconnectContext;
+
+    /** Token used to restore the transaction if Box dies. */
+    private volatile long mReconnectToken = -1;
+
+    /** Serializes binder deaths and reconnections. Never held on the verified fast path. */
+    private final Object mReconnectLock = new Object();
+
+    /** Operations waiting for callbacks from Box, each run once if Box dies first. */
+    private final Set<Runnable> mInFlight = new CopyOnWriteArraySet<Runnable>();
 
     /**
      * Default constructor.
@@ -37,7 +122,8 @@ public class OneCloudData implements Parcelable {
      *            OneCloudInterface.
      */
     public OneCloudData(final OneCloudInterface binder) {
-        mBinder = binder;
+        mBinder = InstrumentedOneCloudInterface.wrap(binder);
+        watch(mBinder);
     }
 
     /**
@@ -73,21 +159,67 @@ public class OneCloudData implements Parcelable {
     }
 
     /**
-     * If this transaction relates to a particular file on Box, then this will return the name of that file. Note that this method always returns the file name
-     * that is actually on Box. For example, if you are uploading a new file to Box, this method will return null until the upload has actually completed.
+     * Get a snapshot of everything Box knows about this transaction. The snapshot is fetched in a single binder transaction the first time it is needed and
+     * then cached, so this and the individual info getters are plain field reads afterwards. The cache is invalidated by notifyDataChanged(), by the
+     * completion of an upload, and by refreshMetadata(). If the installed Box app is older than 2.0.0, the snapshot is assembled from the individual binder
+     * getters instead, and fields the Box app does not support are left at null or -1.
      * 
-     * @return File name on Box.
+     * @return Metadata snapshot, or null if it could not be retrieved.
      */
-    public String getFileName() {
+    public OneCloudMetadata getMetadata() {
+        OneCloudMetadata metadata = mMetadata;
+        if (metadata != null) {
+            return metadata;
+        }
         if (!isBinderValid()) {
             return null;
         }
+        int generation;
+        synchronized (mMetadataLock) {
+            generation = mMetadataGeneration;
+        }
         try {
-            return mBinder.getFileName();
+            if (mBoxAppVersionCode >= 20000) {
+                metadata = mBinder.getMetadata();
+            }
+            else if (mBoxAppVersionCode >= 19000) {
+                metadata = new OneCloudMetadata(mBinder.getFileName(), mBinder.getMimeType(), mBinder.getFileSize(), mBinder.getFileId(),
+                    mBinder.getFolderId(), mBinder.getFolderPath(), mBinder.getUsername());
+            }
+            else {
+                metadata = new OneCloudMetadata(mBinder.getFileName(), mBinder.getMimeType(), mBinder.getFileSize(), -1, -1, null, null);
+            }
         }
         catch (RemoteException e) {
             return null;
         }
+        synchronized (mMetadataLock) {
+            if (generation == mMetadataGeneration) {
+                mMetadata = metadata;
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Discard the cached metadata snapshot and fetch a fresh one from Box.
+     * 
+     * @return Metadata snapshot, or null if it could not be retrieved.
+     */
+    public OneCloudMetadata refreshMetadata() {
+        invalidateMetadata();
+        return getMetadata();
+    }
+
+    /**
+     * If this transaction relates to a particular file on Box, then this will return the name of that file. Note that this method always returns the file name
+     * that is actually on Box. For example, if you are uploading a new file to Box, this method will return null until the upload has actually completed.
+     * 
+     * @return File name on Box.
+     */
+    public String getFileName() {
+        OneCloudMetadata metadata = getMetadata();
+        return metadata == null ? null : metadata.getFileName();
     }
 
     /**
@@ -97,15 +229,8 @@ public class OneCloudData implements Parcelable {
      * @return File size on Box.
      */
     public long getFileSize() {
-        if (!isBinderValid()) {
-            return 0;
-        }
-        try {
-            return mBinder.getFileSize();
-        }
-        catch (RemoteException e) {
-            return 0;
-        }
+        OneCloudMetadata metadata = getMetadata();
+        return metadata == null ? 0 : metadata.getFileSize();
     }
 
     /**
@@ -115,15 +240,8 @@ public class OneCloudData implements Parcelable {
      * @return Mime type.
      */
     public String getMimeType() {
-        if (!isBinderValid()) {
-            return null;
-        }
-        try {
-            return mBinder.getMimeType();
-        }
-        catch (RemoteException e) {
-            return null;
-        }
+        OneCloudMetadata metadata = getMetadata();
+        return metadata == null ? null : metadata.getMimeType();
     }
 
     /**
@@ -137,15 +255,8 @@ public class OneCloudData implements Parcelable {
         if (mBoxAppVersionCode < 19000) {
             throw new NoSuchMethodException("Requires Box app version 1.9.0 or later.");
         }
-        if (!isBinderValid()) {
-            return -1;
-        }
-        try {
-            return mBinder.getFileId();
-        }
-        catch (RemoteException e) {
-            return -1;
-        }
+        OneCloudMetadata metadata = getMetadata();
+        return metadata == null ? -1 : metadata.getFileId();
     }
 
     /**
@@ -159,15 +270,8 @@ public class OneCloudData implements Parcelable {
         if (mBoxAppVersionCode < 19000) {
             throw new NoSuchMethodException("Requires Box app version 1.9.0 or later.");
         }
-        if (!isBinderValid()) {
-            return -1;
-        }
-        try {
-            return mBinder.getFolderId();
-        }
-        catch (RemoteException e) {
-            return -1;
-        }
+        OneCloudMetadata metadata = getMetadata();
+        return metadata == null ? -1 : metadata.getFolderId();
     }
 
     /**
@@ -181,15 +285,8 @@ public class OneCloudData implements Parcelable {
         if (mBoxAppVersionCode < 19000) {
             throw new NoSuchMethodException("Requires Box app version 1.9.0 or later.");
         }
-        if (!isBinderValid()) {
-            return null;
-        }
-        try {
-            return mBinder.getFolderPath();
-        }
-        catch (RemoteException e) {
-            return null;
-        }
+        OneCloudMetadata metadata = getMetadata();
+        return metadata == null ? null : metadata.getFolderPath();
     }
 
     /**
@@ -204,29 +301,123 @@ public class OneCloudData implements Parcelable {
         if (mBoxAppVersionCode < 19000) {
             throw new NoSuchMethodException("Requires Box app version 1.9.0 or later.");
         }
-        if (!isBinderValid()) {
+        OneCloudMetadata metadata = getMetadata();
+        return metadata == null ? null : metadata.getUsername();
+    }
+
+    /**
+     * Open an input stream to retrieve the Box file data. Data is fetched from Box in chunks of DEFAULT_CHUNK_SIZE bytes, so reading small amounts at a time
+     * does not cost a binder transaction per read.
+     * 
+     * @return InputStream from which you can read the Box file data, or null if the input stream could no longer be retrieved.
+     */
+    public InputStream getInputStream() {
+        return getInputStream(DEFAULT_CHUNK_SIZE, false);
+    }
+
+    /**
+     * Open an input stream to retrieve the Box file data. Data is fetched from Box in chunks of the given size and read(), skip(), mark()/reset() and
+     * available() are served locally from the current chunk.
+     * 
+     * @param chunkSize
+     *            Number of bytes to fetch from Box per binder transaction. Must be between 1 and MAX_CHUNK_SIZE.
+     * @param prefetch
+     *            True to fetch the next chunk on a background thread while the current one is being read. Useful when processing each chunk takes about as
+     *            long as fetching it.
+     * @return InputStream from which you can read the Box file data, or null if the input stream could no longer be retrieved.
+     */
+    public InputStream getInputStream(final int chunkSize, final boolean prefetch) {
+        String cacheKey = getBlockCacheKey();
+        InputStream source = cacheKey != null ? new BlockCacheInputStream(this, cacheKey) : openBinderInputStream();
+        if (source == null) {
             return null;
         }
-        try {
-            return mBinder.getUsername();
-        }
-        catch (RemoteException e) {
-            return null;
+        return new ReadAheadInputStream(source, chunkSize, prefetch);
+    }
+
+    /**
+     * Read the Box file data through a local block cache from now on. Input streams and seekable channels opened afterwards serve blocks of the current
+     * version of the file from the cache and only fetch missing blocks from Box, so reopening an unchanged file is a local read. This requires the Box app to
+     * be at version 2.1.0 or greater and to report a file id and content version for the file; otherwise reads bypass the cache.
+     * 
+     * @param cache
+     *            Cache, or null to stop caching.
+     */
+    public void setBlockCache(final OneCloudBlockCache cache) {
+        mBlockCache = cache;
+    }
+
+    /**
+     * Get the block cache reads go through.
+     * 
+     * @return Cache, or null if none is set.
+     */
+    public OneCloudBlockCache getBlockCache() {
+        return mBlockCache;
+    }
+
+    /**
+     * Replace the Box file data with a transformation of itself, for example a compressed or encrypted copy. Reading from Box, transforming and writing back
+     * to Box each run on their own thread with a fixed pool of reusable chunks, so the whole operation takes about as long as its slowest stage. When this
+     * returns, the new data has reached Box and is ready to be uploaded. This blocks, so do not call it on the main thread.
+     * 
+     * @param transformer
+     *            Transformation to apply.
+     * @return Number of bytes of transformed data written to Box.
+     * @throws IOException
+     *             Thrown if reading, transforming or writing failed, or if the connection to Box is no longer active.
+     */
+    public long transform(final Transformer transformer) throws IOException {
+        return transform(transformer, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_PENDING_CHUNKS);
+    }
+
+    /**
+     * Replace the Box file data with a transformation of itself, for example a compressed or encrypted copy. Reading from Box, transforming and writing back
+     * to Box each run on their own thread with a fixed pool of reusable chunks, so the whole operation takes about as long as its slowest stage. When this
+     * returns, the new data has reached Box and is ready to be uploaded. This blocks, so do not call it on the main thread.
+     * 
+     * @param transformer
+     *            Transformation to apply.
+     * @param chunkSize
+     *            Number of bytes transferred per binder transaction. Must be between 1 and MAX_CHUNK_SIZE.
+     * @param depth
+     *            Number of chunks on each side of the transformer, bounding how far one stage may run ahead of the next. Must be at least 1.
+     * @return Number of bytes of transformed data written to Box.
+     * @throws IOException
+     *             Thrown if reading, transforming or writing failed, or if the connection to Box is no longer active.
+     */
+    public long transform(final Transformer transformer, final int chunkSize, final int depth) throws IOException {
+        awaitWriteChannel();
+        InputStream source = openBinderInputStream();
+        OutputStream sink = openBinderOutputStream();
+        if (source == null || sink == null) {
+            throw inactiveError();
         }
+        return new TransformPipeline(source, sink, chunkSize, depth).run(transformer);
     }
 
     /**
-     * Open an input stream to retrieve the Box file data.
+     * Open an input stream that maps every call directly onto a binder transaction. If Box dies and the transaction is restored by automatic reconnection,
+     * the stream skips the new binder's input stream to the position it had reached and carries on.
      * 
-     * @return InputStream from which you can read the Box file data, or null if the input stream could no longer be retrieved.
+     * @return InputStream backed by the binder, or null if the input stream could no longer be retrieved.
      */
-    public InputStream getInputStream() {
+    private InputStream openBinderInputStream() {
         if (!isBinderValid()) {
             return null;
         }
 
         InputStream inputStream = new InputStream() {
 
+            /** Number of bytes read or skipped so far. */
+            private long mPosition;
+
+            /** Position of the mark. */
+            private long mMarkPosition;
+
+            /** Binder the mark was set on. */
+            private OneCloudInterface mMarkBinder = mBinder;
+
             @Override
             public int available() {
                 try {
@@ -249,12 +440,15 @@ public class OneCloudData implements Parcelable {
 
             @Override
             public void mark(final int readlimit) {
+                OneCloudInterface binder = mBinder;
                 try {
-                    mBinder.iMark(readlimit);
+                    binder.iMark(readlimit);
                 }
                 catch (RemoteException e) {
                     return;
                 }
+                mMarkPosition = mPosition;
+                mMarkBinder = binder;
             }
 
             @Override
@@ -269,239 +463,912 @@ public class OneCloudData implements Parcelable {
 
             @Override
             public int read(final byte[] buffer) throws IOException {
-                try {
-                    return mBinder.iReadAll(buffer);
-                }
-                catch (RemoteException e) {
-                    throw new IOException();
-                }
+                return read(buffer, 0, buffer.length);
             }
 
             @Override
             public int read() throws IOException {
-                try {
-                    return mBinder.iReadOne();
-                }
-                catch (RemoteException e) {
-                    throw new IOException();
+                for (int attempt = 0;; attempt++) {
+                    OneCloudInterface binder = mBinder;
+                    try {
+                        int oneByte = binder.iReadOne();
+                        if (oneByte != -1) {
+                            mPosition++;
+                        }
+                        return oneByte;
+                    }
+                    catch (RemoteException e) {
+                        resume(binder, e, attempt);
+                    }
                 }
             }
 
             @Override
             public int read(final byte[] buffer, final int offset, final int length) throws IOException {
-                try {
-                    return mBinder.iRead(buffer, offset, length);
-                }
-                catch (RemoteException e) {
-                    throw new IOException();
+                for (int attempt = 0;; attempt++) {
+                    OneCloudInterface binder = mBinder;
+                    try {
+                        int read;
+                        if (mBoxAppVersionCode >= 20000) {
+                            read = readBounded(binder, buffer, offset, length);
+                        }
+                        else {
+                            read = binder.iRead(buffer, offset, length);
+                        }
+                        if (read > 0) {
+                            mPosition += read;
+                        }
+                        return read;
+                    }
+                    catch (RemoteException e) {
+                        resume(binder, e, attempt);
+                    }
                 }
             }
 
             @Override
             public synchronized void reset() {
+                OneCloudInterface binder = mBinder;
                 try {
-                    mBinder.iReset();
+                    binder.iReset();
+                    if (binder != mMarkBinder) {
+                        // The mark was set before a reconnection; the new input stream only has its start to go back to.
+                        skipTo(binder, mMarkPosition);
+                    }
                 }
                 catch (RemoteException e) {
                     return;
                 }
+                catch (IOException e) {
+                    return;
+                }
+                mPosition = mMarkPosition;
             }
 
             @Override
             public long skip(final long byteCount) throws IOException {
+                for (int attempt = 0;; attempt++) {
+                    OneCloudInterface binder = mBinder;
+                    try {
+                        long skipped = binder.iSkip(byteCount);
+                        mPosition += skipped;
+                        return skipped;
+                    }
+                    catch (RemoteException e) {
+                        resume(binder, e, attempt);
+                    }
+                }
+            }
+
+            /**
+             * Recover from a failed call by reconnecting to Box and skipping the new input stream to where this one was. Only the first failure of a call is
+             * recovered from.
+             * 
+             * @param binder
+             *            Binder the call failed on.
+             * @param e
+             *            Failure.
+             * @param attempt
+             *            Number of earlier attempts at the call.
+             * @throws IOException
+             *             Thrown if the call cannot be retried.
+             */
+            private void resume(final OneCloudInterface binder, final RemoteException e, final int attempt) throws IOException {
+                if (attempt > 0 || !recover(binder, e)) {
+                    throw connectionError(e);
+                }
+                OneCloudInterface restored = mBinder;
                 try {
-                    return mBinder.iSkip(byteCount);
+                    skipTo(restored, mPosition);
                 }
-                catch (RemoteException e) {
-                    throw new IOException();
+                catch (RemoteException skipError) {
+                    throw connectionError(skipError);
+                }
+            }
+
+            /**
+             * Skip a freshly opened input stream forward to a position.
+             * 
+             * @param binder
+             *            Binder of the input stream.
+             * @param position
+             *            Position to skip to.
+             * @throws RemoteException
+             *             Thrown if the connection to Box is no longer active.
+             * @throws IOException
+             *             Thrown if the file data ends before the position.
+             */
+            private void skipTo(final OneCloudInterface binder, final long position) throws RemoteException, IOException {
+                long remaining = position;
+                while (remaining > 0) {
+                    long skipped = binder.iSkip(remaining);
+                    if (skipped <= 0) {
+                        throw new IOException("The Box file data is shorter than the position to resume from.");
+                    }
+                    remaining -= skipped;
                 }
             }
         };
         return inputStream;
     }
 
+    /**
+     * Read into a buffer through the length-bounded read transaction. Unlike iRead(), only the bytes actually read are marshalled back across the binder, so
+     * short reads do not pay for the whole destination buffer.
+     * 
+     * @param binder
+     *            Binder to read from.
+     * @param buffer
+     *            Buffer to read into.
+     * @param offset
+     *            Offset in the buffer at which to start storing bytes.
+     * @param length
+     *            Maximum number of bytes to read.
+     * @return Number of bytes read, or -1 at the end of the stream. An empty reply is taken as the end of the stream too, since returning 0 for a non-empty
+     *         read would make callers that read until -1 spin forever.
+     * @throws RemoteException
+     *             Thrown if the connection to Box is no longer active.
+     * @throws IOException
+     *             Thrown if Box returned more bytes than were asked for.
+     */
+    private static int readBounded(final OneCloudInterface binder, final byte[] buffer, final int offset, final int length)
+        throws RemoteException, IOException {
+        if (length == 0) {
+            return 0;
+        }
+        byte[] data = binder.iReadBounded(length);
+        if (data == null || data.length == 0) {
+            return -1;
+        }
+        if (data.length > length) {
+            throw new IOException("Box returned " + data.length + " bytes for a read of " + length + " bytes.");
+        }
+        System.arraycopy(data, 0, buffer, offset, data.length);
+        return data.length;
+    }
+
     /**
      * Open an output stream to write Box file data. You MUST close() the OutputStream after writing to it so that the OneCloudFile takes on the new data.
+     * Writes are coalesced into chunks of DEFAULT_CHUNK_SIZE bytes and sent to Box on a background thread, so writing small amounts at a time does not cost a
+     * binder transaction per write. Once close() has returned, all data has reached Box and it is safe to upload.
      * 
      * @return An OutputStream to which you can write Box file data, or null if the output stream could not be retrieved.
      */
     public OutputStream getOutputStream() {
+        return getOutputStream(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_PENDING_CHUNKS);
+    }
+
+    /**
+     * Open an output stream to write Box file data. You MUST close() the OutputStream after writing to it so that the OneCloudFile takes on the new data.
+     * Writes are coalesced into chunks of the given size and sent to Box on a background thread. Writers only block when maxPendingChunks chunks are waiting
+     * to be sent, and in flush() and close(), which return once everything written before them has reached Box.
+     * 
+     * @param chunkSize
+     *            Number of bytes to send to Box per binder transaction. Must be between 1 and MAX_CHUNK_SIZE.
+     * @param maxPendingChunks
+     *            Number of full chunks that may wait to be sent before writers block. Must be at least 1.
+     * @return An OutputStream to which you can write Box file data, or null if the output stream could not be retrieved.
+     */
+    public OutputStream getOutputStream(final int chunkSize, final int maxPendingChunks) {
+        OutputStream sink = openBinderOutputStream();
+        if (sink == null) {
+            return null;
+        }
+        return new WriteBehindOutputStream(sink, chunkSize, maxPendingChunks);
+    }
+
+    /**
+     * Open an output stream that maps every call directly onto a binder transaction. The stream stays on the binder it was opened on: data written before a
+     * reconnect is not on the restored transaction, so once the binder has been replaced every call fails with OneCloudConnectionLostException.
+     * 
+     * @return OutputStream backed by the binder, or null if the output stream could not be retrieved.
+     */
+    private OutputStream openBinderOutputStream() {
         if (!isBinderValid()) {
             return null;
         }
 
+        final OneCloudInterface binder = mBinder;
         OutputStream outputStream = new OutputStream() {
 
             @Override
             public void close() throws IOException {
                 try {
-                    mBinder.oClose();
+                    checkBinder().oClose();
                 }
                 catch (RemoteException e) {
-                    throw new IOException();
+                    throw connectionError(e);
                 }
             }
 
             @Override
             public void flush() throws IOException {
                 try {
-                    mBinder.oFlush();
+                    checkBinder().oFlush();
                 }
                 catch (RemoteException e) {
-                    throw new IOException();
+                    throw connectionError(e);
                 }
             }
 
             @Override
             public void write(final byte[] buffer, final int offset, final int count) throws IOException {
                 try {
-                    mBinder.oWrite(buffer, offset, count);
+                    checkBinder().oWrite(buffer, offset, count);
                 }
                 catch (RemoteException e) {
-                    throw new IOException();
+                    throw connectionError(e);
                 }
             }
 
             @Override
             public void write(final byte[] buffer) throws IOException {
                 try {
-                    mBinder.oWriteAll(buffer);
+                    checkBinder().oWriteAll(buffer);
                 }
                 catch (RemoteException e) {
-                    throw new IOException();
+                    throw connectionError(e);
                 }
             }
 
             @Override
             public void write(final int oneByte) throws IOException {
                 try {
-                    mBinder.oWriteOne(oneByte);
+                    checkBinder().oWriteOne(oneByte);
                 }
                 catch (RemoteException e) {
-                    throw new IOException();
+                    throw connectionError(e);
+                }
+            }
+
+            /**
+             * Get the binder the stream was opened on, unless it has since been replaced by a reconnect.
+             * 
+             * @return Binder.
+             * @throws OneCloudConnectionLostException
+             *             Thrown if the binder has been replaced.
+             */
+            private OneCloudInterface checkBinder() throws OneCloudConnectionLostException {
+                if (binder != mBinder) {
+                    throw new OneCloudConnectionLostException();
                 }
+                return binder;
             }
         };
         return outputStream;
     }
 
     /**
-     * Upload the contents of this OneCloudFile as a new version to Box. This overrides the current version on Box. Presumably, this means that you have written
-     * new data to this OneCloudFile by writing to the output stream which you can get from oneCloudFile.getOutputStream().
+     * Open a channel to read the Box file data in bulk. Bytes read from the returned descriptor flow through the kernel instead of costing a binder
+     * transaction per read, which makes this the preferred way to read large files. Wrap the descriptor in a ParcelFileDescriptor.AutoCloseInputStream to
+     * read from it as a stream. If the installed Box app is older than 2.0.0, the data is pumped into a local pipe through getInputStream() on a background
+     * thread instead.
      * 
-     * @param listener
-     *            An upload listener which you can use to monitor the upload progress. This can be null if you do not need to monitor the upload.
-     * @throws RemoteException
-     *             Thrown if there was a problem triggering the upload. Note, this does not get thrown if there was an error *during* and upload.
+     * @return ParcelFileDescriptor from which you can read the Box file data, or null if the channel could not be opened.
      */
-    public void uploadNewVersion(final UploadListener listener) throws RemoteException {
+    public ParcelFileDescriptor openReadChannel() {
         if (!isBinderValid()) {
-            return;
+            return null;
         }
-        mBinder.uploadNewVersion(new FileUploadCallbacks.Stub() {
-
-            @Override
-            public void onProgress(final long bytesTransferred, final long totalBytes) throws RemoteException {
-                if (listener != null) {
-                    listener.onProgress(bytesTransferred, totalBytes);
-                }
+        if (mBoxAppVersionCode >= 20000) {
+            try {
+                return mBinder.openReadChannel();
             }
-
-            @Override
-            public void onComplete() throws RemoteException {
-                if (listener != null) {
-                    listener.onComplete();
-                }
+            catch (RemoteException e) {
+                return null;
             }
+        }
 
-            @Override
-            public void onError() throws RemoteException {
-                if (listener != null) {
-                    listener.onError();
-                }
-            }
-        });
+        InputStream inputStream = getInputStream();
+        ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        }
+        catch (IOException e) {
+            return null;
+        }
+        new ChannelPump(inputStream, new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1])).start();
+        return pipe[0];
     }
 
     /**
-     * Upload the contents of this OneCloudFile as a new version to Box with a new file name. This overrides the current version on Box. Presumably, this means
-     * that you have written new data to this OneCloudFile by writing to the output stream which you can get from oneCloudFile.getOutputStream().
+     * Open a channel to write Box file data in bulk. Bytes written to the returned descriptor flow through the kernel instead of costing a binder transaction
+     * per write. You MUST close the descriptor (or the stream wrapping it) when you are done writing so that the OneCloudFile takes on the new data. If the
+     * installed Box app is older than 2.0.0, the data is pumped from a local pipe into getOutputStream() on a background thread instead, and the upload methods
+     * wait for that pump to finish. They throw IllegalStateException if no data has moved through it for WRITE_CHANNEL_IDLE_TIMEOUT_MILLIS, since the
+     * descriptor has then most likely not been closed.
      * 
-     * @param newFileName
-     *            The new file name that the file will take on in Box.
-     * @param listener
-     *            An upload listener which you can use to monitor the upload progress. This can be null if you do not need to monitor the upload.
-     * @throws RemoteException
-     *             Thrown if there was a problem triggering the upload. Note, this does not get thrown if there was an error *during* and upload.
+     * @return ParcelFileDescriptor to which you can write Box file data, or null if the channel could not be opened.
      */
-    public void uploadNewVersion(final String newFileName, final UploadListener listener) throws RemoteException {
+    public ParcelFileDescriptor openWriteChannel() {
         if (!isBinderValid()) {
-            return;
+            return null;
         }
-        mBinder.uploadNewVersionWithNewName(newFileName, new FileUploadCallbacks.Stub() {
-
-            @Override
-            public void onProgress(final long bytesTransferred, final long totalBytes) throws RemoteException {
-                if (listener != null) {
-                    listener.onProgress(bytesTransferred, totalBytes);
-                }
+        if (mBoxAppVersionCode >= 20000) {
+            try {
+                return mBinder.openWriteChannel();
             }
-
-            @Override
-            public void onComplete() throws RemoteException {
-                if (listener != null) {
-                    listener.onComplete();
-                }
+            catch (RemoteException e) {
+                return null;
             }
+        }
 
-            @Override
-            public void onError() throws RemoteException {
-                if (listener != null) {
-                    listener.onError();
-                }
-            }
-        });
+        OutputStream outputStream = getOutputStream();
+        ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        }
+        catch (IOException e) {
+            return null;
+        }
+        ChannelPump pump = new ChannelPump(new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]), outputStream);
+        pump.start();
+        mWriteChannelPump = pump;
+        return pipe[1];
     }
 
     /**
-     * Upload the contents of this OneCloudFile as a new file to Box.
+     * Open a channel for random access to the Box file data. Each read fetches only the bytes asked for, so formats with an index at the end of the file can
+     * be opened without reading the whole file. This method requires the Box app to be at version 2.1.0 or greater.
      * 
-     * @param suggestedFileName
-     *            The file name that will be suggested to the user for the new file.
-     * @param listener
-     *            An upload listener which you can use to monitor the upload progress. This can be null if you do not need to monitor the upload.
-     * @throws RemoteException
-     *             Thrown if there was a problem triggering the upload. Note, this does not get thrown if there was an error *during* and upload.
+     * @return Channel positioned at the start of the file data, or null if the connection to Box is no longer valid.
+     * @throws NoSuchMethodException
+     *             Thrown if the Box app installed does not yet support this method (you should fall back to getInputStream() or openReadChannel()).
      */
-    public void uploadNewFile(final String suggestedFileName, final UploadListener listener) throws RemoteException {
+    public OneCloudSeekableChannel openSeekableChannel() throws NoSuchMethodException {
+        if (mBoxAppVersionCode < 21000) {
+            throw new NoSuchMethodException("Requires Box app version 2.1.0 or later.");
+        }
         if (!isBinderValid()) {
-            return;
+            return null;
         }
-        mBinder.uploadNewFile(suggestedFileName, new FileUploadCallbacks.Stub() {
+        return new OneCloudSeekableChannel(this, getBlockCacheKey());
+    }
 
-            @Override
-            public void onProgress(final long bytesTransferred, final long totalBytes) throws RemoteException {
-                if (listener != null) {
-                    listener.onProgress(bytesTransferred, totalBytes);
+    /**
+     * Open an input stream with a cursor of its own. Any number of these can be open at once and read from different threads, so a thumbnailer and an indexer
+     * can read different regions of the file in parallel. They do not disturb each other or getInputStream(). Each stream should still be used by one thread at
+     * a time, and should be closed when done. With a Box app at version 2.2.0 or greater, Box keeps the cursor; with 2.1.0, or when a block cache is attached,
+     * every read is positional. This method requires the Box app to be at version 2.1.0 or greater.
+     * 
+     * @return Input stream positioned at the start of the file data, or null if the connection to Box is no longer valid.
+     * @throws NoSuchMethodException
+     *             Thrown if the Box app installed does not yet support this method (you should fall back to getInputStream()).
+     */
+    public InputStream openReadSession() throws NoSuchMethodException {
+        if (mBoxAppVersionCode < 21000) {
+            throw new NoSuchMethodException("Requires Box app version 2.1.0 or later.");
+        }
+        if (!isBinderValid()) {
+            return null;
+        }
+        String cacheKey = getBlockCacheKey();
+        if (cacheKey == null) {
+            OneCloudInterface binder = mBinder;
+            try {
+                int sessionId = openReadSession(binder);
+                if (sessionId >= 0) {
+                    return new ReadSessionInputStream(this, binder, sessionId);
                 }
             }
-
-            @Override
-            public void onComplete() throws RemoteException {
-                if (listener != null) {
-                    listener.onComplete();
+            catch (RemoteException e) {
+                return null;
+            }
+        }
+        // Box is out of sessions or predates them. Keep the cursor on our side instead.
+        return new BlockCacheInputStream(this, cacheKey);
+    }
+
+    /**
+     * Create a memory-mapped staging file for the new Box file data. Box uploads directly from the file once it has been committed, which avoids copying
+     * large edits across the binder and staging them a second time in the Box app. See OneCloudStagingFile.
+     * 
+     * @param directory
+     *            Directory to create the staging file in, typically Context.getCacheDir().
+     * @param capacity
+     *            Size of the staging file, at most Integer.MAX_VALUE. Only the length passed to commit() becomes file data.
+     * @return Staging file. Close it when done.
+     * @throws IOException
+     *             Thrown if the file could not be created or mapped, or if the connection to Box is no longer active.
+     */
+    public OneCloudStagingFile createStagingFile(final File directory, final long capacity) throws IOException {
+        if (!isBinderValid()) {
+            throw inactiveError();
+        }
+        return new OneCloudStagingFile(this, directory, capacity);
+    }
+
+    /**
+     * Make the start of a staging file the new Box file data. Box 2.1.0 and later take a descriptor to the file itself; older versions get the data through
+     * the output stream.
+     * 
+     * @param file
+     *            Staging file.
+     * @param buffer
+     *            Mapping of the staging file.
+     * @param length
+     *            Number of bytes of file data.
+     * @throws IOException
+     *             Thrown if the data could not be handed over or the connection to Box is no longer active.
+     */
+    void adoptStagingFile(final File file, final ByteBuffer buffer, final int length) throws IOException {
+        awaitWriteChannel();
+        if (!isBinderValid()) {
+            throw inactiveError();
+        }
+        if (mBoxAppVersionCode >= 21000) {
+            ParcelFileDescriptor descriptor = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+            try {
+                mBinder.adoptStagingFile(descriptor, length);
+            }
+            catch (RemoteException e) {
+                throw connectionError(e);
+            }
+            finally {
+                descriptor.close();
+            }
+        }
+        else {
+            OutputStream out = getOutputStream();
+            if (out == null) {
+                throw inactiveError();
+            }
+            ByteBuffer data = buffer.duplicate();
+            data.clear();
+            data.limit(length);
+            byte[] chunk = OneCloudBufferPool.getDefault().acquire(DEFAULT_CHUNK_SIZE);
+            try {
+                while (data.hasRemaining()) {
+                    int len = Math.min(data.remaining(), DEFAULT_CHUNK_SIZE);
+                    data.get(chunk, 0, len);
+                    out.write(chunk, 0, len);
+                }
+                out.close();
+            }
+            finally {
+                OneCloudBufferPool.getDefault().release(chunk);
+            }
+        }
+        invalidateMetadata();
+    }
+
+    /**
+     * Wait for a locally pumped write channel to drain into the output stream so that uploads see all of the data written to it. A pump that is still
+     * moving data is waited for however long it takes, but one that has moved nothing for WRITE_CHANNEL_IDLE_TIMEOUT_MILLIS is waiting for a descriptor
+     * that was never closed and would block forever.
+     * 
+     * @throws IllegalStateException
+     *             Thrown if the write channel is still open.
+     */
+    private void awaitWriteChannel() {
+        ChannelPump pump = mWriteChannelPump;
+        if (pump == null) {
+            return;
+        }
+        try {
+            long transferred = -1;
+            while (pump.isAlive()) {
+                if (pump.getTransferred() == transferred) {
+                    throw new IllegalStateException("The write channel is still open. Close it before using the data written to it.");
+                }
+                transferred = pump.getTransferred();
+                pump.join(WRITE_CHANNEL_IDLE_TIMEOUT_MILLIS);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (mWriteChannelPump == pump) {
+            mWriteChannelPump = null;
+        }
+    }
+
+    /**
+     * Copies everything from an InputStream to an OutputStream on a background thread and closes both. Used to emulate bulk channels on Box apps that do not
+     * support them.
+     * 
+     */
+    private static class ChannelPump extends Thread {
+
+        /** Size of the buffer used to copy data. */
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        /** Stream to copy from. */
+        private final InputStream mIn;
+
+        /** Stream to copy to. */
+        private final OutputStream mOut;
+
+        /** Number of bytes copied so far. */
+        private volatile long mTransferred;
+
+        /**
+         * Default constructor.
+         * 
+         * @param in
+         *            Stream to copy from.
+         * @param out
+         *            Stream to copy to.
+         */
+        public ChannelPump(final InputStream in, final OutputStream out) {
+            super("OneCloudChannelPump");
+            setDaemon(true);
+            mIn = in;
+            mOut = out;
+        }
+
+        /**
+         * Get the number of bytes copied so far.
+         * 
+         * @return Number of bytes copied.
+         */
+        public long getTransferred() {
+            return mTransferred;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = OneCloudBufferPool.getDefault().acquire(BUFFER_SIZE);
+            try {
+                int len;
+                while ((len = mIn.read(buffer, 0, BUFFER_SIZE)) != -1) {
+                    mOut.write(buffer, 0, len);
+                    mTransferred += len;
+                }
+            }
+            catch (IOException e) {
+                // The other end of the pipe went away. Nothing more to copy.
+            }
+            finally {
+                OneCloudBufferPool.getDefault().release(buffer);
+                try {
+                    mIn.close();
+                }
+                catch (IOException e) {
+                    // e.printStackTrace();
+                }
+                try {
+                    mOut.close();
+                }
+                catch (IOException e) {
+                    // e.printStackTrace();
                 }
             }
+        }
+    }
+
+    /**
+     * Upload the contents of this OneCloudFile as a new version to Box. This overrides the current version on Box. Presumably, this means that you have written
+     * new data to this OneCloudFile by writing to the output stream which you can get from oneCloudFile.getOutputStream().
+     * 
+     * @param listener
+     *            An upload listener which you can use to monitor the upload progress. This can be null if you do not need to monitor the upload.
+     * @throws RemoteException
+     *             Thrown if there was a problem triggering the upload. Note, this does not get thrown if there was an error *during* and upload.
+     */
+    public void uploadNewVersion(final UploadListener listener) throws RemoteException {
+        startUpload(ResumableUpload.TYPE_NEW_VERSION, null, listener);
+    }
+
+    /**
+     * Upload the contents of this OneCloudFile as a new version to Box with a new file name. This overrides the current version on Box. Presumably, this means
+     * that you have written new data to this OneCloudFile by writing to the output stream which you can get from oneCloudFile.getOutputStream().
+     * 
+     * @param newFileName
+     *            The new file name that the file will take on in Box.
+     * @param listener
+     *            An upload listener which you can use to monitor the upload progress. This can be null if you do not need to monitor the upload.
+     * @throws RemoteException
+     *             Thrown if there was a problem triggering the upload. Note, this does not get thrown if there was an error *during* and upload.
+     */
+    public void uploadNewVersion(final String newFileName, final UploadListener listener) throws RemoteException {
+        startUpload(ResumableUpload.TYPE_NEW_VERSION_WITH_NEW_NAME, newFileName, listener);
+    }
+
+    /**
+     * Upload the contents of this OneCloudFile as a new file to Box.
+     * 
+     * @param suggestedFileName
+     *            The file name that will be suggested to the user for the new file.
+     * @param listener
+     *            An upload listener which you can use to monitor the upload progress. This can be null if you do not need to monitor the upload.
+     * @throws RemoteException
+     *             Thrown if there was a problem triggering the upload. Note, this does not get thrown if there was an error *during* and upload.
+     */
+    public void uploadNewFile(final String suggestedFileName, final UploadListener listener) throws RemoteException {
+        startUpload(ResumableUpload.TYPE_NEW_FILE, suggestedFileName, listener);
+    }
+
+    /**
+     * Start an upload of the contents of this OneCloudFile. Unlike the public upload methods, this tells the caller whether the upload was started, since the
+     * listener is never called otherwise.
+     * 
+     * @param uploadType
+     *            ResumableUpload.TYPE_NEW_VERSION, ResumableUpload.TYPE_NEW_VERSION_WITH_NEW_NAME or ResumableUpload.TYPE_NEW_FILE.
+     * @param fileName
+     *            The new file name for TYPE_NEW_VERSION_WITH_NEW_NAME, the suggested file name for TYPE_NEW_FILE, or null for TYPE_NEW_VERSION.
+     * @param listener
+     *            An upload listener which you can use to monitor the upload progress. This can be null if you do not need to monitor the upload.
+     * @return True if the upload was started and the listener will be told its outcome, false if the connection to Box is no longer valid.
+     * @throws RemoteException
+     *             Thrown if there was a problem triggering the upload. The listener is not called in this case.
+     */
+    boolean startUpload(final int uploadType, final String fileName, final UploadListener listener) throws RemoteException {
+        if (!isBinderValid()) {
+            return false;
+        }
+        awaitWriteChannel();
+        final UploadCallbacks callbacks = new UploadCallbacks(listener);
+        startTracked(callbacks, new StartCall<Void>() {
 
             @Override
-            public void onError() throws RemoteException {
-                if (listener != null) {
-                    listener.onError();
+            public Void start() throws RemoteException {
+                switch (uploadType) {
+                    case ResumableUpload.TYPE_NEW_VERSION:
+                        mBinder.uploadNewVersion(callbacks);
+                        break;
+                    case ResumableUpload.TYPE_NEW_VERSION_WITH_NEW_NAME:
+                        mBinder.uploadNewVersionWithNewName(fileName, callbacks);
+                        break;
+                    default:
+                        mBinder.uploadNewFile(fileName, callbacks);
+                        break;
                 }
+                return null;
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Upload the contents of this OneCloudFile to Box in checksummed chunks. Box acknowledges each chunk once it is stored, so if the upload fails part way
+     * through it can be resumed from the last acknowledged offset with ResumableUpload.resume() instead of starting over. This method requires the Box app to
+     * be at version 2.0.0 or greater.
+     * 
+     * @param uploadType
+     *            ResumableUpload.TYPE_NEW_VERSION, ResumableUpload.TYPE_NEW_VERSION_WITH_NEW_NAME or ResumableUpload.TYPE_NEW_FILE.
+     * @param fileName
+     *            The new file name for TYPE_NEW_VERSION_WITH_NEW_NAME, the suggested file name for TYPE_NEW_FILE, or null for TYPE_NEW_VERSION.
+     * @param chunkSize
+     *            Size of the chunks in bytes. Box may round this to a size its servers accept.
+     * @param listener
+     *            A listener which you can use to monitor the upload. This can be null if you do not need to monitor the upload.
+     * @return The upload, or null if the connection to Box is no longer valid.
+     * @throws RemoteException
+     *             Thrown if there was a problem triggering the upload. Note, this does not get thrown if there was an error *during* and upload.
+     * @throws NoSuchMethodException
+     *             Thrown if the Box app installed does not yet support this method (you should fail gracefully and/or ask the user to upgrade their Box app).
+     */
+    public ResumableUpload startResumableUpload(final int uploadType, final String fileName, final int chunkSize, final ResumableUpload.Listener listener)
+        throws RemoteException, NoSuchMethodException {
+        if (mBoxAppVersionCode < 20000) {
+            throw new NoSuchMethodException("Requires Box app version 2.0.0 or later.");
+        }
+        if (!isBinderValid()) {
+            return null;
+        }
+        awaitWriteChannel();
+        ResumableUpload upload = new ResumableUpload(this, null, 0, listener);
+        final ResumableUpload.Callbacks callbacks = upload.createCallbacks();
+        upload.setSessionId(startTracked(callbacks, new StartCall<String>() {
+
+            @Override
+            public String start() throws RemoteException {
+                return mBinder.startChunkedUpload(uploadType, fileName, chunkSize, callbacks);
+            }
+        }));
+        return upload;
+    }
+
+    /**
+     * Resume a chunked upload that was started earlier, possibly through another OneCloudData object for the same transaction before the process was killed.
+     * This method requires the Box app to be at version 2.0.0 or greater.
+     * 
+     * @param sessionId
+     *            Upload session id, from ResumableUpload.getSessionId().
+     * @param acknowledgedOffset
+     *            Offset to continue from, from ResumableUpload.getAcknowledgedOffset().
+     * @param listener
+     *            A listener which you can use to monitor the upload. This can be null if you do not need to monitor the upload.
+     * @return The upload, or null if the connection to Box is no longer valid.
+     * @throws RemoteException
+     *             Thrown if there was a problem triggering the upload.
+     * @throws NoSuchMethodException
+     *             Thrown if the Box app installed does not yet support this method (you should fail gracefully and/or ask the user to upgrade their Box app).
+     */
+    public ResumableUpload resumeUpload(final String sessionId, final long acknowledgedOffset, final ResumableUpload.Listener listener)
+        throws RemoteException, NoSuchMethodException {
+        if (mBoxAppVersionCode < 20000) {
+            throw new NoSuchMethodException("Requires Box app version 2.0.0 or later.");
+        }
+        if (!isBinderValid()) {
+            return null;
+        }
+        ResumableUpload upload = new ResumableUpload(this, sessionId, acknowledgedOffset, listener);
+        resumeChunkedUpload(upload);
+        return upload;
+    }
+
+    /**
+     * Continue a chunked upload from its last acknowledged offset.
+     * 
+     * @param upload
+     *            Upload.
+     * @throws RemoteException
+     *             Thrown if the connection to Box is no longer active.
+     */
+    void resumeChunkedUpload(final ResumableUpload upload) throws RemoteException {
+        if (!isBinderValid()) {
+            throw new RemoteException();
+        }
+        final ResumableUpload.Callbacks callbacks = upload.createCallbacks();
+        startTracked(callbacks, new StartCall<Void>() {
+
+            @Override
+            public Void start() throws RemoteException {
+                mBinder.resumeChunkedUpload(upload.getSessionId(), upload.getAcknowledgedOffset(), callbacks);
+                return null;
             }
         });
     }
 
+    /**
+     * Cancel a chunked upload.
+     * 
+     * @param upload
+     *            Upload.
+     * @throws RemoteException
+     *             Thrown if the connection to Box is no longer active.
+     */
+    void cancelChunkedUpload(final ResumableUpload upload) throws RemoteException {
+        if (!isBinderValid()) {
+            throw new RemoteException();
+        }
+        mBinder.cancelChunkedUpload(upload.getSessionId());
+    }
+
+    /**
+     * Discard the cached metadata snapshot, for example because the file on Box has changed.
+     */
+    void invalidateMetadata() {
+        synchronized (mMetadataLock) {
+            mMetadataGeneration++;
+            mMetadata = null;
+        }
+    }
+
+    /**
+     * Callbacks of an operation that Box reports on asynchronously. Run if Box dies before the operation has finished.
+     * 
+     */
+    interface TrackedOperation extends Runnable {
+
+        /**
+         * Mark the outcome of the operation as reported, so that the callbacks report nothing more.
+         * 
+         * @return True if no outcome had been reported yet.
+         */
+        boolean markFinished();
+    }
+
+    /**
+     * Binder call that starts an operation, for startTracked().
+     * 
+     */
+    private interface StartCall<T> {
+
+        /**
+         * Make the call.
+         * 
+         * @return Result of the call.
+         * @throws RemoteException
+         *             Thrown if the call failed.
+         */
+        T start() throws RemoteException;
+    }
+
+    /**
+     * Binder callbacks through which Box reports upload progress. Completion invalidates the cached metadata, since the file on Box has changed. Run if Box
+     * dies before the upload has finished, which reports it as failed.
+     * 
+     */
+    private final class UploadCallbacks extends FileUploadCallbacks.Stub implements TrackedOperation {
+
+        /** Upload listener to forward to, or null. */
+        private final UploadListener mListener;
+
+        /** Whether the outcome of the upload has been reported. */
+        private final AtomicBoolean mFinished = new AtomicBoolean();
+
+        /**
+         * Default constructor.
+         * 
+         * @param listener
+         *            Upload listener to forward to, or null.
+         */
+        UploadCallbacks(final UploadListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void onProgress(final long bytesTransferred, final long totalBytes) throws RemoteException {
+            if (mListener != null) {
+                mListener.onProgress(bytesTransferred, totalBytes);
+            }
+        }
+
+        @Override
+        public void onComplete() throws RemoteException {
+            if (!markFinished()) {
+                return;
+            }
+            untrack(this);
+            invalidateMetadata();
+            if (mListener != null) {
+                mListener.onComplete();
+            }
+        }
+
+        @Override
+        public void onError() throws RemoteException {
+            if (!markFinished()) {
+                return;
+            }
+            untrack(this);
+            if (mListener != null) {
+                mListener.onError();
+            }
+        }
+
+        @Override
+        public boolean markFinished() {
+            return mFinished.compareAndSet(false, true);
+        }
+
+        @Override
+        public void run() {
+            if (markFinished() && mListener != null) {
+                mListener.onError();
+            }
+        }
+    }
+
+    /**
+     * Death notification for the binder of a OneCloudData. Android holds a registered recipient strongly until the binder dies, so this only holds the
+     * OneCloudData weakly, letting objects the app has dropped be collected while Box is still running.
+     * 
+     */
+    private static class DeathWatcher implements IBinder.DeathRecipient {
+
+        /** OneCloudData to notify. */
+        private final WeakReference<OneCloudData> mOneCloudData;
+
+        /** Binder being watched. */
+        private final OneCloudInterface mBinder;
+
+        /**
+         * Default constructor.
+         * 
+         * @param oneCloudData
+         *            OneCloudData to notify.
+         * @param binder
+         *            Binder being watched.
+         */
+        public DeathWatcher(final OneCloudData oneCloudData, final OneCloudInterface binder) {
+            mOneCloudData = new WeakReference<OneCloudData>(oneCloudData);
+            mBinder = binder;
+        }
+
+        @Override
+        public void binderDied() {
+            OneCloudData oneCloudData = mOneCloudData.get();
+            if (oneCloudData != null) {
+                oneCloudData.onBinderDied(mBinder);
+            }
+        }
+    }
+
     /**
      * A listener through which you can monitor file uploads.
      * 
@@ -530,213 +1397,853 @@ public class OneCloudData implements Parcelable {
     }
 
     /**
-     * Laucnh the Box app.
+     * A streaming transformation of the Box file data, such as compression or encryption, for use with transform().
+     * 
+     */
+    public interface Transformer {
+
+        /**
+         * Wrap the stream the transformed data should be written to. The untransformed data is written to the returned stream in chunks and the returned
+         * stream is closed once all of it has been written. For example, return new DeflaterOutputStream(out) to compress the data.
+         * 
+         * @param out
+         *            Stream the transformed data should be written to. It must be closed, directly or by closing the returned stream.
+         * @return Stream the untransformed data will be written to.
+         * @throws IOException
+         *             Thrown if the transformation cannot be set up.
+         */
+        OutputStream wrap(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Laucnh the Box app.
+     * 
+     * @throws RemoteException
+     *             Thrown if the connection to Box is no longer active.
+     */
+    public void launch() throws RemoteException {
+        if (!isBinderValid()) {
+            return;
+        }
+        mBinder.launch();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(final Parcel dest, final int flags) {
+        // The receiving side has no Context to complete a deferred handshake with.
+        completePendingHandshake();
+        dest.writeStrongBinder(mBinder.asBinder());
+        dest.writeByte((byte) (mState.get() == STATE_VERIFIED ? 1 : 0));
+        dest.writeInt(mBoxAppVersionCode);
+    }
+
+    /**
+     * Read back one self from a parcel.
+     * 
+     * @param in
+     *            Parcel.
+     */
+    private void readFromParcel(final Parcel in) {
+        mBinder = InstrumentedOneCloudInterface.wrap(OneCloudInterface.Stub.asInterface(in.readStrongBinder()));
+        if (in.readByte() == 1) {
+            mState.set(STATE_VERIFIED);
+        }
+        mBoxAppVersionCode = in.readInt();
+        watch(mBinder);
+    }
+
+    /**
+     * Parcel CREATOR.
+     */
+    public static final Parcelable.Creator<OneCloudData> CREATOR = new Parcelable.Creator<OneCloudData>() {
+
+        @Override
+        public OneCloudData createFromParcel(final Parcel in) {
+            return new OneCloudData(in);
+        }
+
+        @Override
+        public OneCloudData[] newArray(final int size) {
+            return new OneCloudData[size];
+        }
+    };
+
+    /**
+     * Trigger a handshake between us and the Box app. If this binder has already completed a handshake with the currently installed Box app, for example
+     * through another OneCloudData object for the same transaction, the handshake completes locally without a round trip to Box.
+     * 
+     * @param context
+     *            Context.
+     */
+    public void sendHandshake(final Context context) {
+        mPendingHandshakeContext.set(null);
+        if (prepareVersion(context)) {
+            handshake(context);
+        }
+    }
+
+    /**
+     * Prepare a handshake between us and the Box app without contacting Box. The handshake is sent by the first call that needs a verified binder, such as
+     * opening a stream, starting an upload or reading metadata, and concurrent first callers wait for that one handshake instead of each sending their own. If
+     * the data is never used, Box is never contacted. If this binder has already been verified, for example through another OneCloudData object for the same
+     * transaction, no handshake is needed at all. Version checks work straight away, since the Box app version is known locally.
+     * 
+     * @param context
+     *            Context. Only its application context is kept.
+     */
+    public void prepareHandshake(final Context context) {
+        if (prepareVersion(context)) {
+            Context appContext = context.getApplicationContext();
+            mPendingHandshakeContext.set(appContext != null ? appContext : context);
+        }
+    }
+
+    /**
+     * Look up the installed Box app version and check whether this binder has already been verified against it.
+     * 
+     * @param context
+     *            Context.
+     * @return True if a handshake round trip is still needed, false if the binder is verified or dead, or Box is not installed.
+     */
+    private boolean prepareVersion(final Context context) {
+        final int boxAppVersionCode = BoxIdentityCache.getBoxVersionCode(context);
+        if (boxAppVersionCode < 0) {
+            return false;
+        }
+        mBoxAppVersionCode = boxAppVersionCode;
+        int state = mState.get();
+        if (state == STATE_VERIFIED || state == STATE_DEAD) {
+            return false;
+        }
+        if (mBinder != null && BoxIdentityCache.isVerified(mBinder.asBinder(), boxAppVersionCode)) {
+            markVerified();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Send the handshake deferred by prepareHandshake(), if any, or wait for the handshake in flight on another thread.
+     */
+    private void completePendingHandshake() {
+        int state = mState.get();
+        if (state == STATE_VERIFIED || state == STATE_DEAD) {
+            return;
+        }
+        if (mPendingHandshakeContext.get() != null) {
+            handshake(null);
+        }
+        else {
+            awaitHandshake();
+        }
+    }
+
+    /**
+     * Send a handshake round trip to Box. If a handshake is already in flight, wait for that one instead.
+     * 
+     * @param context
+     *            Context, or null to use the one deferred by prepareHandshake().
+     */
+    private void handshake(final Context context) {
+        CountDownLatch latch = new CountDownLatch(1);
+        if (!mHandshakeInFlight.compareAndSet(null, latch)) {
+            awaitHandshake();
+            return;
+        }
+        try {
+            // Taken only once the latch is published, so no caller can find neither the context nor the handshake using it.
+            Context pendingContext = mPendingHandshakeContext.getAndSet(null);
+            final Context handshakeContext = context != null ? context : pendingContext;
+            if (handshakeContext == null || !mState.compareAndSet(STATE_UNVERIFIED, STATE_VERIFYING)) {
+                return;
+            }
+            final int boxAppVersionCode = mBoxAppVersionCode;
+            HandshakeCallback handshake = new HandshakeCallback.Stub() {
+
+                @Override
+                public void onShake() throws RemoteException {
+                    if (isCallerBox(handshakeContext)) {
+                        markVerified();
+                        BoxIdentityCache.markVerified(mBinder.asBinder(), boxAppVersionCode);
+                    }
+                }
+            };
+            try {
+                mBinder.sendHandshake(handshake);
+            }
+            catch (RemoteException e) {
+                // e.printStackTrace();
+            }
+            finally {
+                // If Box did not answer, a later sendHandshake() may try again.
+                mState.compareAndSet(STATE_VERIFYING, STATE_UNVERIFIED);
+            }
+        }
+        finally {
+            mHandshakeInFlight.set(null);
+            latch.countDown();
+        }
+    }
+
+    /**
+     * Wait for the handshake in flight on another thread, if any.
+     */
+    private void awaitHandshake() {
+        CountDownLatch latch = mHandshakeInFlight.get();
+        if (latch == null) {
+            return;
+        }
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Move to the verified state, unless the binder has died.
+     */
+    private void markVerified() {
+        int state;
+        while ((state = mState.get()) != STATE_VERIFIED && state != STATE_DEAD) {
+            if (mState.compareAndSet(state, STATE_VERIFIED)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Check whether the app on the other side of the binder transaction currently being handled is Box.
+     * 
+     * @param context
+     *            Context.
+     * @return True if the calling app is Box.
+     */
+    private static boolean isCallerBox(final Context context) {
+        return BoxIdentityCache.isBoxUid(context, Binder.getCallingUid());
+    }
+
+    /**
+     * Notify Box that the underlying data for this OneCloud transaction has changed. You normally do not need to call this except for scenarios where you have
+     * modified the data through your own Box platform calls with your own API key.
+     * 
+     * @throws RemoteException
+     *             Thrown if the connection to Box is no longer active.
+     */
+    public void notifyDataChanged() throws RemoteException {
+        OneCloudBlockCache cache = mBlockCache;
+        if (cache != null) {
+            OneCloudMetadata metadata = getMetadata();
+            if (metadata != null && metadata.getFileId() >= 0) {
+                cache.invalidate(metadata.getFileId());
+            }
+        }
+        invalidateMetadata();
+        if (!isBinderValid()) {
+            return;
+        }
+        mBinder.notifyDataChanged();
+    }
+
+    /**
+     * Create a new OneCloudData object that will allow you to create a new file in the same directory on Box. This method should not be called on the UI thread
+     * since it may take a few seconds to complete. This method requires the Box app to be at version 1.9.0 or greater.
+     * 
+     * @param context
+     *            App context.
+     * @return Sibling OneCloudData object, or null if there was an error.
+     * @throws NoSuchMethodException
+     *             Thrown if the Box app installed does not yet support this method (you should fail gracefully and/or ask the user to upgrade their Box app).
+     */
+    public OneCloudData createNewSibling(final Context context) throws NoSuchMethodException {
+        return awaitOneCloudData(createNewSiblingAsync(context, DEFAULT_REQUEST_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * Asynchronously create a new OneCloudData object that will allow you to create a new file in the same directory on Box. This method returns immediately;
+     * the returned future is completed when Box sends the sibling back, so no thread needs to wait for it. This method requires the Box app to be at version
+     * 1.9.0 or greater.
+     * 
+     * @param context
+     *            App context.
+     * @param timeoutMillis
+     *            Time after which the future completes with null if Box has not answered. 0 or less means no timeout.
+     * @return Future for the sibling OneCloudData object. Completes with null if there was an error.
+     * @throws NoSuchMethodException
+     *             Thrown if the Box app installed does not yet support this method (you should fail gracefully and/or ask the user to upgrade their Box app).
+     */
+    public OneCloudDataFuture createNewSiblingAsync(final Context context, final long timeoutMillis) throws NoSuchMethodException {
+        int boxAppVersionCode = BoxIdentityCache.getBoxVersionCode(context);
+        if (boxAppVersionCode < 0) {
+            OneCloudDataFuture future = new OneCloudDataFuture(0);
+            future.complete(null);
+            return future;
+        }
+        if (boxAppVersionCode < 19000) {
+            throw new NoSuchMethodException("Requires Box app version 1.9.0 or later.");
+        }
+
+        Intent intent = new Intent(BoxOneCloudReceiver.ACTION_BOX_CREATE_SIBLING_ONE_CLOUD_DATA);
+        intent.setComponent(new ComponentName(BoxOneCloudReceiver.BOX_PACKAGE_NAME, BoxOneCloudReceiver.BOX_RECEIVER_CLASS_NAME));
+        intent.putExtra(BoxOneCloudReceiver.EXTRA_ONE_CLOUD_TOKEN, getToken());
+        return requestOneCloudData(context, intent, timeoutMillis);
+    }
+
+    /**
+     * Send a broadcast to Box, or to the installed LocalBoxService if there is one.
+     * 
+     * @param context
+     *            Context.
+     * @param intent
+     *            Broadcast for Box.
+     */
+    private static void sendToBox(final Context context, final Intent intent) {
+        if (!LocalBoxService.deliver(intent)) {
+            context.sendBroadcast(intent);
+        }
+    }
+
+    /**
+     * Send a broadcast to Box asking for a OneCloudData object, along with a handshake through which Box sends the object back.
+     * 
+     * @param context
+     *            Context.
+     * @param intent
+     *            Broadcast to send to Box.
+     * @param timeoutMillis
+     *            Time after which the future completes with null if Box has not answered. 0 or less means no timeout.
+     * @return Future completed from the handshake callback.
+     */
+    private static OneCloudDataFuture requestOneCloudData(final Context context, final Intent intent, final long timeoutMillis) {
+        final OneCloudDataFuture future = new OneCloudDataFuture(timeoutMillis);
+
+        // Send a handshake along with the broadcast.
+        OneCloudHandshakeInterface.Stub handshake = new OneCloudHandshakeInterface.Stub() {
+
+            @Override
+            public void sendHandshake(final HandshakeCallback handshakeCallback) throws RemoteException {
+                if (isCallerBox(context)) {
+                    handshakeCallback.onShake();
+                }
+            }
+
+            @Override
+            public void sendOneCloudData(final OneCloudInterface oneCloudInterface) throws RemoteException {
+                if (future.isDone()) {
+                    return;
+                }
+                OneCloudData ocd = new OneCloudData(oneCloudInterface);
+                ocd.sendHandshake(context);
+                future.complete(ocd);
+            }
+
+            @Override
+            public void sendRestoredOneCloudData(final long token, final OneCloudInterface oneCloudInterface) throws RemoteException {
+                // Only used for batch restores.
+            }
+        };
+        intent
+            .putExtra(BoxOneCloudReceiver.EXTRA_ONE_CLOUD_HANDSHAKE, new OneCloudHandshake(OneCloudHandshakeInterface.Stub.asInterface(handshake.asBinder())));
+        sendToBox(context, intent);
+        return future;
+    }
+
+    /**
+     * Block until a future completes.
+     * 
+     * @param future
+     *            Future.
+     * @return OneCloudData object, or null if there was none or the calling thread was interrupted.
+     */
+    private static OneCloudData awaitOneCloudData(final OneCloudDataFuture future) {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            // e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Check whether the connection to Box is verified and alive.
+     * 
+     * @return True if connected, false otherwise.
+     */
+    boolean isConnected() {
+        return isBinderValid();
+    }
+
+    /**
+     * Get the block cache key of the current version of the Box file data. Costs a binder transaction for the content version.
+     * 
+     * @return Key, or null if no cache is set or the data cannot be cached.
+     */
+    String getBlockCacheKey() {
+        if (mBlockCache == null || mBoxAppVersionCode < 21000 || !isBinderValid()) {
+            return null;
+        }
+        OneCloudMetadata metadata = getMetadata();
+        if (metadata == null || metadata.getFileId() < 0) {
+            return null;
+        }
+        try {
+            String etag = mBinder.getEtag();
+            return etag != null ? OneCloudBlockCache.key(metadata.getFileId(), etag) : null;
+        }
+        catch (RemoteException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read file data at a position without moving the input stream, through the block cache if a cache key is given.
+     * 
+     * @param cacheKey
+     *            Block cache key from getBlockCacheKey(), or null to read from Box directly.
+     * @param position
+     *            Position in the file data.
+     * @param length
+     *            Largest number of bytes to read. At most MAX_CHUNK_SIZE.
+     * @return Bytes read, or null if position is at or past the end of the file data.
+     * @throws IOException
+     *             Thrown if the connection to Box is no longer active.
+     */
+    byte[] readAt(final String cacheKey, final long position, final int length) throws IOException {
+        OneCloudBlockCache cache = mBlockCache;
+        if (cacheKey == null || cache == null) {
+            return readAt(position, length);
+        }
+        return cache.read(cacheKey, position, length, new OneCloudBlockCache.BlockLoader() {
+
+            @Override
+            public byte[] load(final long blockPosition, final int blockLength) throws IOException {
+                // Box may return less than asked for, so keep reading until the block is full or the data ends.
+                byte[] block = new byte[blockLength];
+                int filled = 0;
+                while (filled < blockLength) {
+                    byte[] data = readAt(blockPosition + filled, blockLength - filled);
+                    if (data == null || data.length == 0) {
+                        break;
+                    }
+                    if (data.length > blockLength - filled) {
+                        throw new IOException("Box returned " + data.length + " bytes for a read of " + (blockLength - filled) + " bytes.");
+                    }
+                    System.arraycopy(data, 0, block, filled, data.length);
+                    filled += data.length;
+                }
+                if (filled == 0) {
+                    return null;
+                }
+                return filled == blockLength ? block : Arrays.copyOf(block, filled);
+            }
+        });
+    }
+
+    /**
+     * Read file data at a position without moving the input stream.
+     * 
+     * @param position
+     *            Position in the file data.
+     * @param length
+     *            Largest number of bytes to read. At most MAX_CHUNK_SIZE.
+     * @return Bytes read, or null if position is at or past the end of the file data.
+     * @throws IOException
+     *             Thrown if the connection to Box is no longer active.
+     */
+    byte[] readAt(final long position, final int length) throws IOException {
+        if (!isBinderValid()) {
+            throw inactiveError();
+        }
+        OneCloudInterface binder = mBinder;
+        try {
+            return binder.readAt(position, length);
+        }
+        catch (RemoteException e) {
+            if (!recover(binder, e)) {
+                throw connectionError(e);
+            }
+        }
+        // Positional reads need no state on the Box side, so just retry on the restored transaction.
+        try {
+            return mBinder.readAt(position, length);
+        }
+        catch (RemoteException e) {
+            throw connectionError(e);
+        }
+    }
+
+    /**
+     * Open a read session.
      * 
+     * @param binder
+     *            Binder to open the session on.
+     * @return Session id, or -1 if Box cannot open one.
      * @throws RemoteException
      *             Thrown if the connection to Box is no longer active.
      */
-    public void launch() throws RemoteException {
-        if (!isBinderValid()) {
-            return;
+    int openReadSession(final OneCloudInterface binder) throws RemoteException {
+        if (mBoxAppVersionCode < 22000) {
+            return -1;
         }
-        mBinder.launch();
+        return binder.openReadSession();
     }
 
-    @Override
-    public int describeContents() {
-        return 0;
+    /**
+     * Read file data at the cursor of a read session and advance it.
+     * 
+     * @param binder
+     *            Binder the session was opened on.
+     * @param sessionId
+     *            Session id from openReadSession().
+     * @param length
+     *            Largest number of bytes to read. At most MAX_CHUNK_SIZE.
+     * @return Bytes read, or null at the end of the file data.
+     * @throws IOException
+     *             Thrown if the session is closed or the connection to Box is no longer active. OneCloudConnectionLostException if the session was lost with
+     *             the Box process that held it.
+     */
+    byte[] sessionRead(final OneCloudInterface binder, final int sessionId, final int length) throws IOException {
+        checkSession(binder);
+        try {
+            return binder.sessionRead(sessionId, length);
+        }
+        catch (RemoteException e) {
+            throw recover(binder, e) ? new OneCloudConnectionLostException() : connectionError(e);
+        }
     }
 
-    @Override
-    public void writeToParcel(final Parcel dest, final int flags) {
-        dest.writeStrongBinder(mBinder.asBinder());
-        dest.writeByte((byte) (mHandshaken ? 1 : 0));
-        dest.writeInt(mBoxAppVersionCode);
+    /**
+     * Move the cursor of a read session.
+     * 
+     * @param binder
+     *            Binder the session was opened on.
+     * @param sessionId
+     *            Session id from openReadSession().
+     * @param position
+     *            Position in the file data.
+     * @throws IOException
+     *             Thrown if the session is closed or the connection to Box is no longer active. OneCloudConnectionLostException if the session was lost with
+     *             the Box process that held it.
+     */
+    void sessionSeek(final OneCloudInterface binder, final int sessionId, final long position) throws IOException {
+        checkSession(binder);
+        try {
+            binder.sessionSeek(sessionId, position);
+        }
+        catch (RemoteException e) {
+            throw recover(binder, e) ? new OneCloudConnectionLostException() : connectionError(e);
+        }
     }
 
     /**
-     * Read back one self from a parcel.
+     * Close a read session. Failures are ignored; Box drops the session along with the transaction anyway.
      * 
-     * @param in
-     *            Parcel.
+     * @param binder
+     *            Binder the session was opened on.
+     * @param sessionId
+     *            Session id from openReadSession().
      */
-    private void readFromParcel(final Parcel in) {
-        mBinder = OneCloudInterface.Stub.asInterface(in.readStrongBinder());
-        mHandshaken = in.readByte() == 1;
-        mBoxAppVersionCode = in.readInt();
+    void closeReadSession(final OneCloudInterface binder, final int sessionId) {
+        if (binder != mBinder || !isBinderValid()) {
+            return;
+        }
+        try {
+            binder.closeReadSession(sessionId);
+        }
+        catch (RemoteException e) {
+            // Nothing more to do.
+        }
     }
 
     /**
-     * Parcel CREATOR.
+     * Fail if a read session can no longer be used.
+     * 
+     * @param binder
+     *            Binder the session was opened on.
+     * @throws IOException
+     *             Thrown if the connection to Box is no longer active. OneCloudConnectionLostException if the session belongs to a Box process that has died,
+     *             even if the transaction has been restored since.
      */
-    public static final Parcelable.Creator<OneCloudData> CREATOR = new Parcelable.Creator<OneCloudData>() {
-
-        @Override
-        public OneCloudData createFromParcel(final Parcel in) {
-            return new OneCloudData(in);
+    private void checkSession(final OneCloudInterface binder) throws IOException {
+        if (!isBinderValid()) {
+            throw inactiveError();
         }
-
-        @Override
-        public OneCloudData[] newArray(final int size) {
-            return new OneCloudData[size];
+        if (binder != mBinder) {
+            throw new OneCloudConnectionLostException();
         }
-    };
+    }
 
     /**
-     * Trigger a handshake between us and the Box app.
+     * Fetch the current size of the file data from Box, bypassing the metadata cache.
      * 
-     * @param context
-     *            Context.
+     * @return Size in bytes.
+     * @throws IOException
+     *             Thrown if the connection to Box is no longer active.
      */
-    public void sendHandshake(final Context context) {
-        try {
-            mBoxAppVersionCode = context.getPackageManager().getPackageInfo(BoxOneCloudReceiver.BOX_PACKAGE_NAME, 0).versionCode;
+    long fetchFileSize() throws IOException {
+        if (!isBinderValid()) {
+            throw inactiveError();
         }
-        catch (NameNotFoundException e1) {
-            // e1.printStackTrace();
-            return;
+        OneCloudInterface binder = mBinder;
+        try {
+            return binder.getFileSize();
         }
-
-        HandshakeCallback handshake = new HandshakeCallback.Stub() {
-
-            @Override
-            public void onShake() throws RemoteException {
-                String[] packages = context.getPackageManager().getPackagesForUid(Binder.getCallingUid());
-                if (packages.length == 1 && packages[0].equals(BoxOneCloudReceiver.BOX_PACKAGE_NAME)) {
-                    mHandshaken = true;
-                }
+        catch (RemoteException e) {
+            if (!recover(binder, e)) {
+                throw connectionError(e);
             }
-        };
+        }
         try {
-            mBinder.sendHandshake(handshake);
+            return mBinder.getFileSize();
         }
         catch (RemoteException e) {
-            // e.printStackTrace();
+            throw connectionError(e);
         }
     }
 
     /**
-     * Notify Box that the underlying data for this OneCloud transaction has changed. You normally do not need to call this except for scenarios where you have
-     * modified the data through your own Box platform calls with your own API key.
+     * Check whether the binder interface back to Box is valid.
      * 
-     * @throws RemoteException
-     *             Thrown if the connection to Box is no longer active.
+     * @return True if valid, false otherwise.
      */
-    public void notifyDataChanged() throws RemoteException {
-        if (!isBinderValid()) {
-            return;
+    private boolean isBinderValid() {
+        completePendingHandshake();
+        int state = mState.get();
+        if (state == STATE_VERIFIED) {
+            OneCloudInterface binder = mBinder;
+            if (binder != null && binder.asBinder().isBinderAlive()) {
+                return true;
+            }
+            // Died before the death notification arrived.
+            onBinderDied(binder);
+            state = mState.get();
         }
-        mBinder.notifyDataChanged();
+        return state == STATE_DEAD && reconnect();
     }
 
     /**
-     * Create a new OneCloudData object that will allow you to create a new file in the same directory on Box. This method should not be called on the UI thread
-     * since it may take a few seconds to complete. This method requires the Box app to be at version 1.9.0 or greater.
+     * Turn automatic reconnection on or off. While it is on, if the Box app process dies, the next call restores the transaction through its token, as
+     * restoreFromToken() would, instead of failing. Input streams and read sessions continue from the position they had reached; output streams cannot,
+     * since Box loses the data it had not yet been sent, and fail with OneCloudConnectionLostException. Restoring takes up to DEFAULT_REQUEST_TIMEOUT_MILLIS,
+     * so the call that notices the death may block for that long. This method requires the Box app to be at version 1.9.0 or greater.
      * 
      * @param context
-     *            App context.
-     * @return Sibling OneCloudData object, or null if there was an error.
+     *            Context to restore the transaction with, or null to turn automatic reconnection off. Only its application context is kept.
+     * @return True if automatic reconnection is on, false if it is off or the transaction has no valid token.
      * @throws NoSuchMethodException
      *             Thrown if the Box app installed does not yet support this method (you should fail gracefully and/or ask the user to upgrade their Box app).
      */
-    public OneCloudData createNewSibling(final Context context) throws NoSuchMethodException {
-        try {
-            int boxAppVersionCode = context.getPackageManager().getPackageInfo(BoxOneCloudReceiver.BOX_PACKAGE_NAME, 0).versionCode;
-            if (boxAppVersionCode < 19000) {
-                throw new NoSuchMethodException("Requires Box app version 1.9.0 or later.");
-            }
+    public boolean setAutoReconnect(final Context context) throws NoSuchMethodException {
+        if (context == null) {
+            mReconnectContext = null;
+            return false;
         }
-        catch (NameNotFoundException e1) {
-            // e.printStackTrace();
-            return null;
+        if (mReconnectToken == -1) {
+            mReconnectToken = getToken();
         }
+        if (mReconnectToken == -1) {
+            return false;
+        }
+        Context appContext = context.getApplicationContext();
+        mReconnectContext = appContext != null ? appContext : context;
+        return true;
+    }
 
-        Intent intent = new Intent(BoxOneCloudReceiver.ACTION_BOX_CREATE_SIBLING_ONE_CLOUD_DATA);
-        intent.setComponent(new ComponentName(BoxOneCloudReceiver.BOX_PACKAGE_NAME, BoxOneCloudReceiver.BOX_RECEIVER_CLASS_NAME));
-        intent.putExtra(BoxOneCloudReceiver.EXTRA_ONE_CLOUD_TOKEN, getToken());
-
-        // Used to wait for the Box app to send us back the OneCloudData object.
-        final CustomCountDownLatch countDownLatch = new CustomCountDownLatch(1);
-
-        // Send a handshake along with the broadcast.
-        OneCloudHandshakeInterface.Stub handshake = new OneCloudHandshakeInterface.Stub() {
+    /**
+     * Register for the death notification of a binder.
+     * 
+     * @param binder
+     *            Binder, or null.
+     */
+    private void watch(final OneCloudInterface binder) {
+        if (binder == null) {
+            return;
+        }
+        IBinder.DeathRecipient recipient = new DeathWatcher(this, binder);
+        try {
+            binder.asBinder().linkToDeath(recipient, 0);
+            mDeathRecipient = recipient;
+        }
+        catch (RemoteException e) {
+            // Already dead.
+            mState.set(STATE_DEAD);
+        }
+    }
 
-            @Override
-            public void sendHandshake(final HandshakeCallback handshakeCallback) throws RemoteException {
-                String[] packages = context.getPackageManager().getPackagesForUid(Binder.getCallingUid());
-                if (packages.length == 1 && packages[0].equals(BoxOneCloudReceiver.BOX_PACKAGE_NAME)) {
-                    handshakeCallback.onShake();
-                }
+    /**
+     * Move to the dead state and fail every operation waiting for Box, unless the binder has already been replaced by a reconnection.
+     * 
+     * @param binder
+     *            Binder that died.
+     */
+    private void onBinderDied(final OneCloudInterface binder) {
+        synchronized (mReconnectLock) {
+            if (binder != mBinder || mState.getAndSet(STATE_DEAD) == STATE_DEAD) {
+                return;
             }
-
-            @Override
-            public void sendOneCloudData(final OneCloudInterface oneCloudInterface) throws RemoteException {
-                OneCloudData ocd = new OneCloudData(oneCloudInterface);
-                ocd.sendHandshake(context);
-                countDownLatch.attachOneCloudData(ocd);
-                countDownLatch.countDown();
+        }
+        invalidateMetadata();
+        for (Runnable operation : mInFlight) {
+            if (mInFlight.remove(operation)) {
+                operation.run();
             }
-        };
-        intent
-            .putExtra(BoxOneCloudReceiver.EXTRA_ONE_CLOUD_HANDSHAKE, new OneCloudHandshake(OneCloudHandshakeInterface.Stub.asInterface(handshake.asBinder())));
-        context.sendBroadcast(intent);
+        }
+    }
 
-        try {
-            countDownLatch.await(3, TimeUnit.SECONDS);
-            return countDownLatch.getOneCloudData();
+    /**
+     * Restore the transaction through its token after Box has died, if automatic reconnection is on. Concurrent callers share one restore.
+     * 
+     * @return True if the binder has been replaced by a verified one.
+     */
+    private boolean reconnect() {
+        Context context = mReconnectContext;
+        if (context == null) {
+            return false;
         }
-        catch (InterruptedException e) {
-            // e.printStackTrace();
+        synchronized (mReconnectLock) {
+            int state = mState.get();
+            if (state != STATE_DEAD) {
+                return state == STATE_VERIFIED;
+            }
+            OneCloudData restored;
+            try {
+                restored = restoreFromToken(context, mReconnectToken);
+            }
+            catch (NoSuchMethodException e) {
+                return false;
+            }
+            if (restored == null || restored.mState.get() != STATE_VERIFIED) {
+                return false;
+            }
+            IBinder.DeathRecipient recipient = restored.mDeathRecipient;
+            if (recipient != null) {
+                restored.mBinder.asBinder().unlinkToDeath(recipient, 0);
+            }
+            mBoxAppVersionCode = restored.mBoxAppVersionCode;
+            mBinder = restored.mBinder;
+            watch(mBinder);
+            invalidateMetadata();
+            // Only published once the new binder is in place.
+            mState.compareAndSet(STATE_DEAD, STATE_VERIFIED);
+            return mState.get() == STATE_VERIFIED;
         }
-        return null;
     }
 
     /**
-     * CountDownLatch that allows for OneCloudData objects to be attached to it. Useful when waiting for binder callbacks to send us data.
+     * Handle a failed binder call. If Box has died and automatic reconnection is on, the transaction is restored.
      * 
+     * @param binder
+     *            Binder the call was made on.
+     * @param e
+     *            Failure.
+     * @return True if the binder has been replaced since and the call may be retried on the new one.
      */
-    private static class CustomCountDownLatch extends CountDownLatch {
+    private boolean recover(final OneCloudInterface binder, final RemoteException e) {
+        if (binder == mBinder && (e instanceof DeadObjectException || !binder.asBinder().isBinderAlive())) {
+            onBinderDied(binder);
+        }
+        if (binder != mBinder) {
+            return mState.get() == STATE_VERIFIED;
+        }
+        return mState.get() == STATE_DEAD && reconnect();
+    }
 
-        /** OneCloudData object. */
-        private OneCloudData mOcd;
+    /**
+     * Get the binder back to Box, for callers that retry through recover().
+     * 
+     * @return Binder.
+     */
+    OneCloudInterface getBinder() {
+        return mBinder;
+    }
 
-        /**
-         * Default constructor.
-         * 
-         * @param count
-         *            Latch count.
-         */
-        public CustomCountDownLatch(int count) {
-            super(count);
+    /**
+     * Track an operation waiting for callbacks from Box, so that it fails if Box dies first. Operations are started through startTracked(), which tracks them
+     * before the binder call that starts them.
+     * 
+     * @param onConnectionLost
+     *            Run once if Box dies before the operation is untracked.
+     */
+    void track(final Runnable onConnectionLost) {
+        mInFlight.add(onConnectionLost);
+        if (mState.get() == STATE_DEAD && mInFlight.remove(onConnectionLost)) {
+            onConnectionLost.run();
         }
+    }
 
-        /**
-         * Attach a OneCloudData object.
-         * 
-         * @param ocd
-         *            OneCloudData object.
-         */
-        public void attachOneCloudData(OneCloudData ocd) {
-            mOcd = ocd;
+    /**
+     * Stop tracking an operation once Box has reported its outcome.
+     * 
+     * @param onConnectionLost
+     *            Action passed to track().
+     */
+    void untrack(final Runnable onConnectionLost) {
+        mInFlight.remove(onConnectionLost);
+    }
+
+    /**
+     * Make the binder call that starts an operation reporting back through callbacks, tracking the callbacks from before the call, since Box may report the
+     * outcome before the call returns. If the call fails after the callbacks have already reported, for example because Box died and they were failed as
+     * connection lost, the failure is not reported a second time.
+     * 
+     * @param operation
+     *            Callbacks of the operation.
+     * @param call
+     *            Binder call that starts the operation.
+     * @return Result of the call, or null if it failed after the callbacks had already reported.
+     * @throws RemoteException
+     *             Thrown if the call failed before the callbacks reported anything. They will not report anything afterwards.
+     */
+    private <T> T startTracked(final TrackedOperation operation, final StartCall<T> call) throws RemoteException {
+        track(operation);
+        try {
+            return call.start();
+        }
+        catch (RemoteException e) {
+            untrack(operation);
+            if (!operation.markFinished()) {
+                return null;
+            }
+            throw e;
+        }
+        catch (RuntimeException e) {
+            untrack(operation);
+            operation.markFinished();
+            throw e;
         }
+    }
 
-        /**
-         * Get an attached OneCloudData object.
-         * 
-         * @return OneCloudData object.
-         */
-        public OneCloudData getOneCloudData() {
-            return mOcd;
+    /**
+     * Build the exception for a binder call that failed.
+     * 
+     * @param e
+     *            Failure.
+     * @return OneCloudConnectionLostException if Box has died, a plain IOException otherwise.
+     */
+    private IOException connectionError(final RemoteException e) {
+        if (e instanceof DeadObjectException || mState.get() == STATE_DEAD) {
+            return new OneCloudConnectionLostException();
         }
+        return new IOException();
     }
 
     /**
-     * Check whether the binder interface back to Box is valid.
+     * Build the exception for a call made once the binder is no longer valid.
      * 
-     * @return True if valid, false otherwise.
+     * @return OneCloudConnectionLostException if Box has died, a plain IOException otherwise.
      */
-    private boolean isBinderValid() {
-        return mHandshaken && mBinder != null && mBinder.asBinder().isBinderAlive();
+    private IOException inactiveError() {
+        if (mState.get() == STATE_DEAD) {
+            return new OneCloudConnectionLostException();
+        }
+        return new IOException("The connection to Box is no longer active.");
     }
 
     /**
@@ -754,53 +2261,143 @@ public class OneCloudData implements Parcelable {
      *             Thrown if the Box app installed does not yet support this method (you should fail gracefully and/or ask the user to upgrade their Box app).
      */
     public static OneCloudData restoreFromToken(final Context context, final long token) throws NoSuchMethodException {
-        try {
-            int boxAppVersionCode = context.getPackageManager().getPackageInfo(BoxOneCloudReceiver.BOX_PACKAGE_NAME, 0).versionCode;
-            if (boxAppVersionCode < 19000) {
-                throw new NoSuchMethodException("Requires Box app version 1.9.0 or later.");
-            }
+        return awaitOneCloudData(restoreFromTokenAsync(context, token, DEFAULT_REQUEST_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * Asynchronously restore a OneCloudData object through a token. This method returns immediately; the returned future is completed when Box sends the object
+     * back, so many restores can be in flight at once without a thread waiting on each. This method requires the Box app to be at version 1.9.0 or greater.
+     * 
+     * @param context
+     *            Context.
+     * @param token
+     *            OneCloud token. This is not arbitrary. You must have obtained this by getting the token of a OneCloudData object you had in the past.
+     * @param timeoutMillis
+     *            Time after which the future completes with null if Box has not answered. 0 or less means no timeout.
+     * @return Future for the OneCloudData object. Completes with null if one could not be retrieved.
+     * @throws NoSuchMethodException
+     *             Thrown if the Box app installed does not yet support this method (you should fail gracefully and/or ask the user to upgrade their Box app).
+     */
+    public static OneCloudDataFuture restoreFromTokenAsync(final Context context, final long token, final long timeoutMillis) throws NoSuchMethodException {
+        int boxAppVersionCode = BoxIdentityCache.getBoxVersionCode(context);
+        if (boxAppVersionCode < 0) {
+            OneCloudDataFuture future = new OneCloudDataFuture(0);
+            future.complete(null);
+            return future;
         }
-        catch (NameNotFoundException e1) {
-            // e.printStackTrace();
-            return null;
+        if (boxAppVersionCode < 19000) {
+            throw new NoSuchMethodException("Requires Box app version 1.9.0 or later.");
         }
 
         Intent intent = new Intent(BoxOneCloudReceiver.ACTION_BOX_RESTORE_ONE_CLOUD_DATA);
         intent.setComponent(new ComponentName(BoxOneCloudReceiver.BOX_PACKAGE_NAME, BoxOneCloudReceiver.BOX_RECEIVER_CLASS_NAME));
         intent.putExtra(BoxOneCloudReceiver.EXTRA_ONE_CLOUD_TOKEN, token);
+        return requestOneCloudData(context, intent, timeoutMillis);
+    }
+
+    /**
+     * Restore several OneCloudData objects through their tokens. This is much faster than calling restoreFromToken() for each token, since Box is asked for all
+     * of them in a single broadcast. This method should not be called on the UI thread since it may take a few seconds to complete. This method requires the
+     * Box app to be at version 1.9.0 or greater.
+     * 
+     * @param context
+     *            Context.
+     * @param tokens
+     *            OneCloud tokens. These are not arbitrary. You must have obtained them by getting the tokens of OneCloudData objects you had in the past.
+     * @return OneCloudData objects in the same order as the tokens. An element is null if that object could not be retrieved.
+     * @throws NoSuchMethodException
+     *             Thrown if the Box app installed does not yet support this method (you should fail gracefully and/or ask the user to upgrade their Box app).
+     */
+    public static OneCloudData[] restoreFromTokens(final Context context, final long[] tokens) throws NoSuchMethodException {
+        OneCloudDataFuture[] futures = restoreFromTokensAsync(context, tokens, DEFAULT_REQUEST_TIMEOUT_MILLIS);
+        OneCloudData[] restored = new OneCloudData[futures.length];
+        for (int i = 0; i < futures.length; i++) {
+            restored[i] = awaitOneCloudData(futures[i]);
+        }
+        return restored;
+    }
+
+    /**
+     * Asynchronously restore several OneCloudData objects through their tokens. This method returns immediately. Box is asked for all of the objects in a
+     * single broadcast and sends each one back as soon as it is ready, completing the matching future. If the installed Box app is older than 2.0.0, one
+     * restore per token is sent instead; these still run concurrently. This method requires the Box app to be at version 1.9.0 or greater.
+     * 
+     * @param context
+     *            Context.
+     * @param tokens
+     *            OneCloud tokens. These are not arbitrary. You must have obtained them by getting the tokens of OneCloudData objects you had in the past.
+     * @param timeoutMillis
+     *            Time after which futures that Box has not completed yet complete with null. 0 or less means no timeout.
+     * @return Futures for the OneCloudData objects in the same order as the tokens. A future completes with null if that object could not be retrieved.
+     * @throws NoSuchMethodException
+     *             Thrown if the Box app installed does not yet support this method (you should fail gracefully and/or ask the user to upgrade their Box app).
+     */
+    public static OneCloudDataFuture[] restoreFromTokensAsync(final Context context, final long[] tokens, final long timeoutMillis)
+        throws NoSuchMethodException {
+        OneCloudDataFuture[] futures = new OneCloudDataFuture[tokens.length];
+        int boxAppVersionCode = BoxIdentityCache.getBoxVersionCode(context);
+        if (boxAppVersionCode < 0) {
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = new OneCloudDataFuture(0);
+                futures[i].complete(null);
+            }
+            return futures;
+        }
+        if (boxAppVersionCode < 19000) {
+            throw new NoSuchMethodException("Requires Box app version 1.9.0 or later.");
+        }
 
-        // Used to wait for the Box app to send us back the OneCloudData object.
-        final CustomCountDownLatch countDownLatch = new CustomCountDownLatch(1);
+        if (boxAppVersionCode < 20000) {
+            for (int i = 0; i < tokens.length; i++) {
+                futures[i] = restoreFromTokenAsync(context, tokens[i], timeoutMillis);
+            }
+            return futures;
+        }
 
-        // Send a handshake along with the broadcast.
+        // Repeated tokens share a future.
+        final Map<Long, OneCloudDataFuture> pending = new HashMap<Long, OneCloudDataFuture>();
+        for (int i = 0; i < tokens.length; i++) {
+            OneCloudDataFuture future = pending.get(tokens[i]);
+            if (future == null) {
+                future = new OneCloudDataFuture(timeoutMillis);
+                pending.put(tokens[i], future);
+            }
+            futures[i] = future;
+        }
+
+        Intent intent = new Intent(BoxOneCloudReceiver.ACTION_BOX_RESTORE_ONE_CLOUD_DATA_BATCH);
+        intent.setComponent(new ComponentName(BoxOneCloudReceiver.BOX_PACKAGE_NAME, BoxOneCloudReceiver.BOX_RECEIVER_CLASS_NAME));
+        intent.putExtra(BoxOneCloudReceiver.EXTRA_ONE_CLOUD_TOKENS, tokens);
+
+        // Send a handshake along with the broadcast. Box sends each restored object back through it.
         OneCloudHandshakeInterface.Stub handshake = new OneCloudHandshakeInterface.Stub() {
 
             @Override
             public void sendHandshake(final HandshakeCallback handshakeCallback) throws RemoteException {
-                String[] packages = context.getPackageManager().getPackagesForUid(Binder.getCallingUid());
-                if (packages.length == 1 && packages[0].equals(BoxOneCloudReceiver.BOX_PACKAGE_NAME)) {
+                if (isCallerBox(context)) {
                     handshakeCallback.onShake();
                 }
             }
 
             @Override
             public void sendOneCloudData(final OneCloudInterface oneCloudInterface) throws RemoteException {
+                // Only used for single restores.
+            }
+
+            @Override
+            public void sendRestoredOneCloudData(final long token, final OneCloudInterface oneCloudInterface) throws RemoteException {
+                OneCloudDataFuture future = pending.get(token);
+                if (future == null || future.isDone()) {
+                    return;
+                }
                 OneCloudData ocd = new OneCloudData(oneCloudInterface);
                 ocd.sendHandshake(context);
-                countDownLatch.attachOneCloudData(ocd);
-                countDownLatch.countDown();
+                future.complete(ocd);
             }
         };
         intent
             .putExtra(BoxOneCloudReceiver.EXTRA_ONE_CLOUD_HANDSHAKE, new OneCloudHandshake(OneCloudHandshakeInterface.Stub.asInterface(handshake.asBinder())));
-        context.sendBroadcast(intent);
-        try {
-            countDownLatch.await(3, TimeUnit.SECONDS);
-            return countDownLatch.getOneCloudData();
-        }
-        catch (InterruptedException e) {
-            // e.printStackTrace();
-        }
-        return null;
+        sendToBox(context, intent);
+        return futures;
     }
 }
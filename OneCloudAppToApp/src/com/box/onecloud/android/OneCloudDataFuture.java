@@ -0,0 +1,241 @@
+package com.box.onecloud.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pending result of a request that Box answers by sending back a OneCloudData object, such as OneCloudData.restoreFromTokenAsync(). The future is completed
+ * from the binder callback through which Box sends the object, so no thread needs to wait for it. It completes with null if Box does not answer within the
+ * timeout given when the request was made.
+ * 
+ */
+public class OneCloudDataFuture implements Future<OneCloudData> {
+
+    /** State while waiting for Box. */
+    private static final int STATE_PENDING = 0;
+
+    /** State once Box has answered. */
+    private static final int STATE_DONE = 1;
+
+    /** State once the timeout has elapsed without an answer. */
+    private static final int STATE_TIMED_OUT = 2;
+
+    /** State once cancelled. */
+    private static final int STATE_CANCELLED = 3;
+
+    /** Shared timer for timeouts. */
+    private static ScheduledExecutorService sTimeoutExecutor;
+
+    /** Current state. */
+    private final AtomicInteger mState = new AtomicInteger(STATE_PENDING);
+
+    /** Counted down once the future is no longer pending. */
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    /** Callbacks to run on completion. Guarded by itself. */
+    private final List<Callback> mCallbacks = new ArrayList<Callback>();
+
+    /** Result, or null. */
+    private volatile OneCloudData mResult;
+
+    /** Scheduled timeout, or null. */
+    private volatile ScheduledFuture<?> mTimeout;
+
+    /**
+     * Callback through which you can be told when a OneCloudDataFuture completes.
+     * 
+     */
+    public interface Callback {
+
+        /**
+         * Called once the future completes. This is called on the binder thread through which Box sent the object, on the timer thread if the timeout
+         * elapsed, or on the thread that cancelled the future. If the future had already completed when the callback was set, it is called immediately on
+         * the calling thread.
+         * 
+         * @param oneCloudData
+         *            OneCloudData object, or null if the request timed out or was cancelled.
+         */
+        void onComplete(OneCloudData oneCloudData);
+    }
+
+    /**
+     * Create a future that completes with null if it has not been completed within the given timeout.
+     * 
+     * @param timeoutMillis
+     *            Timeout in milliseconds. 0 or less means no timeout.
+     */
+    OneCloudDataFuture(final long timeoutMillis) {
+        if (timeoutMillis > 0) {
+            mTimeout = getTimeoutExecutor().schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    finish(null, STATE_TIMED_OUT);
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Set a callback to run once this future completes.
+     * 
+     * @param callback
+     *            Callback.
+     */
+    public void setCallback(final Callback callback) {
+        synchronized (mCallbacks) {
+            if (mState.get() == STATE_PENDING) {
+                mCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.onComplete(mResult);
+    }
+
+    /**
+     * Whether the future completed because Box did not answer within the timeout.
+     * 
+     * @return True if timed out.
+     */
+    public boolean isTimedOut() {
+        return mState.get() == STATE_TIMED_OUT;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return finish(null, STATE_CANCELLED);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mState.get() == STATE_CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mState.get() != STATE_PENDING;
+    }
+
+    /**
+     * Wait for the future to complete.
+     * 
+     * @return OneCloudData object, or null if the request timed out.
+     * @throws InterruptedException
+     *             Thrown if the calling thread was interrupted while waiting.
+     * @throws CancellationException
+     *             Thrown if the future was cancelled.
+     */
+    @Override
+    public OneCloudData get() throws InterruptedException {
+        mDone.await();
+        return getResult();
+    }
+
+    /**
+     * Wait at most the given time for the future to complete.
+     * 
+     * @param timeout
+     *            Maximum time to wait.
+     * @param unit
+     *            Unit of the timeout.
+     * @return OneCloudData object, or null if the request timed out.
+     * @throws InterruptedException
+     *             Thrown if the calling thread was interrupted while waiting.
+     * @throws TimeoutException
+     *             Thrown if the future did not complete in time.
+     * @throws CancellationException
+     *             Thrown if the future was cancelled.
+     */
+    @Override
+    public OneCloudData get(final long timeout, final TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    /**
+     * Complete this future with a OneCloudData object sent by Box.
+     * 
+     * @param oneCloudData
+     *            OneCloudData object.
+     * @return True if this completed the future, false if it was no longer pending.
+     */
+    boolean complete(final OneCloudData oneCloudData) {
+        return finish(oneCloudData, STATE_DONE);
+    }
+
+    /**
+     * Move out of the pending state and run the callbacks.
+     * 
+     * @param oneCloudData
+     *            Result, or null.
+     * @param state
+     *            STATE_DONE, STATE_TIMED_OUT or STATE_CANCELLED.
+     * @return True if this call completed the future.
+     */
+    private boolean finish(final OneCloudData oneCloudData, final int state) {
+        List<Callback> callbacks;
+        synchronized (mCallbacks) {
+            if (!mState.compareAndSet(STATE_PENDING, state)) {
+                return false;
+            }
+            mResult = oneCloudData;
+            callbacks = new ArrayList<Callback>(mCallbacks);
+            mCallbacks.clear();
+        }
+        mDone.countDown();
+        ScheduledFuture<?> timeout = mTimeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        for (Callback callback : callbacks) {
+            callback.onComplete(oneCloudData);
+        }
+        return true;
+    }
+
+    /**
+     * Get the result of a completed future.
+     * 
+     * @return Result, or null.
+     * @throws CancellationException
+     *             Thrown if the future was cancelled.
+     */
+    private OneCloudData getResult() {
+        if (mState.get() == STATE_CANCELLED) {
+            throw new CancellationException();
+        }
+        return mResult;
+    }
+
+    /**
+     * Get the shared timer used for timeouts, creating it if needed.
+     * 
+     * @return Timer.
+     */
+    private static synchronized ScheduledExecutorService getTimeoutExecutor() {
+        if (sTimeoutExecutor == null) {
+            sTimeoutExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(r, "OneCloudDataTimeout");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimeoutExecutor;
+    }
+}
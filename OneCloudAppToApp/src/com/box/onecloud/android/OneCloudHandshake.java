@@ -93,4 +93,18 @@ public class OneCloudHandshake implements Parcelable {
         mBinder.sendOneCloudData(oneCloudInterface);
     }
 
+    /**
+     * Send one of the OneCloudData objects requested through a batch restore.
+     * 
+     * @param token
+     *            Token the OneCloudData object was restored from.
+     * @param oneCloudInterface
+     *            OneCloudData object.
+     * @throws RemoteException
+     *             Thrown if there was a problem with the binder.
+     */
+    public void sendRestoredOneCloudData(final long token, final OneCloudInterface oneCloudInterface) throws RemoteException {
+        mBinder.sendRestoredOneCloudData(token, oneCloudInterface);
+    }
+
 }
@@ -0,0 +1,183 @@
+package com.box.onecloud.android;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Snapshot of the information Box holds about a OneCloud transaction. Fetched in a single binder transaction and cached by OneCloudData, so reading it does not
+ * cost any IPC.
+ * 
+ */
+public class OneCloudMetadata implements Parcelable {
+
+    /** File name on Box. */
+    private String mFileName;
+
+    /** Mime type. */
+    private String mMimeType;
+
+    /** File size on Box. */
+    private long mFileSize;
+
+    /** File id on Box. */
+    private long mFileId;
+
+    /** Parent folder id on Box. */
+    private long mFolderId;
+
+    /** Folder path on Box. */
+    private String mFolderPath;
+
+    /** User name of the current Box user. */
+    private String mUsername;
+
+    /**
+     * Parcel CREATOR.
+     */
+    public static final Parcelable.Creator<OneCloudMetadata> CREATOR = new Parcelable.Creator<OneCloudMetadata>() {
+
+        @Override
+        public OneCloudMetadata createFromParcel(final Parcel in) {
+            return new OneCloudMetadata(in);
+        }
+
+        @Override
+        public OneCloudMetadata[] newArray(final int size) {
+            return new OneCloudMetadata[size];
+        }
+    };
+
+    /**
+     * Default constructor.
+     * 
+     * @param fileName
+     *            File name on Box, or null.
+     * @param mimeType
+     *            Mime type, or null.
+     * @param fileSize
+     *            File size on Box.
+     * @param fileId
+     *            File id on Box, or -1.
+     * @param folderId
+     *            Parent folder id on Box, or -1.
+     * @param folderPath
+     *            Folder path on Box, or null.
+     * @param username
+     *            User name of the current Box user, or null.
+     */
+    public OneCloudMetadata(final String fileName, final String mimeType, final long fileSize, final long fileId, final long folderId, final String folderPath,
+        final String username) {
+        mFileName = fileName;
+        mMimeType = mimeType;
+        mFileSize = fileSize;
+        mFileId = fileId;
+        mFolderId = folderId;
+        mFolderPath = folderPath;
+        mUsername = username;
+    }
+
+    /**
+     * Recreate from a parcel.
+     * 
+     * @param in
+     *            Parcel.
+     */
+    public OneCloudMetadata(final Parcel in) {
+        readFromParcel(in);
+    }
+
+    /**
+     * Get the file name on Box.
+     * 
+     * @return File name, or null.
+     */
+    public String getFileName() {
+        return mFileName;
+    }
+
+    /**
+     * Get the mime type.
+     * 
+     * @return Mime type, or null.
+     */
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * Get the file size on Box.
+     * 
+     * @return File size in bytes, or 0 if the file is not on Box yet.
+     */
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    /**
+     * Get the file id on Box.
+     * 
+     * @return File id. Valid if greater than or equal to 0.
+     */
+    public long getFileId() {
+        return mFileId;
+    }
+
+    /**
+     * Get the parent folder id on Box.
+     * 
+     * @return Folder id. Valid if greater than or equal to 0.
+     */
+    public long getFolderId() {
+        return mFolderId;
+    }
+
+    /**
+     * Get the folder path on Box separated by "/".
+     * 
+     * @return Folder path, or null.
+     */
+    public String getFolderPath() {
+        return mFolderPath;
+    }
+
+    /**
+     * Get the user name of the current Box user.
+     * 
+     * @return User name, or null if the current application does not have the privilege to know the user.
+     */
+    public String getUsername() {
+        return mUsername;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(final Parcel dest, final int flags) {
+        dest.writeString(mFileName);
+        dest.writeString(mMimeType);
+        dest.writeLong(mFileSize);
+        dest.writeLong(mFileId);
+        dest.writeLong(mFolderId);
+        dest.writeString(mFolderPath);
+        dest.writeString(mUsername);
+    }
+
+    /**
+     * Read back one self from a parcel.
+     * 
+     * @param in
+     *            Parcel.
+     */
+    private void readFromParcel(final Parcel in) {
+        mFileName = in.readString();
+        mMimeType = in.readString();
+        mFileSize = in.readLong();
+        mFileId = in.readLong();
+        mFolderId = in.readLong();
+        mFolderPath = in.readString();
+        mUsername = in.readString();
+    }
+}
@@ -0,0 +1,394 @@
+package com.box.onecloud.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.os.Build;
+import android.os.RemoteException;
+import android.os.Trace;
+
+/**
+ * Instrumentation of the binder transactions OneCloudData makes to Box. Once enabled, every OneCloudInterface call is counted per method with its latency,
+ * the number of file data bytes it moved and whether it failed with a RemoteException, including the failures OneCloudData itself swallows. Results are
+ * available as snapshots through getStats() and as they happen through a Listener. Tracing can be enabled separately to wrap every call in an
+ * android.os.Trace section, so binder hot spots show up in systrace and Perfetto on Android 4.3 and above.
+ * 
+ * Both are off by default and cost a volatile read per call while off.
+ * 
+ */
+public final class OneCloudMetrics {
+
+    /** Upper bounds in microseconds of the latency histogram buckets. The last bucket holds everything slower. */
+    private static final long[] LATENCY_BUCKET_BOUNDS_MICROS = { 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000 };
+
+    /** Flag set while recording. */
+    static final int FLAG_RECORD = 1;
+
+    /** Flag set while tracing. */
+    static final int FLAG_TRACE = 2;
+
+    /** Current FLAG_RECORD and FLAG_TRACE bits. */
+    private static volatile int sFlags;
+
+    /** Listener, or null. */
+    private static volatile Listener sListener;
+
+    /** Counters per method name. */
+    private static final ConcurrentHashMap<String, Counter> sCounters = new ConcurrentHashMap<String, Counter>();
+
+    /**
+     * A listener that is told about every binder transaction while recording is enabled.
+     * 
+     */
+    public interface Listener {
+
+        /**
+         * Called on the calling thread after each binder transaction. Keep this fast; it runs on the I/O path.
+         * 
+         * @param method
+         *            Name of the OneCloudInterface method, for example "iRead".
+         * @param durationNanos
+         *            Time spent in the transaction.
+         * @param bytes
+         *            Number of file data bytes read or written, or 0 for calls that do not transfer file data.
+         * @param error
+         *            The RemoteException the transaction failed with, or null if it succeeded.
+         */
+        void onTransaction(String method, long durationNanos, long bytes, RemoteException error);
+    }
+
+    /**
+     * Not instantiable.
+     */
+    private OneCloudMetrics() {
+    }
+
+    /**
+     * Start or stop recording per-method statistics and calling the listener.
+     * 
+     * @param enabled
+     *            True to record.
+     */
+    public static synchronized void setEnabled(final boolean enabled) {
+        sFlags = enabled ? sFlags | FLAG_RECORD : sFlags & ~FLAG_RECORD;
+    }
+
+    /**
+     * Whether per-method statistics are being recorded.
+     * 
+     * @return True if recording.
+     */
+    public static boolean isEnabled() {
+        return (sFlags & FLAG_RECORD) != 0;
+    }
+
+    /**
+     * Start or stop wrapping every binder transaction in an android.os.Trace section named after the method. Has no effect before Android 4.3.
+     * 
+     * @param enabled
+     *            True to trace.
+     */
+    public static synchronized void setTracingEnabled(final boolean enabled) {
+        sFlags = enabled ? sFlags | FLAG_TRACE : sFlags & ~FLAG_TRACE;
+    }
+
+    /**
+     * Set the listener that is told about every binder transaction while recording is enabled.
+     * 
+     * @param listener
+     *            Listener, or null to remove it.
+     */
+    public static void setListener(final Listener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * Get the upper bounds of the latency histogram buckets. Bucket i of MethodStats.getLatencyHistogram() counts calls that took at most bound i and more
+     * than bound i - 1; the extra last bucket counts calls slower than every bound.
+     * 
+     * @return Copy of the bounds in microseconds.
+     */
+    public static long[] getLatencyBucketBoundsMicros() {
+        return LATENCY_BUCKET_BOUNDS_MICROS.clone();
+    }
+
+    /**
+     * Get a snapshot of the statistics recorded so far, one entry per method that has been called.
+     * 
+     * @return Statistics per method.
+     */
+    public static List<MethodStats> getStats() {
+        List<MethodStats> stats = new ArrayList<MethodStats>(sCounters.size());
+        for (Counter counter : sCounters.values()) {
+            stats.add(counter.snapshot());
+        }
+        return stats;
+    }
+
+    /**
+     * Forget all statistics recorded so far.
+     */
+    public static void reset() {
+        sCounters.clear();
+    }
+
+    /**
+     * Called before a binder transaction.
+     * 
+     * @param traceName
+     *            Name of the trace section.
+     * @return Flags in effect for this transaction, to be passed to end().
+     */
+    static int begin(final String traceName) {
+        int flags = sFlags;
+        if ((flags & FLAG_TRACE) != 0) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                Trace.beginSection(traceName);
+            }
+            else {
+                flags &= ~FLAG_TRACE;
+            }
+        }
+        return flags;
+    }
+
+    /**
+     * Called after a binder transaction, whether it succeeded or not.
+     * 
+     * @param flags
+     *            Flags returned by begin().
+     * @param method
+     *            Name of the OneCloudInterface method.
+     * @param startNanos
+     *            System.nanoTime() before the transaction.
+     * @param bytes
+     *            Number of file data bytes transferred.
+     * @param error
+     *            The RemoteException the transaction failed with, or null.
+     */
+    static void end(final int flags, final String method, final long startNanos, final long bytes, final RemoteException error) {
+        if ((flags & FLAG_TRACE) != 0) {
+            Trace.endSection();
+        }
+        if ((flags & FLAG_RECORD) == 0) {
+            return;
+        }
+        long durationNanos = System.nanoTime() - startNanos;
+        Counter counter = sCounters.get(method);
+        if (counter == null) {
+            Counter created = new Counter(method);
+            counter = sCounters.putIfAbsent(method, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.record(durationNanos, bytes, error != null);
+
+        Listener listener = sListener;
+        if (listener != null) {
+            listener.onTransaction(method, durationNanos, bytes, error);
+        }
+    }
+
+    /**
+     * Statistics of one OneCloudInterface method at the time getStats() was called.
+     * 
+     */
+    public static final class MethodStats {
+
+        /** Method name. */
+        private final String mMethod;
+
+        /** Number of calls. */
+        private final long mCallCount;
+
+        /** Number of calls that failed with a RemoteException. */
+        private final long mErrorCount;
+
+        /** Total time spent in calls. */
+        private final long mTotalNanos;
+
+        /** Longest call. */
+        private final long mMaxNanos;
+
+        /** Total file data bytes transferred. */
+        private final long mBytes;
+
+        /** Number of calls per latency bucket. */
+        private final long[] mLatencyHistogram;
+
+        /**
+         * Default constructor.
+         * 
+         * @param method
+         *            Method name.
+         * @param callCount
+         *            Number of calls.
+         * @param errorCount
+         *            Number of failed calls.
+         * @param totalNanos
+         *            Total time spent in calls.
+         * @param maxNanos
+         *            Longest call.
+         * @param bytes
+         *            Total file data bytes transferred.
+         * @param latencyHistogram
+         *            Number of calls per latency bucket.
+         */
+        MethodStats(final String method, final long callCount, final long errorCount, final long totalNanos, final long maxNanos, final long bytes,
+            final long[] latencyHistogram) {
+            mMethod = method;
+            mCallCount = callCount;
+            mErrorCount = errorCount;
+            mTotalNanos = totalNanos;
+            mMaxNanos = maxNanos;
+            mBytes = bytes;
+            mLatencyHistogram = latencyHistogram;
+        }
+
+        /**
+         * Get the OneCloudInterface method name.
+         * 
+         * @return Method name.
+         */
+        public String getMethod() {
+            return mMethod;
+        }
+
+        /**
+         * Get the number of calls.
+         * 
+         * @return Call count.
+         */
+        public long getCallCount() {
+            return mCallCount;
+        }
+
+        /**
+         * Get the number of calls that failed with a RemoteException.
+         * 
+         * @return Error count.
+         */
+        public long getErrorCount() {
+            return mErrorCount;
+        }
+
+        /**
+         * Get the total time spent in calls.
+         * 
+         * @return Total time in nanoseconds.
+         */
+        public long getTotalNanos() {
+            return mTotalNanos;
+        }
+
+        /**
+         * Get the longest call.
+         * 
+         * @return Longest call in nanoseconds.
+         */
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        /**
+         * Get the total number of file data bytes transferred.
+         * 
+         * @return Bytes.
+         */
+        public long getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * Get the number of calls per latency bucket. The buckets are described by OneCloudMetrics.getLatencyBucketBoundsMicros().
+         * 
+         * @return Copy of the histogram.
+         */
+        public long[] getLatencyHistogram() {
+            return mLatencyHistogram.clone();
+        }
+
+        @Override
+        public String toString() {
+            long averageMicros = mCallCount == 0 ? 0 : mTotalNanos / mCallCount / 1000;
+            return mMethod + ": " + mCallCount + " calls, " + mErrorCount + " errors, " + averageMicros + "us avg, " + mMaxNanos / 1000 + "us max, " + mBytes
+                + " bytes";
+        }
+    }
+
+    /**
+     * Running totals of one method.
+     * 
+     */
+    private static class Counter {
+
+        /** Method name. */
+        private final String mMethod;
+
+        /** Number of calls. */
+        private long mCallCount;
+
+        /** Number of failed calls. */
+        private long mErrorCount;
+
+        /** Total time spent in calls. */
+        private long mTotalNanos;
+
+        /** Longest call. */
+        private long mMaxNanos;
+
+        /** Total file data bytes transferred. */
+        private long mBytes;
+
+        /** Number of calls per latency bucket. */
+        private final long[] mLatencyHistogram = new long[LATENCY_BUCKET_BOUNDS_MICROS.length + 1];
+
+        /**
+         * Default constructor.
+         * 
+         * @param method
+         *            Method name.
+         */
+        public Counter(final String method) {
+            mMethod = method;
+        }
+
+        /**
+         * Record a call.
+         * 
+         * @param durationNanos
+         *            Time spent in the call.
+         * @param bytes
+         *            File data bytes transferred.
+         * @param failed
+         *            Whether the call failed.
+         */
+        public synchronized void record(final long durationNanos, final long bytes, final boolean failed) {
+            mCallCount++;
+            if (failed) {
+                mErrorCount++;
+            }
+            mTotalNanos += durationNanos;
+            mMaxNanos = Math.max(mMaxNanos, durationNanos);
+            mBytes += bytes;
+
+            long micros = durationNanos / 1000;
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKET_BOUNDS_MICROS.length && micros > LATENCY_BUCKET_BOUNDS_MICROS[bucket]) {
+                bucket++;
+            }
+            mLatencyHistogram[bucket]++;
+        }
+
+        /**
+         * Copy the running totals.
+         * 
+         * @return Snapshot.
+         */
+        public synchronized MethodStats snapshot() {
+            return new MethodStats(mMethod, mCallCount, mErrorCount, mTotalNanos, mMaxNanos, mBytes, mLatencyHistogram.clone());
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.box.onecloud.android;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Read-only random access to the Box file data, shaped like java.nio.channels.SeekableByteChannel (which Android only has from API level 24). Each read is a
+ * single positional binder transaction of at most OneCloudData.MAX_CHUNK_SIZE bytes, so a viewer can jump straight to an index at the end of a large file
+ * (a ZIP central directory, a PDF cross-reference table, an MP4 moov atom) without streaming everything before it. Reads do not disturb the OneCloudData input
+ * stream or other channels. Wrap with java.nio.channels.Channels.newInputStream() where a stream is needed.
+ * 
+ */
+public final class OneCloudSeekableChannel implements ReadableByteChannel {
+
+    /** Transaction being read. */
+    private final OneCloudData mOneCloudData;
+
+    /** Block cache key of the version being read, or null to read from Box directly. */
+    private final String mCacheKey;
+
+    /** Position of the next relative read. */
+    private long mPosition;
+
+    /** Size of the file data, or -1 until it has been fetched. */
+    private long mSize = -1;
+
+    /** Whether the channel is open. */
+    private volatile boolean mOpen = true;
+
+    /**
+     * Default constructor.
+     * 
+     * @param oneCloudData
+     *            Transaction to read.
+     * @param cacheKey
+     *            Block cache key of the version to read, or null to read from Box directly.
+     */
+    OneCloudSeekableChannel(final OneCloudData oneCloudData, final String cacheKey) {
+        mOneCloudData = oneCloudData;
+        mCacheKey = cacheKey;
+    }
+
+    /**
+     * Read bytes at the current position and advance the position by the number of bytes read.
+     * 
+     * @param dst
+     *            Buffer to read into.
+     * @return Number of bytes read, possibly fewer than dst.remaining(), or -1 if the position is at or past the end of the file data.
+     * @throws IOException
+     *             Thrown if the channel is closed or the connection to Box is no longer active.
+     */
+    @Override
+    public synchronized int read(final ByteBuffer dst) throws IOException {
+        int read = read(dst, mPosition);
+        if (read > 0) {
+            mPosition += read;
+        }
+        return read;
+    }
+
+    /**
+     * Read bytes at a given position. The channel position is not changed, so this may be used from several threads at once.
+     * 
+     * @param dst
+     *            Buffer to read into.
+     * @param position
+     *            Position in the file data to read from.
+     * @return Number of bytes read, possibly fewer than dst.remaining(), or -1 if position is at or past the end of the file data.
+     * @throws IOException
+     *             Thrown if the channel is closed or the connection to Box is no longer active.
+     */
+    public int read(final ByteBuffer dst, final long position) throws IOException {
+        ensureOpen();
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: " + position);
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        byte[] data = mOneCloudData.readAt(mCacheKey, position, Math.min(dst.remaining(), OneCloudData.MAX_CHUNK_SIZE));
+        if (data == null || data.length == 0) {
+            // An empty reply to a non-empty read can only mean there is nothing more to read. Returning 0 would make read loops spin.
+            return -1;
+        }
+        if (data.length > dst.remaining()) {
+            throw new IOException("Box returned " + data.length + " bytes for a read of " + dst.remaining() + " bytes.");
+        }
+        dst.put(data);
+        return data.length;
+    }
+
+    /**
+     * Get the position of the next relative read.
+     * 
+     * @return Position.
+     * @throws IOException
+     *             Thrown if the channel is closed.
+     */
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return mPosition;
+    }
+
+    /**
+     * Set the position of the next relative read. Seeking costs nothing; setting a position past the end of the file data is allowed and makes the next read
+     * return -1.
+     * 
+     * @param newPosition
+     *            Position.
+     * @return This channel.
+     * @throws IOException
+     *             Thrown if the channel is closed.
+     */
+    public synchronized OneCloudSeekableChannel position(final long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        mPosition = newPosition;
+        return this;
+    }
+
+    /**
+     * Get the size of the file data. It is fetched from Box on first use and then remembered for the life of the channel.
+     * 
+     * @return Size in bytes.
+     * @throws IOException
+     *             Thrown if the channel is closed or the connection to Box is no longer active.
+     */
+    public synchronized long size() throws IOException {
+        ensureOpen();
+        if (mSize < 0) {
+            mSize = mOneCloudData.fetchFileSize();
+        }
+        return mSize;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    @Override
+    public void close() {
+        mOpen = false;
+    }
+
+    /**
+     * Fail if the channel has been closed.
+     * 
+     * @throws ClosedChannelException
+     *             Thrown if the channel is closed.
+     */
+    private void ensureOpen() throws ClosedChannelException {
+        if (!mOpen) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.box.onecloud.android;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A local staging file for the new Box file data, written through a memory-mapped buffer and handed to Box as a file descriptor. Box uploads straight from the
+ * file, so large edits are neither copied across the binder a chunk at a time nor staged a second time inside the Box app. Create one with
+ * OneCloudData.createStagingFile(), fill getBuffer(), call commit() with the number of bytes written and then upload as usual.
+ * 
+ * <pre>
+ * OneCloudStagingFile staging = oneCloudData.createStagingFile(context.getCacheDir(), size);
+ * try {
+ *     render(staging.getBuffer());
+ *     staging.commit(staging.getBuffer().position());
+ * }
+ * finally {
+ *     staging.close();
+ * }
+ * oneCloudData.uploadNewVersion(listener);
+ * </pre>
+ * 
+ * If the installed Box app is older than 2.1.0, commit() copies the buffer through getOutputStream() instead, so the same code works with every Box version.
+ * A single mapping is limited to Integer.MAX_VALUE bytes.
+ * 
+ */
+public final class OneCloudStagingFile implements Closeable {
+
+    /** Transaction the data is staged for. */
+    private final OneCloudData mOneCloudData;
+
+    /** Staging file. */
+    private final File mFile;
+
+    /** Open staging file. */
+    private final RandomAccessFile mRandomAccessFile;
+
+    /** Mapping of the whole staging file. */
+    private final MappedByteBuffer mBuffer;
+
+    /** Whether the staging file has been closed. */
+    private boolean mClosed;
+
+    /**
+     * Default constructor.
+     * 
+     * @param oneCloudData
+     *            Transaction the data is staged for.
+     * @param directory
+     *            Directory to create the staging file in.
+     * @param capacity
+     *            Size of the staging file.
+     * @throws IOException
+     *             Thrown if the file could not be created or mapped.
+     */
+    OneCloudStagingFile(final OneCloudData oneCloudData, final File directory, final long capacity) throws IOException {
+        if (capacity < 0 || capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Capacity must be between 0 and " + Integer.MAX_VALUE + ": " + capacity);
+        }
+        mOneCloudData = oneCloudData;
+        mFile = File.createTempFile("onecloud", ".staging", directory);
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(mFile, "rw");
+            randomAccessFile.setLength(capacity);
+            mBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        catch (IOException e) {
+            if (randomAccessFile != null) {
+                randomAccessFile.close();
+            }
+            mFile.delete();
+            throw e;
+        }
+        mRandomAccessFile = randomAccessFile;
+    }
+
+    /**
+     * Get the buffer mapping the staging file. Write the new file data into it from position 0.
+     * 
+     * @return Buffer of getCapacity() bytes.
+     */
+    public MappedByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Get the size of the staging file.
+     * 
+     * @return Capacity in bytes.
+     */
+    public long getCapacity() {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * Make the first length bytes of the buffer the new Box file data, as closing getOutputStream() would. Do not modify the buffer afterwards; Box may still
+     * be reading it while it uploads.
+     * 
+     * @param length
+     *            Number of bytes of file data, at most getCapacity().
+     * @throws IOException
+     *             Thrown if the staging file has been closed, the data could not be written out, or the connection to Box is no longer active.
+     */
+    public synchronized void commit(final long length) throws IOException {
+        if (mClosed) {
+            throw new IOException("Staging file is closed.");
+        }
+        if (length < 0 || length > mBuffer.capacity()) {
+            throw new IllegalArgumentException("Length must be between 0 and " + mBuffer.capacity() + ": " + length);
+        }
+        mBuffer.force();
+        mOneCloudData.adoptStagingFile(mFile, mBuffer, (int) length);
+    }
+
+    /**
+     * Close and delete the staging file. Box keeps its own descriptor to data that has been committed, so this may be called as soon as commit() returns.
+     */
+    @Override
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mRandomAccessFile.close();
+        }
+        catch (IOException e) {
+            // Nothing more to do.
+        }
+        mFile.delete();
+    }
+}
@@ -0,0 +1,495 @@
+package com.box.onecloud.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+
+/**
+ * Persists OneCloud tokens on the device so that OneCloud transactions survive the process being killed, and restores the most recently used ones quickly at
+ * startup. Tokens are keyed by Box file id and kept in a compact append-only journal in the app's files directory. Tokens that Box no longer answers for are
+ * dropped once several warm start restores in a row through them have timed out.
+ * 
+ */
+public class OneCloudTokenStore {
+
+    /** Name of the journal file. */
+    private static final String JOURNAL_FILE_NAME = "onecloud_tokens.journal";
+
+    /** Identifies a journal file. */
+    private static final int JOURNAL_MAGIC = 0x4f43544b;
+
+    /** Journal format version. */
+    private static final int JOURNAL_VERSION = 2;
+
+    /** First journal format version, whose records carry the last used time instead of the failure count. It is upgraded when loaded. */
+    private static final int JOURNAL_VERSION_1 = 1;
+
+    /** Record that stores a token. */
+    private static final byte RECORD_PUT = 1;
+
+    /** Record that removes a token. */
+    private static final byte RECORD_REMOVE = 2;
+
+    /** Record that updates the failure count of a token without marking it as used. */
+    private static final byte RECORD_FAILURES = 3;
+
+    /** Size of a record in bytes: type, file id, token, failure count. */
+    private static final int RECORD_SIZE = 1 + 8 + 8 + 8;
+
+    /** Maximum number of tokens kept. The least recently used are evicted beyond this. */
+    private static final int MAX_ENTRIES = 256;
+
+    /** Number of warm start restores in a row that may time out before a token is considered dead. */
+    private static final int MAX_FAILURES = 3;
+
+    /** Number of stale records tolerated in the journal before it is compacted. */
+    private static final int COMPACTION_SLACK = 128;
+
+    /** Process-wide instance. */
+    private static OneCloudTokenStore sInstance;
+
+    /** Application context used for restores. */
+    private final Context mContext;
+
+    /** Journal file. */
+    private final File mJournal;
+
+    /** Tokens by file id, from least to most recently used. */
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<Long, Entry>();
+
+    /** Number of records in the journal. */
+    private int mRecordCount;
+
+    /** Open journal stream, or null. */
+    private OutputStream mOut;
+
+    /**
+     * Get the token store for this app, loading it from disk the first time. The journal is small, but this should still preferably not be called on the UI
+     * thread the first time.
+     * 
+     * @param context
+     *            Context.
+     * @return Token store.
+     */
+    public static synchronized OneCloudTokenStore getInstance(final Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new OneCloudTokenStore(appContext, new File(appContext.getFilesDir(), JOURNAL_FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Default constructor.
+     * 
+     * @param context
+     *            Application context.
+     * @param journal
+     *            Journal file.
+     */
+    private OneCloudTokenStore(final Context context, final File journal) {
+        mContext = context;
+        mJournal = journal;
+        load();
+    }
+
+    /**
+     * Store the token of a OneCloudData object, keyed by the id of its file on Box. This method requires the Box app to be at version 1.9.0 or greater.
+     * 
+     * @param oneCloudData
+     *            OneCloudData object.
+     * @return True if the token was stored, false if the transaction has no file on Box yet or is no longer valid.
+     * @throws NoSuchMethodException
+     *             Thrown if the Box app installed does not yet support this method (you should fail gracefully and/or ask the user to upgrade their Box app).
+     */
+    public boolean put(final OneCloudData oneCloudData) throws NoSuchMethodException {
+        long fileId = oneCloudData.getFileId();
+        long token = oneCloudData.getToken();
+        if (fileId < 0 || token == -1) {
+            return false;
+        }
+        put(fileId, token);
+        return true;
+    }
+
+    /**
+     * Store a token, keyed by the id of its file on Box. This also marks the token as the most recently used.
+     * 
+     * @param fileId
+     *            File id on Box.
+     * @param token
+     *            OneCloud token.
+     */
+    public synchronized void put(final long fileId, final long token) {
+        Entry entry = new Entry(fileId, token, 0);
+        mEntries.remove(fileId);
+        mEntries.put(fileId, entry);
+        append(RECORD_PUT, entry);
+
+        Iterator<Entry> eldest = mEntries.values().iterator();
+        while (mEntries.size() > MAX_ENTRIES) {
+            Entry evicted = eldest.next();
+            eldest.remove();
+            append(RECORD_REMOVE, evicted);
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Get the stored token for a file.
+     * 
+     * @param fileId
+     *            File id on Box.
+     * @return OneCloud token, or -1 if none is stored.
+     */
+    public synchronized long getToken(final long fileId) {
+        Entry entry = mEntries.get(fileId);
+        return entry == null ? -1 : entry.mToken;
+    }
+
+    /**
+     * Remove the stored token for a file.
+     * 
+     * @param fileId
+     *            File id on Box.
+     */
+    public synchronized void remove(final long fileId) {
+        Entry entry = mEntries.remove(fileId);
+        if (entry != null) {
+            append(RECORD_REMOVE, entry);
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Remove all stored tokens.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        rewrite();
+    }
+
+    /**
+     * Get the ids of the files with stored tokens.
+     * 
+     * @return File ids, from most to least recently used.
+     */
+    public synchronized long[] getFileIds() {
+        long[] fileIds = new long[mEntries.size()];
+        int i = fileIds.length;
+        for (Long fileId : mEntries.keySet()) {
+            fileIds[--i] = fileId;
+        }
+        return fileIds;
+    }
+
+    /**
+     * Restore the most recently used OneCloud transactions. All of them are requested from Box at once and complete independently, so this is meant to be
+     * called early, for example when the app starts, so that they are ready by the time the user needs them. Each restore that Box does not answer within the
+     * timeout is recorded against its token, and a token is considered dead and removed once this happened several warm starts in a row. A timeout alone
+     * is not enough, since Box may simply be busy or still starting. This method requires the Box app to be at version 1.9.0 or greater.
+     * 
+     * @param maxSessions
+     *            Maximum number of transactions to restore.
+     * @param timeoutMillis
+     *            Time after which restores that Box has not completed yet complete with null. 0 or less means no timeout.
+     * @return Futures for the restored OneCloudData objects, keyed by file id, from most to least recently used.
+     * @throws NoSuchMethodException
+     *             Thrown if the Box app installed does not yet support this method (you should fail gracefully and/or ask the user to upgrade their Box app).
+     */
+    public Map<Long, OneCloudDataFuture> warmStart(final int maxSessions, final long timeoutMillis) throws NoSuchMethodException {
+        long[] fileIds;
+        long[] tokens;
+        int count;
+        synchronized (this) {
+            long[] recent = getFileIds();
+            count = Math.min(Math.max(maxSessions, 0), recent.length);
+            fileIds = new long[count];
+            tokens = new long[count];
+            for (int i = 0; i < count; i++) {
+                fileIds[i] = recent[i];
+                tokens[i] = mEntries.get(recent[i]).mToken;
+            }
+        }
+
+        OneCloudDataFuture[] futures = OneCloudData.restoreFromTokensAsync(mContext, tokens, timeoutMillis);
+        Map<Long, OneCloudDataFuture> restored = new LinkedHashMap<Long, OneCloudDataFuture>();
+        for (int i = 0; i < count; i++) {
+            final long fileId = fileIds[i];
+            final long token = tokens[i];
+            final OneCloudDataFuture future = futures[i];
+            future.setCallback(new OneCloudDataFuture.Callback() {
+
+                @Override
+                public void onComplete(final OneCloudData oneCloudData) {
+                    if (oneCloudData != null) {
+                        recordSuccess(fileId, token);
+                    }
+                    else if (future.isTimedOut()) {
+                        recordFailure(fileId, token);
+                    }
+                }
+            });
+            restored.put(fileId, future);
+        }
+        return restored;
+    }
+
+    /**
+     * Clear the failures recorded against a token after Box restored it, if it has not been replaced since it was read.
+     * 
+     * @param fileId
+     *            File id on Box.
+     * @param token
+     *            Token that was restored.
+     */
+    private synchronized void recordSuccess(final long fileId, final long token) {
+        Entry entry = mEntries.get(fileId);
+        if (entry != null && entry.mToken == token && entry.mFailures > 0) {
+            entry.mFailures = 0;
+            append(RECORD_FAILURES, entry);
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Record a timed out restore against a token, if it has not been replaced since it was read, and remove the token once too many restores in a row have
+     * timed out.
+     * 
+     * @param fileId
+     *            File id on Box.
+     * @param token
+     *            Token that Box did not answer for.
+     */
+    private synchronized void recordFailure(final long fileId, final long token) {
+        Entry entry = mEntries.get(fileId);
+        if (entry == null || entry.mToken != token) {
+            return;
+        }
+        entry.mFailures++;
+        if (entry.mFailures >= MAX_FAILURES) {
+            remove(fileId);
+            return;
+        }
+        append(RECORD_FAILURES, entry);
+        compactIfNeeded();
+    }
+
+    /**
+     * Replay the journal into memory. If the journal is damaged, for example by a crash mid-write, whatever could be read is kept and the journal is rewritten
+     * so that later records are not appended after garbage. A journal in the first format is rewritten in the current one.
+     */
+    private void load() {
+        if (!mJournal.exists()) {
+            return;
+        }
+        boolean needsRewrite = false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(mJournal));
+            int version = in.readInt() == JOURNAL_MAGIC ? in.readInt() : -1;
+            if (version != JOURNAL_VERSION && version != JOURNAL_VERSION_1) {
+                needsRewrite = true;
+                return;
+            }
+            needsRewrite = version == JOURNAL_VERSION_1;
+            int type;
+            while ((type = in.read()) != -1) {
+                long fileId = in.readLong();
+                long token = in.readLong();
+                long failures = in.readLong();
+                mRecordCount++;
+                if (type == RECORD_FAILURES) {
+                    Entry entry = mEntries.get(fileId);
+                    if (entry != null && entry.mToken == token) {
+                        entry.mFailures = (int) failures;
+                    }
+                    continue;
+                }
+                mEntries.remove(fileId);
+                if (type == RECORD_PUT) {
+                    mEntries.put(fileId, new Entry(fileId, token, version == JOURNAL_VERSION_1 ? 0 : (int) failures));
+                }
+            }
+        }
+        catch (EOFException e) {
+            needsRewrite = true;
+        }
+        catch (IOException e) {
+            needsRewrite = true;
+        }
+        finally {
+            closeQuietly(in);
+            if (needsRewrite) {
+                rewrite();
+            }
+        }
+    }
+
+    /**
+     * Append a record to the journal.
+     * 
+     * @param type
+     *            RECORD_PUT, RECORD_REMOVE or RECORD_FAILURES.
+     * @param entry
+     *            Entry the record is about.
+     */
+    private void append(final byte type, final Entry entry) {
+        try {
+            if (mOut == null) {
+                boolean exists = mJournal.exists() && mJournal.length() > 0;
+                mOut = new FileOutputStream(mJournal, true);
+                if (!exists) {
+                    mOut.write(header());
+                }
+            }
+            mOut.write(record(type, entry));
+            mRecordCount++;
+        }
+        catch (IOException e) {
+            // The in-memory state stays correct. The journal is rewritten on the next compaction.
+            closeQuietly(mOut);
+            mOut = null;
+        }
+    }
+
+    /**
+     * Rewrite the journal from memory once it holds too many stale records.
+     */
+    private void compactIfNeeded() {
+        if (mRecordCount > mEntries.size() + COMPACTION_SLACK) {
+            rewrite();
+        }
+    }
+
+    /**
+     * Rewrite the journal so that it holds exactly one record per stored token. The new journal is written to a temporary file first and then renamed over
+     * the old one.
+     */
+    private void rewrite() {
+        closeQuietly(mOut);
+        mOut = null;
+
+        File temp = new File(mJournal.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + RECORD_SIZE * mEntries.size());
+            bytes.write(header());
+            for (Entry entry : mEntries.values()) {
+                bytes.write(record(RECORD_PUT, entry));
+            }
+            out = new FileOutputStream(temp);
+            bytes.writeTo(out);
+            out.close();
+            out = null;
+            if (temp.renameTo(mJournal)) {
+                mRecordCount = mEntries.size();
+            }
+        }
+        catch (IOException e) {
+            // Keep the old journal.
+        }
+        finally {
+            closeQuietly(out);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Encode the journal header.
+     * 
+     * @return Header bytes.
+     * @throws IOException
+     *             Never thrown in practice.
+     */
+    private static byte[] header() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(JOURNAL_MAGIC);
+        out.writeInt(JOURNAL_VERSION);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encode a record. Records are written with a single write so that a crash cannot interleave them.
+     * 
+     * @param type
+     *            RECORD_PUT, RECORD_REMOVE or RECORD_FAILURES.
+     * @param entry
+     *            Entry the record is about.
+     * @return Record bytes.
+     * @throws IOException
+     *             Never thrown in practice.
+     */
+    private static byte[] record(final byte type, final Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(RECORD_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeLong(entry.mFileId);
+        out.writeLong(entry.mToken);
+        out.writeLong(entry.mFailures);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Close a stream, ignoring errors.
+     * 
+     * @param stream
+     *            Stream, or null.
+     */
+    private static void closeQuietly(final Closeable stream) {
+        if (stream == null) {
+            return;
+        }
+        try {
+            stream.close();
+        }
+        catch (IOException e) {
+            // e.printStackTrace();
+        }
+    }
+
+    /**
+     * A stored token.
+     * 
+     */
+    private static class Entry {
+
+        /** File id on Box. */
+        private final long mFileId;
+
+        /** OneCloud token. */
+        private final long mToken;
+
+        /** Number of warm start restores in a row through the token that timed out. */
+        private int mFailures;
+
+        /**
+         * Default constructor.
+         * 
+         * @param fileId
+         *            File id on Box.
+         * @param token
+         *            OneCloud token.
+         * @param failures
+         *            Number of warm start restores in a row through the token that timed out.
+         */
+        public Entry(final long fileId, final long token, final int failures) {
+            mFileId = fileId;
+            mToken = token;
+            mFailures = failures;
+        }
+    }
+}
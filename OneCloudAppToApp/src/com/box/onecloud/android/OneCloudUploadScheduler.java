@@ -0,0 +1,433 @@
+package com.box.onecloud.android;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import com.box.onecloud.android.OneCloudData.UploadListener;
+
+/**
+ * Queues uploads of OneCloudData objects and runs a bounded number of them at a time, highest priority first. Useful when one edit session produces several
+ * files, for example through createNewSibling() followed by uploadNewFile(), so that they neither have to be serialised by hand nor all be thrown at the Box
+ * app at once. Aggregate progress over all uploads is reported through a BatchListener, and awaitCompletion() waits until every queued upload has finished.
+ * 
+ */
+public class OneCloudUploadScheduler {
+
+    /** Maximum number of uploads running at once. */
+    private final int mMaxConcurrentUploads;
+
+    /** Uploads waiting to start, highest priority first, then in the order they were queued. Guarded by this. */
+    private final PriorityQueue<Upload> mQueue = new PriorityQueue<Upload>(11, new Comparator<Upload>() {
+
+        @Override
+        public int compare(final Upload lhs, final Upload rhs) {
+            if (lhs.mPriority != rhs.mPriority) {
+                return lhs.mPriority > rhs.mPriority ? -1 : 1;
+            }
+            return lhs.mSequence < rhs.mSequence ? -1 : (lhs.mSequence == rhs.mSequence ? 0 : 1);
+        }
+    });
+
+    /** Listener for the whole batch, or null. */
+    private volatile BatchListener mBatchListener;
+
+    /** Number of uploads queued so far. Used to keep uploads of equal priority in order. Guarded by this. */
+    private long mSequence;
+
+    /** Number of uploads currently running. Guarded by this. */
+    private int mRunning;
+
+    /** Bytes transferred by finished uploads in the current batch. Guarded by this. */
+    private long mFinishedBytes;
+
+    /** Bytes transferred so far by running uploads in the current batch. Guarded by this. */
+    private long mRunningBytes;
+
+    /** Total bytes of started uploads in the current batch, as far as known. Guarded by this. */
+    private long mTotalBytes;
+
+    /** Number of uploads that succeeded in the current batch. Guarded by this. */
+    private int mSucceeded;
+
+    /** Number of uploads that failed or were cancelled in the current batch. Guarded by this. */
+    private int mFailed;
+
+    /**
+     * A listener through which you can monitor all uploads of a scheduler together.
+     * 
+     */
+    public interface BatchListener {
+
+        /**
+         * Called when any upload reports progress.
+         * 
+         * @param bytesTransferred
+         *            Bytes transferred so far by all uploads in the current batch.
+         * @param totalBytes
+         *            Total bytes of all uploads in the current batch that have started so far.
+         */
+        void onProgress(long bytesTransferred, long totalBytes);
+
+        /**
+         * Called when the last queued upload has finished and nothing is left to run.
+         * 
+         * @param succeeded
+         *            Number of uploads that succeeded.
+         * @param failed
+         *            Number of uploads that failed or were cancelled.
+         */
+        void onBatchComplete(int succeeded, int failed);
+    }
+
+    /**
+     * Default constructor.
+     * 
+     * @param maxConcurrentUploads
+     *            Maximum number of uploads running at once. Must be at least 1.
+     */
+    public OneCloudUploadScheduler(final int maxConcurrentUploads) {
+        if (maxConcurrentUploads < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1: " + maxConcurrentUploads);
+        }
+        mMaxConcurrentUploads = maxConcurrentUploads;
+    }
+
+    /**
+     * Set the listener for the whole batch.
+     * 
+     * @param listener
+     *            Listener, or null.
+     */
+    public void setBatchListener(final BatchListener listener) {
+        mBatchListener = listener;
+    }
+
+    /**
+     * Queue an upload of a OneCloudData object as a new version of its file. See OneCloudData.uploadNewVersion(UploadListener).
+     * 
+     * @param oneCloudData
+     *            Transaction to upload.
+     * @param priority
+     *            Priority. Uploads with a higher priority start first.
+     * @param listener
+     *            An upload listener for this upload. This can be null.
+     */
+    public void uploadNewVersion(final OneCloudData oneCloudData, final int priority, final UploadListener listener) {
+        enqueue(new Upload(oneCloudData, ResumableUpload.TYPE_NEW_VERSION, null, priority, listener));
+    }
+
+    /**
+     * Queue an upload of a OneCloudData object as a new version of its file with a new file name. See OneCloudData.uploadNewVersion(String, UploadListener).
+     * 
+     * @param oneCloudData
+     *            Transaction to upload.
+     * @param newFileName
+     *            The new file name that the file will take on in Box.
+     * @param priority
+     *            Priority. Uploads with a higher priority start first.
+     * @param listener
+     *            An upload listener for this upload. This can be null.
+     */
+    public void uploadNewVersion(final OneCloudData oneCloudData, final String newFileName, final int priority, final UploadListener listener) {
+        enqueue(new Upload(oneCloudData, ResumableUpload.TYPE_NEW_VERSION_WITH_NEW_NAME, newFileName, priority, listener));
+    }
+
+    /**
+     * Queue an upload of a OneCloudData object as a new file. See OneCloudData.uploadNewFile(String, UploadListener).
+     * 
+     * @param oneCloudData
+     *            Transaction to upload.
+     * @param suggestedFileName
+     *            The file name that will be suggested to the user for the new file.
+     * @param priority
+     *            Priority. Uploads with a higher priority start first.
+     * @param listener
+     *            An upload listener for this upload. This can be null.
+     */
+    public void uploadNewFile(final OneCloudData oneCloudData, final String suggestedFileName, final int priority, final UploadListener listener) {
+        enqueue(new Upload(oneCloudData, ResumableUpload.TYPE_NEW_FILE, suggestedFileName, priority, listener));
+    }
+
+    /**
+     * Remove every upload that has not started yet. Their listeners get onError(). Running uploads are not affected.
+     */
+    public void cancelPending() {
+        Upload[] cancelled;
+        synchronized (this) {
+            cancelled = mQueue.toArray(new Upload[mQueue.size()]);
+            mQueue.clear();
+            for (Upload upload : cancelled) {
+                upload.mFinished = true;
+                mFailed++;
+            }
+        }
+        for (Upload upload : cancelled) {
+            if (upload.mListener != null) {
+                upload.mListener.onError();
+            }
+        }
+        if (cancelled.length > 0) {
+            endBatchIfIdle();
+        }
+    }
+
+    /**
+     * Wait until every queued upload has finished. This should not be called on the UI thread.
+     * 
+     * @param timeout
+     *            Maximum time to wait.
+     * @param unit
+     *            Unit of the timeout.
+     * @return True if all uploads finished, false if the timeout elapsed first.
+     * @throws InterruptedException
+     *             Thrown if the calling thread was interrupted while waiting.
+     */
+    public synchronized boolean awaitCompletion(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + unit.toMillis(timeout);
+        while (mRunning > 0 || !mQueue.isEmpty()) {
+            long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of uploads that are queued or running.
+     * 
+     * @return Number of unfinished uploads.
+     */
+    public synchronized int getUnfinishedCount() {
+        return mRunning + mQueue.size();
+    }
+
+    /**
+     * Add an upload to the queue and start uploads if there is room.
+     * 
+     * @param upload
+     *            Upload.
+     */
+    private void enqueue(final Upload upload) {
+        synchronized (this) {
+            upload.mSequence = mSequence++;
+            mQueue.add(upload);
+        }
+        startUploads();
+    }
+
+    /**
+     * Start queued uploads while fewer than the maximum are running.
+     */
+    private void startUploads() {
+        while (true) {
+            Upload upload;
+            synchronized (this) {
+                if (mRunning >= mMaxConcurrentUploads || mQueue.isEmpty()) {
+                    return;
+                }
+                upload = mQueue.poll();
+                mRunning++;
+            }
+            start(upload);
+        }
+    }
+
+    /**
+     * Trigger an upload through its OneCloudData object.
+     * 
+     * @param upload
+     *            Upload.
+     */
+    private void start(final Upload upload) {
+        UploadListener listener = new UploadListener() {
+
+            @Override
+            public void onProgress(final long bytesTransferred, final long totalBytes) {
+                if (upload.mListener != null) {
+                    upload.mListener.onProgress(bytesTransferred, totalBytes);
+                }
+                onUploadProgress(upload, bytesTransferred, totalBytes);
+            }
+
+            @Override
+            public void onComplete() {
+                onUploadFinished(upload, true);
+            }
+
+            @Override
+            public void onError() {
+                onUploadFinished(upload, false);
+            }
+        };
+
+        // The listener is only called once the upload has started, so every other outcome has to release the slot here or awaitCompletion() never returns.
+        boolean started = false;
+        try {
+            started = upload.mOneCloudData.startUpload(upload.mType, upload.mFileName, listener);
+        }
+        catch (RemoteException e) {
+            // Reported below.
+        }
+        catch (RuntimeException e) {
+            // Reported below.
+        }
+        if (!started) {
+            onUploadFinished(upload, false);
+        }
+    }
+
+    /**
+     * Account for progress reported by a running upload.
+     * 
+     * @param upload
+     *            Upload.
+     * @param bytesTransferred
+     *            Bytes transferred by the upload so far.
+     * @param totalBytes
+     *            Total bytes of the upload.
+     */
+    private void onUploadProgress(final Upload upload, final long bytesTransferred, final long totalBytes) {
+        long batchBytes;
+        long batchTotal;
+        synchronized (this) {
+            if (upload.mFinished) {
+                return;
+            }
+            mRunningBytes += bytesTransferred - upload.mBytesTransferred;
+            mTotalBytes += totalBytes - upload.mTotalBytes;
+            upload.mBytesTransferred = bytesTransferred;
+            upload.mTotalBytes = totalBytes;
+            batchBytes = mFinishedBytes + mRunningBytes;
+            batchTotal = mTotalBytes;
+        }
+        BatchListener batchListener = mBatchListener;
+        if (batchListener != null) {
+            batchListener.onProgress(batchBytes, batchTotal);
+        }
+    }
+
+    /**
+     * Account for a running upload that has finished, tell its listener, and start the next one. Box and a failed upload call may both report the end of the
+     * same upload, so the upload is marked finished in the same lock that accounts for it and only the first report counts.
+     * 
+     * @param upload
+     *            Upload.
+     * @param success
+     *            Whether it succeeded.
+     */
+    private void onUploadFinished(final Upload upload, final boolean success) {
+        synchronized (this) {
+            if (upload.mFinished) {
+                return;
+            }
+            upload.mFinished = true;
+            mRunning--;
+            mRunningBytes -= upload.mBytesTransferred;
+            mFinishedBytes += upload.mBytesTransferred;
+            if (success) {
+                mSucceeded++;
+            }
+            else {
+                mFailed++;
+            }
+        }
+
+        if (upload.mListener != null) {
+            if (success) {
+                upload.mListener.onComplete();
+            }
+            else {
+                upload.mListener.onError();
+            }
+        }
+        endBatchIfIdle();
+        startUploads();
+    }
+
+    /**
+     * End the current batch if nothing is queued or running, waking up awaitCompletion() and telling the batch listener.
+     */
+    private void endBatchIfIdle() {
+        int succeeded;
+        int failed;
+        synchronized (this) {
+            if (mRunning > 0 || !mQueue.isEmpty() || mSucceeded + mFailed == 0) {
+                return;
+            }
+            succeeded = mSucceeded;
+            failed = mFailed;
+            mFinishedBytes = 0;
+            mRunningBytes = 0;
+            mTotalBytes = 0;
+            mSucceeded = 0;
+            mFailed = 0;
+            notifyAll();
+        }
+        BatchListener batchListener = mBatchListener;
+        if (batchListener != null) {
+            batchListener.onBatchComplete(succeeded, failed);
+        }
+    }
+
+    /**
+     * A queued upload.
+     * 
+     */
+    private static class Upload {
+
+        /** Transaction to upload. */
+        private final OneCloudData mOneCloudData;
+
+        /** One of the ResumableUpload.TYPE_* constants. */
+        private final int mType;
+
+        /** File name for the upload, or null. */
+        private final String mFileName;
+
+        /** Priority. */
+        private final int mPriority;
+
+        /** Listener for this upload, or null. */
+        private final UploadListener mListener;
+
+        /** Order in which the upload was queued. */
+        private long mSequence;
+
+        /** Bytes transferred so far. */
+        private long mBytesTransferred;
+
+        /** Total bytes, once known. */
+        private long mTotalBytes;
+
+        /** Whether the upload has finished. */
+        private boolean mFinished;
+
+        /**
+         * Default constructor.
+         * 
+         * @param oneCloudData
+         *            Transaction to upload.
+         * @param type
+         *            One of the ResumableUpload.TYPE_* constants.
+         * @param fileName
+         *            File name for the upload, or null.
+         * @param priority
+         *            Priority.
+         * @param listener
+         *            Listener for this upload, or null.
+         */
+        public Upload(final OneCloudData oneCloudData, final int type, final String fileName, final int priority, final UploadListener listener) {
+            mOneCloudData = oneCloudData;
+            mType = type;
+            mFileName = fileName;
+            mPriority = priority;
+            mListener = listener;
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package com.box.onecloud.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * InputStream that reads its source in large chunks and serves read(), skip(), mark()/reset() and available() from a local buffer. Each chunk costs one binder
+ * transaction when the source is backed by Box, so byte-at-a-time consumers no longer pay one transaction per byte. Optionally, the next chunk is fetched on a
+ * background thread while the caller processes the current one. Buffers are borrowed from the default OneCloudBufferPool and returned on close().
+ * 
+ */
+final class ReadAheadInputStream extends InputStream {
+
+    /** Stream chunks are read from. */
+    private final InputStream mSource;
+
+    /** Number of bytes requested from the source per read. */
+    private final int mChunkSize;
+
+    /** Background fetcher, or null if prefetching is disabled. */
+    private final Prefetcher mPrefetcher;
+
+    /** Local buffer. Holds the current chunk plus any bytes retained for a mark. */
+    private byte[] mBuffer;
+
+    /** Position of the next byte to be read from the buffer. */
+    private int mPos;
+
+    /** Number of valid bytes in the buffer. */
+    private int mCount;
+
+    /** Buffer position of the current mark, or -1 if there is none. */
+    private int mMarkPos = -1;
+
+    /** Number of bytes that may be read after the mark before it becomes invalid. */
+    private int mMarkLimit;
+
+    /** Whether the source has reached the end of the stream. */
+    private boolean mEof;
+
+    /** Whether this stream has been closed. */
+    private boolean mClosed;
+
+    /**
+     * Default constructor.
+     * 
+     * @param source
+     *            Stream to read chunks from.
+     * @param chunkSize
+     *            Number of bytes to request from the source per read. Must be between 1 and OneCloudData.MAX_CHUNK_SIZE.
+     * @param prefetch
+     *            Whether to fetch the next chunk on a background thread.
+     */
+    ReadAheadInputStream(final InputStream source, final int chunkSize, final boolean prefetch) {
+        if (chunkSize < 1 || chunkSize > OneCloudData.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + OneCloudData.MAX_CHUNK_SIZE + ": " + chunkSize);
+        }
+        mSource = source;
+        mChunkSize = chunkSize;
+        mBuffer = OneCloudBufferPool.getDefault().acquire(chunkSize);
+        mPrefetcher = prefetch ? new Prefetcher() : null;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        ensureOpen();
+        int available = mCount - mPos;
+        if (mPrefetcher != null) {
+            available += mPrefetcher.peekLength();
+        }
+        return available;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mPrefetcher != null) {
+            // The source must not be closed while the prefetcher may still be reading from it.
+            mPrefetcher.shutdown();
+        }
+        OneCloudBufferPool.getDefault().release(mBuffer);
+        mBuffer = null;
+        mSource.close();
+    }
+
+    @Override
+    public synchronized void mark(final int readlimit) {
+        mMarkLimit = readlimit;
+        mMarkPos = mPos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        ensureOpen();
+        while (mPos >= mCount) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        return mBuffer[mPos++] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        ensureOpen();
+        if (offset < 0 || length < 0 || length > buffer.length - offset) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (length == 0) {
+            return 0;
+        }
+
+        if (mPos >= mCount) {
+            // Large reads with nothing buffered and nothing to retain can go straight to the source.
+            if (length >= mChunkSize && mMarkPos < 0 && mPrefetcher == null) {
+                if (mEof) {
+                    return -1;
+                }
+                int read = mSource.read(buffer, offset, length);
+                if (read == -1) {
+                    mEof = true;
+                }
+                return read;
+            }
+            while (mPos >= mCount) {
+                if (!fill()) {
+                    return -1;
+                }
+            }
+        }
+
+        int read = Math.min(length, mCount - mPos);
+        System.arraycopy(mBuffer, mPos, buffer, offset, read);
+        mPos += read;
+        return read;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        ensureOpen();
+        if (mMarkPos < 0) {
+            throw new IOException("Mark has been invalidated.");
+        }
+        mPos = mMarkPos;
+    }
+
+    @Override
+    public synchronized long skip(final long byteCount) throws IOException {
+        ensureOpen();
+        if (byteCount <= 0) {
+            return 0;
+        }
+
+        long buffered = mCount - mPos;
+        if (buffered > 0) {
+            long skipped = Math.min(buffered, byteCount);
+            mPos += skipped;
+            return skipped;
+        }
+
+        // Nothing buffered. Without a mark to honour or a prefetcher running ahead of us, let the source skip in one call.
+        if (mMarkPos < 0 && mPrefetcher == null) {
+            return mEof ? 0 : mSource.skip(byteCount);
+        }
+        if (!fill()) {
+            return 0;
+        }
+        long skipped = Math.min(mCount - mPos, byteCount);
+        mPos += skipped;
+        return skipped;
+    }
+
+    /**
+     * Throw if this stream has been closed.
+     * 
+     * @throws IOException
+     *             Thrown if the stream is closed.
+     */
+    private void ensureOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed.");
+        }
+    }
+
+    /**
+     * Read the next chunk into the buffer, compacting or growing the buffer as needed to honour the current mark.
+     * 
+     * @return True if bytes were added, false at the end of the stream.
+     * @throws IOException
+     *             Thrown if the source could not be read.
+     */
+    private boolean fill() throws IOException {
+        if (mEof) {
+            return false;
+        }
+
+        if (mMarkPos < 0 || mCount - mMarkPos >= mMarkLimit) {
+            // No mark, or the mark has been read past its limit. Drop everything.
+            mMarkPos = -1;
+            mPos = 0;
+            mCount = 0;
+        }
+        else if (mMarkPos > 0) {
+            // Keep only the bytes from the mark onwards.
+            System.arraycopy(mBuffer, mMarkPos, mBuffer, 0, mCount - mMarkPos);
+            mCount -= mMarkPos;
+            mPos -= mMarkPos;
+            mMarkPos = 0;
+        }
+        if (mBuffer.length - mCount < mChunkSize) {
+            int size = mCount + mChunkSize;
+            byte[] grown = size <= OneCloudData.MAX_CHUNK_SIZE ? OneCloudBufferPool.getDefault().acquire(size) : new byte[size];
+            System.arraycopy(mBuffer, 0, grown, 0, mCount);
+            OneCloudBufferPool.getDefault().release(mBuffer);
+            mBuffer = grown;
+        }
+
+        int read;
+        if (mPrefetcher != null) {
+            read = mPrefetcher.take(mBuffer, mCount);
+        }
+        else {
+            read = mSource.read(mBuffer, mCount, mChunkSize);
+        }
+        if (read == -1) {
+            mEof = true;
+            return false;
+        }
+        mCount += read;
+        return true;
+    }
+
+    /**
+     * A chunk fetched by the prefetcher.
+     * 
+     */
+    private static class Chunk {
+
+        /** Chunk data, borrowed from the buffer pool, or null if there is none. */
+        private final byte[] mData;
+
+        /** Number of valid bytes in the chunk, or -1 at the end of the stream. */
+        private final int mLength;
+
+        /** Error hit while fetching, or null. */
+        private final IOException mError;
+
+        /**
+         * Default constructor.
+         * 
+         * @param data
+         *            Chunk data.
+         * @param length
+         *            Number of valid bytes, or -1 at the end of the stream.
+         * @param error
+         *            Error hit while fetching, or null.
+         */
+        public Chunk(final byte[] data, final int length, final IOException error) {
+            mData = data;
+            mLength = length;
+            mError = error;
+        }
+    }
+
+    /**
+     * Background thread that keeps the next chunk ready while the current one is being consumed. Started on the first fill.
+     * 
+     */
+    private class Prefetcher extends Thread {
+
+        /** Fetched chunks waiting to be consumed. */
+        private final BlockingQueue<Chunk> mChunks = new ArrayBlockingQueue<Chunk>(1);
+
+        /** Final chunk (end of stream or error) once it has been taken, or null. */
+        private Chunk mLast;
+
+        /** Whether the thread has been started. */
+        private boolean mStarted;
+
+        /** Set when the stream is closed. */
+        private volatile boolean mStopped;
+
+        /**
+         * Default constructor.
+         */
+        public Prefetcher() {
+            super("OneCloudReadAhead");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!mStopped) {
+                    byte[] data = OneCloudBufferPool.getDefault().acquire(mChunkSize);
+                    Chunk chunk;
+                    try {
+                        int length = mSource.read(data, 0, mChunkSize);
+                        if (length == -1) {
+                            OneCloudBufferPool.getDefault().release(data);
+                            data = null;
+                        }
+                        chunk = new Chunk(data, length, null);
+                    }
+                    catch (IOException e) {
+                        OneCloudBufferPool.getDefault().release(data);
+                        chunk = new Chunk(null, -1, e);
+                    }
+                    try {
+                        mChunks.put(chunk);
+                    }
+                    catch (InterruptedException e) {
+                        OneCloudBufferPool.getDefault().release(chunk.mData);
+                        throw e;
+                    }
+                    if (chunk.mLength == -1) {
+                        return;
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                // Stream closed.
+            }
+        }
+
+        /**
+         * Take the next chunk and copy it into a buffer.
+         * 
+         * @param buffer
+         *            Buffer to copy into. Must have room for a full chunk.
+         * @param offset
+         *            Offset at which to copy.
+         * @return Number of bytes copied, or -1 at the end of the stream.
+         * @throws IOException
+         *             Thrown if the chunk could not be fetched.
+         */
+        public int take(final byte[] buffer, final int offset) throws IOException {
+            if (!mStarted) {
+                mStarted = true;
+                start();
+            }
+            Chunk chunk = mLast;
+            if (chunk == null) {
+                try {
+                    chunk = mChunks.take();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (chunk.mLength == -1) {
+                    // The fetcher has stopped. Keep reporting how it ended.
+                    mLast = chunk;
+                }
+            }
+            if (chunk.mError != null) {
+                throw chunk.mError;
+            }
+            if (chunk.mLength > 0) {
+                System.arraycopy(chunk.mData, 0, buffer, offset, chunk.mLength);
+            }
+            if (chunk != mLast) {
+                OneCloudBufferPool.getDefault().release(chunk.mData);
+            }
+            return chunk.mLength;
+        }
+
+        /**
+         * Get the number of bytes in a chunk that is ready to be taken without blocking.
+         * 
+         * @return Number of bytes ready.
+         */
+        public int peekLength() {
+            Chunk chunk = mChunks.peek();
+            return chunk == null ? 0 : Math.max(chunk.mLength, 0);
+        }
+
+        /**
+         * Stop fetching and wait for the thread to finish, so that it no longer uses the source. A read already in progress is waited for, since binder
+         * calls cannot be interrupted.
+         */
+        public void shutdown() {
+            mStopped = true;
+            if (!mStarted) {
+                return;
+            }
+            interrupt();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    join();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            Chunk chunk = mChunks.poll();
+            if (chunk != null && chunk != mLast) {
+                OneCloudBufferPool.getDefault().release(chunk.mData);
+            }
+        }
+    }
+}
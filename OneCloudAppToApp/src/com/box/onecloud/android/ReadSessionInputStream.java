@@ -0,0 +1,163 @@
+package com.box.onecloud.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.os.RemoteException;
+
+/**
+ * Input stream over one read session, whose cursor Box keeps for us. Seeks are deferred until the next read, so skip() and reset() cost no binder transaction
+ * of their own. If the session is lost because Box died and the transaction has been restored by automatic reconnection, a new session is opened at the same
+ * position. Used by OneCloudData.openReadSession() with a Box app at version 2.2.0 or greater.
+ * 
+ */
+final class ReadSessionInputStream extends InputStream {
+
+    /** Transaction being read. */
+    private final OneCloudData mOneCloudData;
+
+    /** Binder the session was opened on. */
+    private OneCloudInterface mBinder;
+
+    /** Session id from Box. */
+    private int mSessionId;
+
+    /** Position of the next byte. */
+    private long mPosition;
+
+    /** Position of the mark. */
+    private long mMark;
+
+    /** Whether the session cursor has to be moved to mPosition before the next read. */
+    private boolean mSeekPending;
+
+    /** Whether the stream has been closed. */
+    private boolean mClosed;
+
+    /**
+     * Default constructor.
+     * 
+     * @param oneCloudData
+     *            Transaction to read.
+     * @param binder
+     *            Binder the session was opened on.
+     * @param sessionId
+     *            Session id from Box.
+     */
+    ReadSessionInputStream(final OneCloudData oneCloudData, final OneCloudInterface binder, final int sessionId) {
+        mOneCloudData = oneCloudData;
+        mBinder = binder;
+        mSessionId = sessionId;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] oneByte = new byte[1];
+        return read(oneByte, 0, 1) == -1 ? -1 : oneByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream is closed.");
+        }
+        if (length == 0) {
+            return 0;
+        }
+        for (int attempt = 0;; attempt++) {
+            try {
+                if (mSeekPending) {
+                    mOneCloudData.sessionSeek(mBinder, mSessionId, mPosition);
+                    mSeekPending = false;
+                }
+                int requested = Math.min(length, OneCloudData.MAX_CHUNK_SIZE);
+                byte[] data = mOneCloudData.sessionRead(mBinder, mSessionId, requested);
+                if (data == null || data.length == 0) {
+                    // An empty reply to a non-empty read can only mean there is nothing more to read. Returning 0 would make read loops spin.
+                    return -1;
+                }
+                if (data.length > requested) {
+                    throw new IOException("Box returned " + data.length + " bytes for a read of " + requested + " bytes.");
+                }
+                System.arraycopy(data, 0, buffer, offset, data.length);
+                mPosition += data.length;
+                return data.length;
+            }
+            catch (OneCloudConnectionLostException e) {
+                if (attempt > 0 || !reopen()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Open a new session at the current position after the old one was lost with the Box process that held it.
+     * 
+     * @return True if a new session was opened.
+     */
+    private boolean reopen() {
+        if (!mOneCloudData.isConnected()) {
+            return false;
+        }
+        OneCloudInterface binder = mOneCloudData.getBinder();
+        try {
+            int sessionId = mOneCloudData.openReadSession(binder);
+            if (sessionId < 0) {
+                return false;
+            }
+            mBinder = binder;
+            mSessionId = sessionId;
+            mSeekPending = true;
+            return true;
+        }
+        catch (RemoteException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Skip bytes without reading them. Skipping past the end of the file data is allowed; later reads return -1.
+     * 
+     * @param byteCount
+     *            Number of bytes to skip.
+     * @return Number of bytes skipped.
+     */
+    @Override
+    public long skip(final long byteCount) {
+        if (byteCount <= 0) {
+            return 0;
+        }
+        mPosition += byteCount;
+        mSeekPending = true;
+        return byteCount;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(final int readLimit) {
+        mMark = mPosition;
+    }
+
+    @Override
+    public void reset() {
+        mPosition = mMark;
+        mSeekPending = true;
+    }
+
+    /**
+     * Close the stream and its session on the Box side.
+     */
+    @Override
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mOneCloudData.closeReadSession(mBinder, mSessionId);
+    }
+}
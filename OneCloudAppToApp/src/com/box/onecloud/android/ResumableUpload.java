@@ -0,0 +1,238 @@
+package com.box.onecloud.android;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.RemoteException;
+
+/**
+ * A chunked upload of the data staged in a OneCloudData object. Box uploads the data in checksummed chunks and acknowledges each chunk once it is stored, so if
+ * the upload fails part way through it can be resumed from the last acknowledged offset instead of starting over. The session id and acknowledged offset can
+ * be persisted to resume after the process has been killed, through OneCloudData.resumeUpload().
+ * 
+ */
+public class ResumableUpload {
+
+    /** Upload as a new version of the file. */
+    public static final int TYPE_NEW_VERSION = 0;
+
+    /** Upload as a new version of the file with a new file name. */
+    public static final int TYPE_NEW_VERSION_WITH_NEW_NAME = 1;
+
+    /** Upload as a new file. */
+    public static final int TYPE_NEW_FILE = 2;
+
+    /** Error code passed to Listener.onError() when the Box app died during the upload. Never reported by Box itself. */
+    public static final int ERROR_CONNECTION_LOST = Integer.MIN_VALUE;
+
+    /** Transaction being uploaded. */
+    private final OneCloudData mOneCloudData;
+
+    /** Listener, or null. */
+    private final Listener mListener;
+
+    /** Upload session id assigned by Box, or null until the upload has started. */
+    private volatile String mSessionId;
+
+    /** Number of bytes Box has acknowledged as stored. */
+    private volatile long mAcknowledgedOffset;
+
+    /** Whether the upload has completed. */
+    private volatile boolean mComplete;
+
+    /**
+     * A listener through which you can monitor resumable uploads.
+     * 
+     */
+    public interface Listener {
+
+        /**
+         * Called during the upload. For example you could use this to draw a progress bar.
+         * 
+         * @param bytesTransferred
+         *            The number of bytes transferred so far.
+         * @param totalBytes
+         *            The total bytes that will have transferred when the upload has completed.
+         */
+        void onProgress(long bytesTransferred, long totalBytes);
+
+        /**
+         * Called once a chunk is stored. An upload resumed after this call will not send this chunk again.
+         * 
+         * @param offset
+         *            Offset of the chunk in the uploaded data.
+         * @param length
+         *            Length of the chunk in bytes.
+         * @param checksum
+         *            CRC32 of the chunk.
+         */
+        void onChunkAcknowledged(long offset, int length, long checksum);
+
+        /**
+         * Called when the upload has successfully completed.
+         */
+        void onComplete();
+
+        /**
+         * Called if the upload has failed. You can call upload.resume() to continue from upload.getAcknowledgedOffset(). If errorCode is
+         * ERROR_CONNECTION_LOST, the Box app died; resuming needs automatic reconnection, see OneCloudData.setAutoReconnect().
+         * 
+         * @param upload
+         *            The failed upload.
+         * @param errorCode
+         *            Error code reported by Box.
+         * @param message
+         *            Error description reported by Box, or null.
+         */
+        void onError(ResumableUpload upload, int errorCode, String message);
+    }
+
+    /**
+     * Default constructor.
+     * 
+     * @param oneCloudData
+     *            Transaction being uploaded.
+     * @param sessionId
+     *            Upload session id, or null if the upload has not started yet.
+     * @param acknowledgedOffset
+     *            Number of bytes already acknowledged.
+     * @param listener
+     *            Listener, or null.
+     */
+    ResumableUpload(final OneCloudData oneCloudData, final String sessionId, final long acknowledgedOffset, final Listener listener) {
+        mOneCloudData = oneCloudData;
+        mSessionId = sessionId;
+        mAcknowledgedOffset = acknowledgedOffset;
+        mListener = listener;
+    }
+
+    /**
+     * Get the upload session id assigned by Box. Persist this along with getAcknowledgedOffset() to resume after the process has been killed.
+     * 
+     * @return Upload session id.
+     */
+    public String getSessionId() {
+        return mSessionId;
+    }
+
+    /**
+     * Get the number of bytes Box has acknowledged as stored. A resumed upload continues from here.
+     * 
+     * @return Acknowledged offset.
+     */
+    public long getAcknowledgedOffset() {
+        return mAcknowledgedOffset;
+    }
+
+    /**
+     * Whether the upload has completed.
+     * 
+     * @return True if complete.
+     */
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * Continue a failed upload from the last acknowledged offset.
+     * 
+     * @throws RemoteException
+     *             Thrown if the connection to Box is no longer active.
+     */
+    public void resume() throws RemoteException {
+        mOneCloudData.resumeChunkedUpload(this);
+    }
+
+    /**
+     * Cancel the upload. Box discards the chunks stored so far.
+     * 
+     * @throws RemoteException
+     *             Thrown if the connection to Box is no longer active.
+     */
+    public void cancel() throws RemoteException {
+        mOneCloudData.cancelChunkedUpload(this);
+    }
+
+    /**
+     * Set the upload session id once Box has assigned it.
+     * 
+     * @param sessionId
+     *            Upload session id.
+     */
+    void setSessionId(final String sessionId) {
+        mSessionId = sessionId;
+    }
+
+    /**
+     * Create the binder callbacks through which Box reports on this upload.
+     * 
+     * @return Binder callbacks.
+     */
+    Callbacks createCallbacks() {
+        return new Callbacks();
+    }
+
+    /**
+     * Binder callbacks through which Box reports on one attempt at this upload. Run if Box dies before the attempt has finished, which reports it as failed
+     * with ERROR_CONNECTION_LOST.
+     * 
+     */
+    final class Callbacks extends ChunkedUploadCallbacks.Stub implements OneCloudData.TrackedOperation {
+
+        /** Whether the outcome of the attempt has been reported. */
+        private final AtomicBoolean mFinished = new AtomicBoolean();
+
+        @Override
+        public void onChunkAcknowledged(final long offset, final int length, final long checksum) throws RemoteException {
+            if (offset + length > mAcknowledgedOffset) {
+                mAcknowledgedOffset = offset + length;
+            }
+            if (mListener != null) {
+                mListener.onChunkAcknowledged(offset, length, checksum);
+            }
+        }
+
+        @Override
+        public void onProgress(final long bytesTransferred, final long totalBytes) throws RemoteException {
+            if (mListener != null) {
+                mListener.onProgress(bytesTransferred, totalBytes);
+            }
+        }
+
+        @Override
+        public void onComplete() throws RemoteException {
+            if (!markFinished()) {
+                return;
+            }
+            mOneCloudData.untrack(this);
+            mComplete = true;
+            mOneCloudData.invalidateMetadata();
+            if (mListener != null) {
+                mListener.onComplete();
+            }
+        }
+
+        @Override
+        public void onError(final int errorCode, final String message, final long acknowledgedOffset) throws RemoteException {
+            if (!markFinished()) {
+                return;
+            }
+            mOneCloudData.untrack(this);
+            mAcknowledgedOffset = acknowledgedOffset;
+            if (mListener != null) {
+                mListener.onError(ResumableUpload.this, errorCode, message);
+            }
+        }
+
+        @Override
+        public boolean markFinished() {
+            return mFinished.compareAndSet(false, true);
+        }
+
+        @Override
+        public void run() {
+            if (markFinished() && mListener != null) {
+                mListener.onError(ResumableUpload.this, ERROR_CONNECTION_LOST, "The Box app is no longer running.");
+            }
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package com.box.onecloud.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.box.onecloud.android.OneCloudData.Transformer;
+
+/**
+ * Reads data from a source, passes it through a Transformer and writes the result to a sink, with each of the three stages on its own thread. A reader thread
+ * fills chunks from the source, the calling thread feeds them through the Transformer, and a writer thread drains the transformed chunks into the sink, so the
+ * whole run takes about as long as the slowest stage rather than the sum of all three. Chunks come from two fixed pools, one on each side of the Transformer,
+ * and are recycled as soon as they have been consumed, so memory use is bounded no matter how large the data is. The pools are borrowed from the default
+ * OneCloudBufferPool and returned once the run has finished.
+ * 
+ */
+final class TransformPipeline {
+
+    /** Chunk that marks the end of a queue. */
+    private static final Chunk END = new Chunk(null, 0);
+
+    /** Stream the untransformed data is read from. */
+    private final InputStream mSource;
+
+    /** Stream the transformed data is written to. */
+    private final OutputStream mSink;
+
+    /** Number of bytes per chunk. Pooled chunks may be longer. */
+    private final int mChunkSize;
+
+    /** Empty chunks for the reader thread. */
+    private final BlockingQueue<byte[]> mFreeInput;
+
+    /** Empty chunks for the Transformer output. */
+    private final BlockingQueue<byte[]> mFreeOutput;
+
+    /** Chunks read from the source, waiting to be transformed. */
+    private final BlockingQueue<Chunk> mFilled = new LinkedBlockingQueue<Chunk>();
+
+    /** Transformed chunks waiting for the writer thread. */
+    private final BlockingQueue<Chunk> mTransformed = new LinkedBlockingQueue<Chunk>();
+
+    /** Counted down once the writer thread has finished with the sink. */
+    private final CountDownLatch mWriterDone = new CountDownLatch(1);
+
+    /** First error hit by the reader thread, or null. */
+    private volatile IOException mReadError;
+
+    /** First error hit by the writer thread, or null. */
+    private volatile IOException mWriteError;
+
+    /** Number of bytes written to the sink. */
+    private volatile long mBytesWritten;
+
+    /** Set once the run has failed. The writer thread then drops what is left and never closes the sink, so the failed run commits nothing. */
+    private volatile boolean mAborted;
+
+    /**
+     * Default constructor.
+     * 
+     * @param source
+     *            Stream to read the untransformed data from.
+     * @param sink
+     *            Stream to write the transformed data to. It is closed, committing the data, only if the pipeline succeeds.
+     * @param chunkSize
+     *            Number of bytes per chunk. Must be between 1 and OneCloudData.MAX_CHUNK_SIZE.
+     * @param depth
+     *            Number of chunks on each side of the Transformer. Must be at least 1.
+     */
+    TransformPipeline(final InputStream source, final OutputStream sink, final int chunkSize, final int depth) {
+        if (chunkSize < 1 || chunkSize > OneCloudData.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + OneCloudData.MAX_CHUNK_SIZE + ": " + chunkSize);
+        }
+        if (depth < 1) {
+            throw new IllegalArgumentException("Pipeline depth must be at least 1: " + depth);
+        }
+        mSource = source;
+        mSink = sink;
+        mChunkSize = chunkSize;
+        mFreeInput = new ArrayBlockingQueue<byte[]>(depth);
+        mFreeOutput = new ArrayBlockingQueue<byte[]>(depth);
+        for (int i = 0; i < depth; i++) {
+            mFreeInput.add(OneCloudBufferPool.getDefault().acquire(chunkSize));
+            mFreeOutput.add(OneCloudBufferPool.getDefault().acquire(chunkSize));
+        }
+    }
+
+    /**
+     * Run the pipeline to completion on the calling thread. The source is closed when this returns. The sink is only closed if the run succeeded; after a
+     * failure it is left unclosed so that the truncated data never replaces the Box file data.
+     * 
+     * @param transformer
+     *            Transformer to pass the data through.
+     * @return Number of transformed bytes written to the sink.
+     * @throws IOException
+     *             Thrown if reading, transforming or writing failed.
+     */
+    long run(final Transformer transformer) throws IOException {
+        Reader reader = new Reader();
+        Writer writer = new Writer();
+        reader.start();
+        writer.start();
+
+        PipeOutputStream pipe = new PipeOutputStream();
+        boolean success = false;
+        try {
+            OutputStream out = transformer.wrap(pipe);
+            while (true) {
+                Chunk chunk = take(mFilled);
+                if (chunk == END) {
+                    break;
+                }
+                out.write(chunk.mData, 0, chunk.mLength);
+                mFreeInput.offer(chunk.mData);
+            }
+            if (mReadError != null) {
+                throw mReadError;
+            }
+            // Closing the Transformer's stream flushes its last bytes into the pipe, which then waits for the writer thread.
+            out.close();
+            pipe.close();
+            success = true;
+        }
+        finally {
+            if (!success) {
+                reader.interrupt();
+                pipe.abort();
+            }
+            // Chunks still held by a stage that was cut short are left to the garbage collector.
+            releaseAll(mFreeInput);
+            releaseAll(mFreeOutput);
+        }
+        return mBytesWritten;
+    }
+
+    /**
+     * Return the idle chunks of a pool to the buffer pool.
+     * 
+     * @param pool
+     *            Pool of idle chunks.
+     */
+    private static void releaseAll(final BlockingQueue<byte[]> pool) {
+        byte[] chunk;
+        while ((chunk = pool.poll()) != null) {
+            OneCloudBufferPool.getDefault().release(chunk);
+        }
+    }
+
+    /**
+     * Take the next element from a queue.
+     * 
+     * @param queue
+     *            Queue.
+     * @return Element.
+     * @throws IOException
+     *             Thrown if the calling thread was interrupted while waiting.
+     */
+    private static <T> T take(final BlockingQueue<T> queue) throws IOException {
+        try {
+            return queue.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * A chunk of data passed between stages.
+     * 
+     */
+    private static class Chunk {
+
+        /** Chunk buffer, borrowed from one of the pools. */
+        private final byte[] mData;
+
+        /** Number of valid bytes in the buffer. */
+        private final int mLength;
+
+        /**
+         * Default constructor.
+         * 
+         * @param data
+         *            Chunk buffer.
+         * @param length
+         *            Number of valid bytes in the buffer.
+         */
+        public Chunk(final byte[] data, final int length) {
+            mData = data;
+            mLength = length;
+        }
+    }
+
+    /**
+     * Stream the Transformer writes to. Coalesces writes into pooled chunks and hands full chunks to the writer thread.
+     * 
+     */
+    private class PipeOutputStream extends OutputStream {
+
+        /** Chunk currently being filled, or null. */
+        private byte[] mChunk;
+
+        /** Number of bytes in the current chunk. */
+        private int mChunkLength;
+
+        /** Whether the end of the data has been handed to the writer thread. */
+        private boolean mClosed;
+
+        @Override
+        public void write(final int oneByte) throws IOException {
+            ensureOpen();
+            if (mChunk == null) {
+                mChunk = take(mFreeOutput);
+                ensureOpen();
+            }
+            mChunk[mChunkLength++] = (byte) oneByte;
+            if (mChunkLength == mChunkSize) {
+                handOffChunk();
+            }
+        }
+
+        @Override
+        public void write(final byte[] buffer, final int offset, final int count) throws IOException {
+            ensureOpen();
+            if (offset < 0 || count < 0 || count > buffer.length - offset) {
+                throw new IndexOutOfBoundsException();
+            }
+            int written = 0;
+            while (written < count) {
+                if (mChunk == null) {
+                    mChunk = take(mFreeOutput);
+                    ensureOpen();
+                }
+                int length = Math.min(count - written, mChunkSize - mChunkLength);
+                System.arraycopy(buffer, offset + written, mChunk, mChunkLength, length);
+                mChunkLength += length;
+                written += length;
+                if (mChunkLength == mChunkSize) {
+                    handOffChunk();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            ensureOpen();
+            if (mChunkLength > 0) {
+                handOffChunk();
+            }
+            finish();
+            if (mWriteError != null) {
+                throw mWriteError;
+            }
+        }
+
+        /**
+         * Stop after a failure. Chunks not yet written are dropped and the sink is not closed, so the Box file data is left as it was.
+         */
+        void abort() {
+            mAborted = true;
+            if (mClosed) {
+                return;
+            }
+            mChunk = null;
+            mChunkLength = 0;
+            try {
+                finish();
+            }
+            catch (IOException e) {
+                // Already failing.
+            }
+        }
+
+        /**
+         * Hand the end of the data to the writer thread and wait for it to finish with the sink.
+         * 
+         * @throws IOException
+         *             Thrown if the calling thread was interrupted while waiting.
+         */
+        private void finish() throws IOException {
+            mClosed = true;
+            mTransformed.add(END);
+            try {
+                mWriterDone.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        /**
+         * Throw if the pipe has been closed or the writer thread has failed.
+         * 
+         * @throws IOException
+         *             Thrown if the pipe can no longer be written to.
+         */
+        private void ensureOpen() throws IOException {
+            if (mClosed) {
+                throw new IOException("Stream closed.");
+            }
+            if (mWriteError != null) {
+                throw mWriteError;
+            }
+        }
+
+        /**
+         * Hand the current chunk to the writer thread.
+         */
+        private void handOffChunk() {
+            mTransformed.add(new Chunk(mChunk, mChunkLength));
+            mChunk = null;
+            mChunkLength = 0;
+        }
+    }
+
+    /**
+     * Thread that fills pooled chunks from the source until it runs out, fails or is interrupted.
+     * 
+     */
+    private class Reader extends Thread {
+
+        /**
+         * Default constructor.
+         */
+        public Reader() {
+            super("OneCloudTransformReader");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    byte[] chunk = mFreeInput.take();
+                    int length = 0;
+                    while (length < mChunkSize) {
+                        int read = mSource.read(chunk, length, mChunkSize - length);
+                        if (read == -1) {
+                            break;
+                        }
+                        length += read;
+                    }
+                    if (length > 0) {
+                        mFilled.add(new Chunk(chunk, length));
+                    }
+                    else {
+                        mFreeInput.offer(chunk);
+                    }
+                    if (length < mChunkSize) {
+                        break;
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                mReadError = new InterruptedIOException();
+            }
+            catch (IOException e) {
+                mReadError = e;
+            }
+            finally {
+                try {
+                    mSource.close();
+                }
+                catch (IOException e) {
+                    // Nothing more to read anyway.
+                }
+                mFilled.add(END);
+            }
+        }
+    }
+
+    /**
+     * Thread that writes transformed chunks to the sink and returns them to the pool, then closes the sink unless the run failed. After an error, the
+     * remaining chunks are dropped but still returned so that the Transformer never waits forever for an empty chunk.
+     * 
+     */
+    private class Writer extends Thread {
+
+        /**
+         * Default constructor.
+         */
+        public Writer() {
+            super("OneCloudTransformWriter");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Chunk chunk;
+                    try {
+                        chunk = mTransformed.take();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    if (chunk == END) {
+                        break;
+                    }
+                    if (mWriteError == null && !mAborted) {
+                        try {
+                            mSink.write(chunk.mData, 0, chunk.mLength);
+                            mBytesWritten += chunk.mLength;
+                        }
+                        catch (IOException e) {
+                            mWriteError = e;
+                        }
+                    }
+                    mFreeOutput.offer(chunk.mData);
+                }
+                if (mAborted || mWriteError != null) {
+                    return;
+                }
+                try {
+                    mSink.close();
+                }
+                catch (IOException e) {
+                    if (mWriteError == null) {
+                        mWriteError = e;
+                    }
+                }
+            }
+            finally {
+                mWriterDone.countDown();
+            }
+        }
+    }
+}
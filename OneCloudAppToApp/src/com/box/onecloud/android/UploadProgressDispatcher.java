@@ -0,0 +1,361 @@
+package com.box.onecloud.android;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.box.onecloud.android.OneCloudData.UploadListener;
+
+/**
+ * UploadListener that coalesces progress updates before passing them on to another UploadListener on a chosen Looper or Executor. Box can report progress
+ * thousands of times per upload; this forwards an update only once both a minimum time and a minimum number of bytes have passed since the last one, and never
+ * queues more than one pending update at a time. An update held back by the thresholds is still delivered once Box has gone quiet for the minimum time, so
+ * a stalled upload does not show stale progress. The listener is called from one thread at a time. The final progress value is always delivered, before
+ * onComplete() or onError(), and no progress is delivered after them.
+ * 
+ * <pre>
+ * oneCloudData.uploadNewFile(name, new UploadProgressDispatcher(listener, Looper.getMainLooper()));
+ * </pre>
+ * 
+ */
+public class UploadProgressDispatcher implements UploadListener {
+
+    /** Default minimum time between two progress updates. */
+    public static final long DEFAULT_MIN_INTERVAL_MILLIS = 200;
+
+    /** Default minimum number of bytes between two progress updates. */
+    public static final long DEFAULT_MIN_BYTE_DELTA = 0;
+
+    /** Shared timer for trailing deliveries. */
+    private static ScheduledExecutorService sTrailingExecutor;
+
+    /** Listener updates are passed on to. */
+    private final UploadListener mListener;
+
+    /** Minimum time between two progress updates. */
+    private final long mMinIntervalMillis;
+
+    /** Minimum number of bytes between two progress updates. */
+    private final long mMinByteDelta;
+
+    /** Executor the listener is called on. Must run tasks in order. */
+    private final Executor mExecutor;
+
+    /** Guards the fields below. */
+    private final Object mLock = new Object();
+
+    /** Latest bytes transferred reported by Box. */
+    private long mLatestBytes;
+
+    /** Latest total bytes reported by Box. */
+    private long mLatestTotal;
+
+    /** Whether a progress value has been received but not yet delivered. */
+    private boolean mHasPending;
+
+    /** Whether a delivery is queued on the executor. */
+    private boolean mPosted;
+
+    /** Whether any progress update has passed the thresholds yet. */
+    private boolean mStarted;
+
+    /** Bytes transferred at the last update that passed the thresholds. */
+    private long mLastBytes;
+
+    /** Time of the last update that passed the thresholds. */
+    private long mLastTime;
+
+    /** Time of the latest update reported by Box. */
+    private long mLatestTime;
+
+    /** Whether a trailing delivery is scheduled on the timer. */
+    private boolean mTrailingScheduled;
+
+    /** Whether onComplete() or onError() has been called. */
+    private boolean mFinished;
+
+    /** Whether onComplete() or onError() has been passed on. Progress deliveries still queued behind it are dropped. */
+    private boolean mClosed;
+
+    /** Delivers the latest progress value. */
+    private final Runnable mDeliverProgress = new Runnable() {
+
+        @Override
+        public void run() {
+            long bytes;
+            long total;
+            synchronized (mLock) {
+                mPosted = false;
+                if (mClosed || !mHasPending) {
+                    return;
+                }
+                mHasPending = false;
+                bytes = mLatestBytes;
+                total = mLatestTotal;
+            }
+            mListener.onProgress(bytes, total);
+        }
+    };
+
+    /** Delivers a held back progress value once Box has gone quiet, or waits longer if it has reported again since. */
+    private final Runnable mDeliverTrailing = new Runnable() {
+
+        @Override
+        public void run() {
+            long now = SystemClock.uptimeMillis();
+            synchronized (mLock) {
+                mTrailingScheduled = false;
+                if (mFinished || !mHasPending) {
+                    return;
+                }
+                long quiet = now - mLatestTime;
+                if (quiet < mMinIntervalMillis) {
+                    scheduleTrailing(mMinIntervalMillis - quiet);
+                    return;
+                }
+                mLastTime = now;
+                mLastBytes = mLatestBytes;
+                if (mPosted) {
+                    return;
+                }
+                mPosted = true;
+            }
+            mExecutor.execute(mDeliverProgress);
+        }
+    };
+
+    /**
+     * Create a dispatcher with the default thresholds that calls the listener on a Looper.
+     * 
+     * @param listener
+     *            Listener to pass updates on to.
+     * @param looper
+     *            Looper to call the listener on, for example Looper.getMainLooper().
+     */
+    public UploadProgressDispatcher(final UploadListener listener, final Looper looper) {
+        this(listener, DEFAULT_MIN_INTERVAL_MILLIS, DEFAULT_MIN_BYTE_DELTA, looper);
+    }
+
+    /**
+     * Create a dispatcher that calls the listener on a Looper.
+     * 
+     * @param listener
+     *            Listener to pass updates on to.
+     * @param minIntervalMillis
+     *            Minimum time between two progress updates.
+     * @param minByteDelta
+     *            Minimum number of bytes between two progress updates.
+     * @param looper
+     *            Looper to call the listener on, for example Looper.getMainLooper().
+     */
+    public UploadProgressDispatcher(final UploadListener listener, final long minIntervalMillis, final long minByteDelta, final Looper looper) {
+        this(listener, minIntervalMillis, minByteDelta, new HandlerExecutor(new Handler(looper)));
+    }
+
+    /**
+     * Create a dispatcher that calls the listener through an Executor.
+     * 
+     * @param listener
+     *            Listener to pass updates on to.
+     * @param minIntervalMillis
+     *            Minimum time between two progress updates.
+     * @param minByteDelta
+     *            Minimum number of bytes between two progress updates.
+     * @param executor
+     *            Executor to call the listener on. It must run tasks one at a time in the order they were submitted. If null, the listener is called on the
+     *            binder or timer thread that produced the update, one call at a time.
+     */
+    public UploadProgressDispatcher(final UploadListener listener, final long minIntervalMillis, final long minByteDelta, final Executor executor) {
+        mListener = listener;
+        mMinIntervalMillis = minIntervalMillis;
+        mMinByteDelta = minByteDelta;
+        mExecutor = executor != null ? executor : new InlineSerialExecutor();
+    }
+
+    @Override
+    public void onProgress(final long bytesTransferred, final long totalBytes) {
+        long now = SystemClock.uptimeMillis();
+        synchronized (mLock) {
+            mLatestBytes = bytesTransferred;
+            mLatestTotal = totalBytes;
+            mLatestTime = now;
+            mHasPending = true;
+
+            boolean last = totalBytes > 0 && bytesTransferred >= totalBytes;
+            if (mStarted && !last && (now - mLastTime < mMinIntervalMillis || bytesTransferred - mLastBytes < mMinByteDelta)) {
+                if (mMinIntervalMillis > 0 && !mTrailingScheduled && !mFinished) {
+                    scheduleTrailing(mMinIntervalMillis);
+                }
+                return;
+            }
+            mStarted = true;
+            mLastTime = now;
+            mLastBytes = bytesTransferred;
+            if (mPosted) {
+                // The queued delivery will pick up this value.
+                return;
+            }
+            mPosted = true;
+        }
+        mExecutor.execute(mDeliverProgress);
+    }
+
+    @Override
+    public void onComplete() {
+        finish(true);
+    }
+
+    @Override
+    public void onError() {
+        finish(false);
+    }
+
+    /**
+     * Pass on the end of the upload, preceded by the latest progress value if it has not been delivered yet. A progress delivery can still be queued from
+     * before this call, for example by the timer, so the final value is taken when the outcome is delivered and later progress deliveries are dropped.
+     * 
+     * @param success
+     *            Whether to call onComplete() rather than onError().
+     */
+    private void finish(final boolean success) {
+        synchronized (mLock) {
+            mFinished = true;
+        }
+        mExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                boolean pending;
+                long bytes;
+                long total;
+                synchronized (mLock) {
+                    mClosed = true;
+                    pending = mHasPending;
+                    mHasPending = false;
+                    bytes = mLatestBytes;
+                    total = mLatestTotal;
+                }
+                if (pending) {
+                    mListener.onProgress(bytes, total);
+                }
+                if (success) {
+                    mListener.onComplete();
+                }
+                else {
+                    mListener.onError();
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedule a trailing delivery. Must be called with mLock held.
+     * 
+     * @param delayMillis
+     *            Delay before the trailing delivery checks whether Box has gone quiet.
+     */
+    private void scheduleTrailing(final long delayMillis) {
+        mTrailingScheduled = true;
+        getTrailingExecutor().schedule(mDeliverTrailing, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the shared timer used for trailing deliveries, creating it if needed.
+     * 
+     * @return Timer.
+     */
+    private static synchronized ScheduledExecutorService getTrailingExecutor() {
+        if (sTrailingExecutor == null) {
+            sTrailingExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(r, "OneCloudProgressTimer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTrailingExecutor;
+    }
+
+    /**
+     * Executor that runs tasks on the thread that submits them, one at a time and in order. A task submitted while another thread is running tasks is queued
+     * and run by that thread.
+     * 
+     */
+    private static class InlineSerialExecutor implements Executor {
+
+        /** Tasks waiting to run. */
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+
+        /** Whether a thread is running tasks. */
+        private boolean mRunning;
+
+        @Override
+        public void execute(final Runnable command) {
+            synchronized (this) {
+                mTasks.add(command);
+                if (mRunning) {
+                    return;
+                }
+                mRunning = true;
+            }
+            boolean drained = false;
+            try {
+                while (true) {
+                    Runnable task;
+                    synchronized (this) {
+                        task = mTasks.poll();
+                        if (task == null) {
+                            mRunning = false;
+                            drained = true;
+                            return;
+                        }
+                    }
+                    task.run();
+                }
+            }
+            finally {
+                if (!drained) {
+                    // A task threw. Let the next caller run whatever is still queued.
+                    synchronized (this) {
+                        mRunning = false;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Executor that posts tasks to a Handler.
+     * 
+     */
+    private static class HandlerExecutor implements Executor {
+
+        /** Handler tasks are posted to. */
+        private final Handler mHandler;
+
+        /**
+         * Default constructor.
+         * 
+         * @param handler
+         *            Handler tasks are posted to.
+         */
+        public HandlerExecutor(final Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            mHandler.post(command);
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.box.onecloud.android;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * OutputStream that coalesces writes into large chunks and hands them to a dedicated writer thread. Each chunk costs one binder transaction when the sink is
+ * backed by Box, so byte-at-a-time producers no longer pay one transaction per byte. Writers only block when too many chunks are pending, and on flush() and
+ * close(), which return once everything written before them has reached the sink. Once close() has returned, the data is ready to be uploaded. Chunks are
+ * borrowed from the default OneCloudBufferPool and returned as soon as they have been written.
+ * 
+ */
+final class WriteBehindOutputStream extends OutputStream {
+
+    /** Operation that writes a chunk. */
+    private static final int OP_WRITE = 0;
+
+    /** Operation that flushes the sink. */
+    private static final int OP_FLUSH = 1;
+
+    /** Operation that closes the sink and stops the writer thread. */
+    private static final int OP_CLOSE = 2;
+
+    /** Stream chunks are written to. */
+    private final OutputStream mSink;
+
+    /** Number of bytes coalesced before a chunk is handed to the writer thread. */
+    private final int mChunkSize;
+
+    /** Operations waiting for the writer thread. Bounded so that fast producers block instead of buffering without limit. */
+    private final BlockingQueue<Op> mPending;
+
+    /** Chunk currently being filled, or null. */
+    private byte[] mChunk;
+
+    /** Number of bytes in the current chunk. */
+    private int mChunkLength;
+
+    /** Writer thread, or null until the first chunk is handed off. */
+    private Thread mWriter;
+
+    /** First error hit by the writer thread, or null. */
+    private volatile IOException mError;
+
+    /** Whether this stream has been closed. */
+    private boolean mClosed;
+
+    /** Close operation handed to the writer thread, or null. Kept so that a close() retried after an interrupt still waits for it. */
+    private Op mCloseOp;
+
+    /**
+     * Default constructor.
+     * 
+     * @param sink
+     *            Stream to write chunks to.
+     * @param chunkSize
+     *            Number of bytes per chunk. Must be between 1 and OneCloudData.MAX_CHUNK_SIZE.
+     * @param maxPendingChunks
+     *            Number of chunks that may wait for the writer thread before writers block. Must be at least 1.
+     */
+    WriteBehindOutputStream(final OutputStream sink, final int chunkSize, final int maxPendingChunks) {
+        if (chunkSize < 1 || chunkSize > OneCloudData.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + OneCloudData.MAX_CHUNK_SIZE + ": " + chunkSize);
+        }
+        if (maxPendingChunks < 1) {
+            throw new IllegalArgumentException("Pending chunk limit must be at least 1: " + maxPendingChunks);
+        }
+        mSink = sink;
+        mChunkSize = chunkSize;
+        mPending = new ArrayBlockingQueue<Op>(maxPendingChunks);
+    }
+
+    @Override
+    public synchronized void write(final int oneByte) throws IOException {
+        ensureOpen();
+        if (mChunk == null) {
+            mChunk = OneCloudBufferPool.getDefault().acquire(mChunkSize);
+        }
+        mChunk[mChunkLength++] = (byte) oneByte;
+        if (mChunkLength == mChunkSize) {
+            handOffChunk();
+        }
+    }
+
+    @Override
+    public synchronized void write(final byte[] buffer, final int offset, final int count) throws IOException {
+        ensureOpen();
+        if (offset < 0 || count < 0 || count > buffer.length - offset) {
+            throw new IndexOutOfBoundsException();
+        }
+        int written = 0;
+        while (written < count) {
+            if (mChunk == null) {
+                mChunk = OneCloudBufferPool.getDefault().acquire(mChunkSize);
+            }
+            int length = Math.min(count - written, mChunkSize - mChunkLength);
+            System.arraycopy(buffer, offset + written, mChunk, mChunkLength, length);
+            mChunkLength += length;
+            written += length;
+            if (mChunkLength == mChunkSize) {
+                handOffChunk();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        ensureOpen();
+        if (mChunkLength > 0) {
+            handOffChunk();
+        }
+        if (mWriter == null) {
+            mSink.flush();
+            return;
+        }
+        awaitOp(OP_FLUSH);
+    }
+
+    /**
+     * Close the stream. The last chunk and the close are handed to the writer thread even if the calling thread is interrupted, so the writer thread always
+     * closes the sink and stops. If the wait for it is interrupted, calling close() again waits for the same close to finish.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mCloseOp == null) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (mChunkLength > 0) {
+                startWriter();
+                enqueueUninterruptibly(new Op(OP_WRITE, mChunk, mChunkLength));
+                mChunk = null;
+                mChunkLength = 0;
+            }
+            if (mWriter == null) {
+                mSink.close();
+                return;
+            }
+            mCloseOp = new Op(OP_CLOSE, null, 0);
+            enqueueUninterruptibly(mCloseOp);
+        }
+        await(mCloseOp);
+    }
+
+    /**
+     * Throw if this stream has been closed or the writer thread has failed.
+     * 
+     * @throws IOException
+     *             Thrown if the stream can no longer be written to.
+     */
+    private void ensureOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed.");
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    /**
+     * Hand the current chunk to the writer thread, blocking if too many chunks are already pending.
+     * 
+     * @throws IOException
+     *             Thrown if the calling thread was interrupted while waiting.
+     */
+    private void handOffChunk() throws IOException {
+        startWriter();
+        enqueue(new Op(OP_WRITE, mChunk, mChunkLength));
+        mChunk = null;
+        mChunkLength = 0;
+    }
+
+    /**
+     * Start the writer thread if it is not running yet.
+     */
+    private void startWriter() {
+        if (mWriter == null) {
+            mWriter = new Writer();
+            mWriter.start();
+        }
+    }
+
+    /**
+     * Queue a flush or close and wait until the writer thread has carried it out.
+     * 
+     * @param type
+     *            OP_FLUSH or OP_CLOSE.
+     * @throws IOException
+     *             Thrown if any pending write, the flush or the close failed.
+     */
+    private void awaitOp(final int type) throws IOException {
+        Op op = new Op(type, null, 0);
+        enqueue(op);
+        await(op);
+    }
+
+    /**
+     * Wait until the writer thread has carried out an operation.
+     * 
+     * @param op
+     *            Queued operation.
+     * @throws IOException
+     *             Thrown if any write before it or the operation itself failed, or if the calling thread was interrupted while waiting.
+     */
+    private void await(final Op op) throws IOException {
+        try {
+            op.mDone.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    /**
+     * Add an operation to the pending queue.
+     * 
+     * @param op
+     *            Operation.
+     * @throws IOException
+     *             Thrown if the calling thread was interrupted while waiting for room.
+     */
+    private void enqueue(final Op op) throws IOException {
+        try {
+            mPending.put(op);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Add an operation to the pending queue, waiting for room even if the calling thread is interrupted. The writer thread always drains the queue, so this
+     * cannot wait forever. The interrupt is restored afterwards.
+     * 
+     * @param op
+     *            Operation.
+     */
+    private void enqueueUninterruptibly(final Op op) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mPending.put(op);
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * An operation for the writer thread.
+     * 
+     */
+    private static class Op {
+
+        /** OP_WRITE, OP_FLUSH or OP_CLOSE. */
+        private final int mType;
+
+        /** Chunk to write, borrowed from the buffer pool. */
+        private final byte[] mData;
+
+        /** Number of valid bytes in the chunk. */
+        private final int mLength;
+
+        /** Counted down once the operation has been carried out. */
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        /**
+         * Default constructor.
+         * 
+         * @param type
+         *            OP_WRITE, OP_FLUSH or OP_CLOSE.
+         * @param data
+         *            Chunk to write, or null.
+         * @param length
+         *            Number of valid bytes in the chunk.
+         */
+        public Op(final int type, final byte[] data, final int length) {
+            mType = type;
+            mData = data;
+            mLength = length;
+        }
+    }
+
+    /**
+     * Thread that carries out pending operations in order. After an error, the remaining writes are dropped but flushes and closes are still acknowledged so
+     * that nobody waits forever.
+     * 
+     */
+    private class Writer extends Thread {
+
+        /**
+         * Default constructor.
+         */
+        public Writer() {
+            super("OneCloudWriteBehind");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Op op;
+                try {
+                    op = mPending.take();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    if (op.mType == OP_WRITE) {
+                        try {
+                            if (mError == null) {
+                                mSink.write(op.mData, 0, op.mLength);
+                            }
+                        }
+                        finally {
+                            OneCloudBufferPool.getDefault().release(op.mData);
+                        }
+                    }
+                    else if (op.mType == OP_FLUSH) {
+                        if (mError == null) {
+                            mSink.flush();
+                        }
+                    }
+                    else {
+                        mSink.close();
+                    }
+                }
+                catch (IOException e) {
+                    if (mError == null) {
+                        mError = e;
+                    }
+                }
+                catch (RuntimeException e) {
+                    if (mError == null) {
+                        mError = new IOException(e);
+                    }
+                }
+                finally {
+                    op.mDone.countDown();
+                }
+                if (op.mType == OP_CLOSE) {
+                    return;
+                }
+            }
+        }
+    }
+}
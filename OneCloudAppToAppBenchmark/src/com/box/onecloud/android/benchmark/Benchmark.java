@@ -0,0 +1,57 @@
+package com.box.onecloud.android.benchmark;
+
+/**
+ * A single benchmark. The runner calls setUp() once, then run() as many times as it needs, then tearDown(). Each call to run() is one timed operation.
+ * 
+ */
+public abstract class Benchmark {
+
+    /** Name used in reports, for example "read/stream/chunk=65536/buffer=1024". */
+    private final String mName;
+
+    /**
+     * Default constructor.
+     * 
+     * @param name
+     *            Name used in reports.
+     */
+    protected Benchmark(final String name) {
+        mName = name;
+    }
+
+    /**
+     * Get the name used in reports.
+     * 
+     * @return Name.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Prepare for the timed operations. Not timed.
+     * 
+     * @throws Exception
+     *             Thrown if the benchmark cannot run.
+     */
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * Perform one timed operation.
+     * 
+     * @return Number of file data bytes the operation moved, or 0 if it does not move file data.
+     * @throws Exception
+     *             Thrown if the operation failed.
+     */
+    public abstract long run() throws Exception;
+
+    /**
+     * Clean up after the timed operations. Not timed.
+     * 
+     * @throws Exception
+     *             Thrown if cleaning up failed.
+     */
+    public void tearDown() throws Exception {
+    }
+}
@@ -0,0 +1,223 @@
+package com.box.onecloud.android.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.util.Log;
+import android.widget.TextView;
+
+import com.box.onecloud.android.LocalBoxService;
+import com.box.onecloud.android.OneCloudInterface;
+
+/**
+ * Runs the OneCloud benchmark suite and writes the results to a JSON report in the app's external files directory, for example:
+ * 
+ * <pre>
+ * adb shell am start -n com.box.onecloud.android.benchmark/.BenchmarkActivity -e mode remote -e filter read/
+ * adb pull /sdcard/Android/data/com.box.onecloud.android.benchmark/files/onecloud-benchmark-remote.json
+ * </pre>
+ * 
+ * In "local" mode (the default) the stand-in for Box runs in this process, so the numbers show the library's own overhead. In "remote" mode it runs in
+ * FakeBoxService in a separate process, so every call is a real binder transaction as it would be against the Box app. Either way a LocalBoxService is
+ * installed in this process so that handshakes succeed, which needs a debuggable build.
+ * 
+ */
+public class BenchmarkActivity extends Activity {
+
+    /** Intent extra selecting "local" or "remote" mode. */
+    public static final String EXTRA_MODE = "mode";
+
+    /** Intent extra restricting the run to benchmarks whose name contains this string. */
+    public static final String EXTRA_FILTER = "filter";
+
+    /** Mode with the stand-in in this process. */
+    public static final String MODE_LOCAL = "local";
+
+    /** Mode with the stand-in in a separate process. */
+    public static final String MODE_REMOTE = "remote";
+
+    /** Log tag. Each result is logged as it completes. */
+    private static final String TAG = "OneCloudBenchmark";
+
+    /** Version of the report format. */
+    private static final int REPORT_FORMAT = 1;
+
+    /** Results view. */
+    private TextView mResults;
+
+    /** Stand-in installed in this process, or null if it could not be created. */
+    private LocalBoxService mBox;
+
+    /** Connection to FakeBoxService in remote mode, or null. */
+    private ServiceConnection mConnection;
+
+    @Override
+    public void onCreate(final Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.benchmark);
+        mResults = (TextView) findViewById(R.id.txtResults);
+
+        final String mode = getIntent().hasExtra(EXTRA_MODE) ? getIntent().getStringExtra(EXTRA_MODE) : MODE_LOCAL;
+        final String filter = getIntent().getStringExtra(EXTRA_FILTER);
+        try {
+            mBox = OneCloudBenchmarks.createBox(new File(getCacheDir(), "onecloud-benchmark-local"));
+            mBox.install(this);
+            if (!MODE_REMOTE.equals(mode)) {
+                start(MODE_LOCAL, filter, mBox.openBinder(OneCloudBenchmarks.FILE_NAME));
+                return;
+            }
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Could not create the stand-in", e);
+            append("Could not create the stand-in: " + e);
+            return;
+        }
+
+        mConnection = new ServiceConnection() {
+
+            @Override
+            public void onServiceConnected(final ComponentName name, final IBinder service) {
+                start(MODE_REMOTE, filter, OneCloudInterface.Stub.asInterface(service));
+            }
+
+            @Override
+            public void onServiceDisconnected(final ComponentName name) {
+                append("Lost connection to FakeBoxService.");
+            }
+        };
+        Intent intent = new Intent(this, FakeBoxService.class);
+        bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mConnection != null) {
+            unbindService(mConnection);
+        }
+        if (mBox != null) {
+            mBox.shutdown();
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Run the suite on a background thread.
+     * 
+     * @param mode
+     *            MODE_LOCAL or MODE_REMOTE.
+     * @param filter
+     *            Only run benchmarks whose name contains this, or null to run all.
+     * @param binder
+     *            Stand-in for Box.
+     */
+    private void start(final String mode, final String filter, final OneCloudInterface binder) {
+        new Thread("OneCloudBenchmark") {
+
+            @Override
+            public void run() {
+                BenchmarkRunner runner = new BenchmarkRunner();
+                List<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+                for (Benchmark benchmark : OneCloudBenchmarks.create(BenchmarkActivity.this, mBox, binder)) {
+                    if (filter != null && !benchmark.getName().contains(filter)) {
+                        continue;
+                    }
+                    try {
+                        BenchmarkResult result = runner.run(benchmark);
+                        results.add(result);
+                        append(result.toString());
+                    }
+                    catch (Exception e) {
+                        Log.e(TAG, benchmark.getName() + " failed", e);
+                        append(benchmark.getName() + ": failed, " + e);
+                    }
+                }
+                try {
+                    File report = writeReport(mode, results);
+                    append("Report written to " + report);
+                }
+                catch (IOException e) {
+                    Log.e(TAG, "Could not write report", e);
+                    append("Could not write report: " + e);
+                }
+                catch (JSONException e) {
+                    Log.e(TAG, "Could not write report", e);
+                    append("Could not write report: " + e);
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Log a line and show it on screen.
+     * 
+     * @param line
+     *            Line of output.
+     */
+    private void append(final String line) {
+        Log.i(TAG, line);
+        runOnUiThread(new Runnable() {
+
+            @Override
+            public void run() {
+                mResults.append(line + "\n");
+            }
+        });
+    }
+
+    /**
+     * Write the results as a JSON report.
+     * 
+     * @param mode
+     *            MODE_LOCAL or MODE_REMOTE.
+     * @param results
+     *            Results.
+     * @return Report file.
+     * @throws IOException
+     *             Thrown if the report could not be written.
+     * @throws JSONException
+     *             Thrown if a result could not be represented.
+     */
+    private File writeReport(final String mode, final List<BenchmarkResult> results) throws IOException, JSONException {
+        JSONObject report = new JSONObject();
+        report.put("format", REPORT_FORMAT);
+        report.put("mode", mode);
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+        report.put("sdk_int", Build.VERSION.SDK_INT);
+        JSONArray array = new JSONArray();
+        for (BenchmarkResult result : results) {
+            array.put(result.toJson());
+        }
+        report.put("results", array);
+
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        File file = new File(dir, "onecloud-benchmark-" + mode + ".json");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(report.toString(2).getBytes("UTF-8"));
+        }
+        finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,147 @@
+package com.box.onecloud.android.benchmark;
+
+import java.util.Arrays;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Measured results of one benchmark: operation count, per-operation latency percentiles and throughput.
+ * 
+ */
+public class BenchmarkResult {
+
+    /** Benchmark name. */
+    private final String mName;
+
+    /** Number of timed operations. */
+    private final int mOperations;
+
+    /** Total time of the timed operations. */
+    private final long mTotalNanos;
+
+    /** Total file data bytes moved by the timed operations. */
+    private final long mBytes;
+
+    /** Operation latencies, sorted. */
+    private final long[] mSortedNanos;
+
+    /**
+     * Default constructor.
+     * 
+     * @param name
+     *            Benchmark name.
+     * @param latencies
+     *            Latency of every timed operation. Sorted in place.
+     * @param operations
+     *            Number of valid entries in latencies.
+     * @param bytes
+     *            Total file data bytes moved.
+     */
+    BenchmarkResult(final String name, final long[] latencies, final int operations, final long bytes) {
+        mName = name;
+        mOperations = operations;
+        mBytes = bytes;
+        mSortedNanos = Arrays.copyOf(latencies, operations);
+        Arrays.sort(mSortedNanos);
+        long total = 0;
+        for (long latency : mSortedNanos) {
+            total += latency;
+        }
+        mTotalNanos = total;
+    }
+
+    /**
+     * Get the benchmark name.
+     * 
+     * @return Name.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Get the number of timed operations.
+     * 
+     * @return Operation count.
+     */
+    public int getOperations() {
+        return mOperations;
+    }
+
+    /**
+     * Get the mean operation latency.
+     * 
+     * @return Mean latency in nanoseconds.
+     */
+    public long getMeanNanos() {
+        return mOperations == 0 ? 0 : mTotalNanos / mOperations;
+    }
+
+    /**
+     * Get a percentile of the operation latency.
+     * 
+     * @param percentile
+     *            Percentile between 0 and 100.
+     * @return Latency in nanoseconds.
+     */
+    public long getPercentileNanos(final double percentile) {
+        if (mOperations == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * mOperations) - 1;
+        return mSortedNanos[Math.max(0, Math.min(index, mOperations - 1))];
+    }
+
+    /**
+     * Get the operation throughput.
+     * 
+     * @return Operations per second.
+     */
+    public double getOperationsPerSecond() {
+        return mTotalNanos == 0 ? 0 : mOperations * 1e9 / mTotalNanos;
+    }
+
+    /**
+     * Get the file data throughput.
+     * 
+     * @return Bytes per second, or 0 if the benchmark does not move file data.
+     */
+    public double getBytesPerSecond() {
+        return mTotalNanos == 0 ? 0 : mBytes * 1e9 / mTotalNanos;
+    }
+
+    /**
+     * Describe the result for a machine-readable report.
+     * 
+     * @return JSON object.
+     * @throws JSONException
+     *             Thrown if a value cannot be represented.
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("name", mName);
+        json.put("operations", mOperations);
+        json.put("bytes", mBytes);
+        json.put("ops_per_second", getOperationsPerSecond());
+        json.put("bytes_per_second", getBytesPerSecond());
+        json.put("mean_ns", getMeanNanos());
+        json.put("min_ns", getPercentileNanos(0));
+        json.put("p50_ns", getPercentileNanos(50));
+        json.put("p90_ns", getPercentileNanos(90));
+        json.put("p99_ns", getPercentileNanos(99));
+        json.put("max_ns", getPercentileNanos(100));
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(mName);
+        builder.append(": ").append(mOperations).append(" ops, p50 ").append(getPercentileNanos(50) / 1000.0).append("us, p99 ")
+            .append(getPercentileNanos(99) / 1000.0).append("us");
+        if (mBytes > 0) {
+            builder.append(", ").append(Math.round(getBytesPerSecond() / (1024 * 1024))).append(" MB/s");
+        }
+        return builder.toString();
+    }
+}
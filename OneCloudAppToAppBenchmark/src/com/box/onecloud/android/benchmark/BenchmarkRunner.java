@@ -0,0 +1,136 @@
+package com.box.onecloud.android.benchmark;
+
+/**
+ * Runs benchmarks JMH style: a number of untimed warmup iterations followed by timed measurement iterations, each of which repeats the benchmark operation
+ * until a minimum time has passed. Every operation is timed on its own so that latency percentiles can be reported alongside throughput.
+ * 
+ */
+public class BenchmarkRunner {
+
+    /** Default number of warmup iterations. */
+    public static final int DEFAULT_WARMUP_ITERATIONS = 2;
+
+    /** Default number of measurement iterations. */
+    public static final int DEFAULT_MEASUREMENT_ITERATIONS = 5;
+
+    /** Default minimum duration of an iteration. */
+    public static final long DEFAULT_ITERATION_MILLIS = 500;
+
+    /** Number of warmup iterations. */
+    private final int mWarmupIterations;
+
+    /** Number of measurement iterations. */
+    private final int mMeasurementIterations;
+
+    /** Minimum duration of an iteration. */
+    private final long mIterationNanos;
+
+    /**
+     * Create a runner with the default settings.
+     */
+    public BenchmarkRunner() {
+        this(DEFAULT_WARMUP_ITERATIONS, DEFAULT_MEASUREMENT_ITERATIONS, DEFAULT_ITERATION_MILLIS);
+    }
+
+    /**
+     * Create a runner.
+     * 
+     * @param warmupIterations
+     *            Number of untimed warmup iterations.
+     * @param measurementIterations
+     *            Number of timed iterations. Must be at least 1.
+     * @param iterationMillis
+     *            Minimum duration of an iteration. Each iteration runs at least one operation.
+     */
+    public BenchmarkRunner(final int warmupIterations, final int measurementIterations, final long iterationMillis) {
+        if (measurementIterations < 1) {
+            throw new IllegalArgumentException("Measurement iterations must be at least 1: " + measurementIterations);
+        }
+        mWarmupIterations = warmupIterations;
+        mMeasurementIterations = measurementIterations;
+        mIterationNanos = iterationMillis * 1000000;
+    }
+
+    /**
+     * Run a benchmark.
+     * 
+     * @param benchmark
+     *            Benchmark.
+     * @return Results of the measurement iterations.
+     * @throws Exception
+     *             Thrown if the benchmark failed.
+     */
+    public BenchmarkResult run(final Benchmark benchmark) throws Exception {
+        benchmark.setUp();
+        try {
+            Samples samples = new Samples();
+            for (int i = 0; i < mWarmupIterations; i++) {
+                runIteration(benchmark, null);
+            }
+            for (int i = 0; i < mMeasurementIterations; i++) {
+                runIteration(benchmark, samples);
+            }
+            return new BenchmarkResult(benchmark.getName(), samples.mLatencies, samples.mCount, samples.mBytes);
+        }
+        finally {
+            benchmark.tearDown();
+        }
+    }
+
+    /**
+     * Repeat the benchmark operation until the iteration time has passed.
+     * 
+     * @param benchmark
+     *            Benchmark.
+     * @param samples
+     *            Where to record each operation, or null for a warmup iteration.
+     * @throws Exception
+     *             Thrown if the benchmark failed.
+     */
+    private void runIteration(final Benchmark benchmark, final Samples samples) throws Exception {
+        long iterationStart = System.nanoTime();
+        do {
+            long start = System.nanoTime();
+            long bytes = benchmark.run();
+            long latency = System.nanoTime() - start;
+            if (samples != null) {
+                samples.add(latency, bytes);
+            }
+        }
+        while (System.nanoTime() - iterationStart < mIterationNanos);
+    }
+
+    /**
+     * Growable record of operation latencies.
+     * 
+     */
+    private static class Samples {
+
+        /** Latency of each operation. */
+        private long[] mLatencies = new long[1024];
+
+        /** Number of recorded operations. */
+        private int mCount;
+
+        /** Total file data bytes moved. */
+        private long mBytes;
+
+        /**
+         * Record an operation.
+         * 
+         * @param latency
+         *            Operation latency.
+         * @param bytes
+         *            File data bytes moved.
+         */
+        public void add(final long latency, final long bytes) {
+            if (mCount == mLatencies.length) {
+                long[] grown = new long[mCount * 2];
+                System.arraycopy(mLatencies, 0, grown, 0, mCount);
+                mLatencies = grown;
+            }
+            mLatencies[mCount++] = latency;
+            mBytes += bytes;
+        }
+    }
+}
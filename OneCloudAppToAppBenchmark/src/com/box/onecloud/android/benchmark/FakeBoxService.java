@@ -0,0 +1,50 @@
+package com.box.onecloud.android.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+import android.util.Log;
+
+import com.box.onecloud.android.LocalBoxService;
+
+/**
+ * Hosts a LocalBoxService transaction in a separate process, so that benchmarks against it pay for real cross-process binder transactions as they would
+ * against the Box app.
+ * 
+ */
+public class FakeBoxService extends Service {
+
+    /** Log tag. */
+    private static final String TAG = "OneCloudBenchmark";
+
+    /** Stand-in for Box, or null if it could not be created. */
+    private LocalBoxService mBox;
+
+    /** Transaction on the benchmark file. */
+    private IBinder mBinder;
+
+    @Override
+    public synchronized IBinder onBind(final Intent intent) {
+        if (mBinder == null) {
+            try {
+                mBox = OneCloudBenchmarks.createBox(new File(getCacheDir(), "onecloud-benchmark-remote"));
+                mBinder = mBox.openBinder(OneCloudBenchmarks.FILE_NAME).asBinder();
+            }
+            catch (IOException e) {
+                Log.e(TAG, "Could not create the stand-in", e);
+            }
+        }
+        return mBinder;
+    }
+
+    @Override
+    public synchronized void onDestroy() {
+        if (mBox != null) {
+            mBox.shutdown();
+        }
+        super.onDestroy();
+    }
+}
@@ -0,0 +1,668 @@
+package com.box.onecloud.android.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+
+import com.box.onecloud.android.HandshakeCallback;
+import com.box.onecloud.android.LocalBoxService;
+import com.box.onecloud.android.OneCloudBlockCache;
+import com.box.onecloud.android.OneCloudData;
+import com.box.onecloud.android.OneCloudData.Transformer;
+import com.box.onecloud.android.OneCloudInterface;
+import com.box.onecloud.android.OneCloudSeekableChannel;
+import com.box.onecloud.android.OneCloudStagingFile;
+
+/**
+ * The OneCloud benchmark suite. Every benchmark talks to a LocalBoxService transaction through the same OneCloudData code paths apps use, including the
+ * handshake, so the numbers reflect the library's own overhead plus the binder transactions it makes.
+ * 
+ */
+public final class OneCloudBenchmarks {
+
+    /** Size of the file data the stand-in serves. */
+    public static final int FILE_SIZE = 4 * 1024 * 1024;
+
+    /** Name of the file the benchmarks work on, in the stand-in's root directory. */
+    public static final String FILE_NAME = "benchmark.bin";
+
+    /** Number of bytes read one binder transaction at a time by the unbuffered byte-at-a-time benchmark. */
+    private static final int UNBUFFERED_BYTES = 16 * 1024;
+
+    /** Box app version that supports every binder method. */
+    private static final int VERSION_CURRENT = 22000;
+
+    /** Box app version from before length-bounded reads, channels and the metadata snapshot. */
+    private static final int VERSION_LEGACY = 19000;
+
+    /** Chunk sizes the stream benchmarks are run with. */
+    private static final int[] CHUNK_SIZES = { 4 * 1024, OneCloudData.DEFAULT_CHUNK_SIZE, OneCloudData.MAX_CHUNK_SIZE };
+
+    /** Number of threads the parallel read session benchmark reads with. */
+    private static final int READ_SESSIONS = 4;
+
+    /** App-side buffer sizes the stream benchmarks are run with. */
+    private static final int[] BUFFER_SIZES = { 1024, 64 * 1024 };
+
+    /**
+     * Not instantiable.
+     */
+    private OneCloudBenchmarks() {
+    }
+
+    /**
+     * Create a stand-in for Box whose root directory holds FILE_SIZE bytes of file data named FILE_NAME.
+     * 
+     * @param root
+     *            Root directory of the stand-in.
+     * @return Stand-in, not yet installed.
+     * @throws IOException
+     *             Thrown if the file could not be written.
+     */
+    public static LocalBoxService createBox(final File root) throws IOException {
+        LocalBoxService box = new LocalBoxService(root, 0);
+        File file = new File(root, FILE_NAME);
+        if (file.length() != FILE_SIZE) {
+            byte[] buffer = new byte[64 * 1024];
+            for (int i = 0; i < buffer.length; i++) {
+                buffer[i] = (byte) i;
+            }
+            OutputStream out = new FileOutputStream(file);
+            try {
+                fill(out, buffer);
+            }
+            finally {
+                out.close();
+            }
+        }
+        return box;
+    }
+
+    /**
+     * Create the suite.
+     * 
+     * @param context
+     *            Context handshakes are verified in.
+     * @param box
+     *            Stand-in installed in this process. Its version code is changed to match the Box app version each benchmark behaves as.
+     * @param binder
+     *            Transaction on a file of FILE_SIZE bytes, served by the installed stand-in or by one in another process of this app.
+     * @return Benchmarks, in the order they should run.
+     */
+    public static List<Benchmark> create(final Context context, final LocalBoxService box, final OneCloudInterface binder) {
+        final StandIn standIn = new StandIn(context, box, binder);
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        // Reads come first; the write benchmarks replace the file data, although always with data of the same size.
+        for (int chunkSize : CHUNK_SIZES) {
+            for (int bufferSize : BUFFER_SIZES) {
+                benchmarks.add(new StreamRead("read/stream/chunk=" + chunkSize + "/buffer=" + bufferSize, standIn, VERSION_CURRENT, chunkSize, false,
+                    bufferSize));
+            }
+        }
+        benchmarks.add(new StreamRead("read/stream/prefetch/chunk=65536/buffer=65536", standIn, VERSION_CURRENT, OneCloudData.DEFAULT_CHUNK_SIZE, true,
+            64 * 1024));
+        benchmarks.add(new StreamRead("read/stream/legacy/chunk=65536/buffer=65536", standIn, VERSION_LEGACY, OneCloudData.DEFAULT_CHUNK_SIZE, false,
+            64 * 1024));
+        benchmarks.add(new StreamRead("read/byte-at-a-time/buffered", standIn, VERSION_CURRENT, OneCloudData.DEFAULT_CHUNK_SIZE, false, 1));
+        benchmarks.add(new Benchmark("read/byte-at-a-time/unbuffered") {
+
+            @Override
+            public long run() throws RemoteException {
+                for (int i = 0; i < UNBUFFERED_BYTES; i++) {
+                    binder.iReadOne();
+                }
+                binder.iClose();
+                return UNBUFFERED_BYTES;
+            }
+        });
+        benchmarks.add(new Benchmark("read/channel") {
+
+            private OneCloudData mOneCloudData;
+
+            private final byte[] mBuffer = new byte[64 * 1024];
+
+            @Override
+            public void setUp() {
+                mOneCloudData = standIn.open(VERSION_CURRENT);
+            }
+
+            @Override
+            public long run() throws IOException {
+                InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(mOneCloudData.openReadChannel());
+                try {
+                    return drain(in, mBuffer);
+                }
+                finally {
+                    in.close();
+                }
+            }
+        });
+
+        benchmarks.add(new Benchmark("read/seekable/tail=65536") {
+
+            private OneCloudData mOneCloudData;
+
+            private final ByteBuffer mBuffer = ByteBuffer.allocate(64 * 1024);
+
+            @Override
+            public void setUp() {
+                mOneCloudData = standIn.open(VERSION_CURRENT);
+            }
+
+            @Override
+            public long run() throws Exception {
+                // Open and read the last 64KB, as a viewer looking for a ZIP central directory would.
+                OneCloudSeekableChannel channel = mOneCloudData.openSeekableChannel();
+                try {
+                    channel.position(channel.size() - mBuffer.capacity());
+                    mBuffer.clear();
+                    long bytes = 0;
+                    int read;
+                    while (mBuffer.hasRemaining() && (read = channel.read(mBuffer)) != -1) {
+                        bytes += read;
+                    }
+                    return bytes;
+                }
+                finally {
+                    channel.close();
+                }
+            }
+        });
+
+        benchmarks.add(new Benchmark("read/sessions/parallel=" + READ_SESSIONS) {
+
+            private OneCloudData mOneCloudData;
+
+            @Override
+            public void setUp() {
+                mOneCloudData = standIn.open(VERSION_CURRENT);
+            }
+
+            @Override
+            public long run() throws Exception {
+                // Each thread reads its own slice of the file through a session of its own, as a thumbnailer and an indexer would.
+                final int slice = FILE_SIZE / READ_SESSIONS;
+                final Exception[] errors = new Exception[READ_SESSIONS];
+                Thread[] readers = new Thread[READ_SESSIONS];
+                for (int i = 0; i < READ_SESSIONS; i++) {
+                    final int index = i;
+                    readers[i] = new Thread() {
+
+                        @Override
+                        public void run() {
+                            try {
+                                InputStream in = mOneCloudData.openReadSession();
+                                try {
+                                    in.skip((long) index * slice);
+                                    byte[] buffer = new byte[OneCloudData.DEFAULT_CHUNK_SIZE];
+                                    int remaining = slice;
+                                    int read;
+                                    while (remaining > 0 && (read = in.read(buffer, 0, Math.min(buffer.length, remaining))) != -1) {
+                                        remaining -= read;
+                                    }
+                                }
+                                finally {
+                                    in.close();
+                                }
+                            }
+                            catch (Exception e) {
+                                errors[index] = e;
+                            }
+                        }
+                    };
+                    readers[i].start();
+                }
+                for (Thread reader : readers) {
+                    reader.join();
+                }
+                for (Exception error : errors) {
+                    if (error != null) {
+                        throw error;
+                    }
+                }
+                return (long) slice * READ_SESSIONS;
+            }
+        });
+
+        benchmarks.add(new Benchmark("read/stream/block-cache-hit") {
+
+            private OneCloudData mOneCloudData;
+
+            private OneCloudBlockCache mCache;
+
+            private final byte[] mBuffer = new byte[64 * 1024];
+
+            @Override
+            public void setUp() {
+                // The warmup iterations fill the cache; the timed ones read it back, as reopening an unchanged file would.
+                mCache = new OneCloudBlockCache(new File(System.getProperty("java.io.tmpdir"), "onecloud-benchmark-blocks"), 2L * FILE_SIZE);
+                mCache.clear();
+                mOneCloudData = standIn.open(VERSION_CURRENT);
+                mOneCloudData.setBlockCache(mCache);
+            }
+
+            @Override
+            public long run() throws IOException {
+                InputStream in = mOneCloudData.getInputStream();
+                try {
+                    return drain(in, mBuffer);
+                }
+                finally {
+                    in.close();
+                }
+            }
+
+            @Override
+            public void tearDown() {
+                mCache.clear();
+            }
+        });
+
+        for (int chunkSize : CHUNK_SIZES) {
+            for (int bufferSize : BUFFER_SIZES) {
+                benchmarks.add(new StreamWrite("write/stream/chunk=" + chunkSize + "/buffer=" + bufferSize, standIn, chunkSize, bufferSize));
+            }
+        }
+        benchmarks.add(new StreamWrite("write/byte-at-a-time/buffered", standIn, OneCloudData.DEFAULT_CHUNK_SIZE, 1));
+        benchmarks.add(new Benchmark("write/channel") {
+
+            private OneCloudData mOneCloudData;
+
+            private final byte[] mBuffer = new byte[64 * 1024];
+
+            @Override
+            public void setUp() {
+                mOneCloudData = standIn.open(VERSION_CURRENT);
+            }
+
+            @Override
+            public long run() throws IOException {
+                // Timed until this side has closed the channel; the stand-in may still be draining the pipe.
+                OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(mOneCloudData.openWriteChannel());
+                try {
+                    return fill(out, mBuffer);
+                }
+                finally {
+                    out.close();
+                }
+            }
+        });
+        benchmarks.add(new Benchmark("write/staging-file") {
+
+            private OneCloudData mOneCloudData;
+
+            private final byte[] mBuffer = new byte[64 * 1024];
+
+            @Override
+            public void setUp() {
+                mOneCloudData = standIn.open(VERSION_CURRENT);
+            }
+
+            @Override
+            public long run() throws IOException {
+                OneCloudStagingFile staging = mOneCloudData.createStagingFile(new File(System.getProperty("java.io.tmpdir")), FILE_SIZE);
+                try {
+                    ByteBuffer buffer = staging.getBuffer();
+                    while (buffer.hasRemaining()) {
+                        buffer.put(mBuffer, 0, Math.min(mBuffer.length, buffer.remaining()));
+                    }
+                    staging.commit(FILE_SIZE);
+                    return FILE_SIZE;
+                }
+                finally {
+                    staging.close();
+                }
+            }
+        });
+        benchmarks.add(new Benchmark("transform/identity") {
+
+            private OneCloudData mOneCloudData;
+
+            @Override
+            public void setUp() {
+                mOneCloudData = standIn.open(VERSION_CURRENT);
+            }
+
+            @Override
+            public long run() throws IOException {
+                return mOneCloudData.transform(new Transformer() {
+
+                    @Override
+                    public OutputStream wrap(final OutputStream out) {
+                        return out;
+                    }
+                });
+            }
+        });
+
+        benchmarks.add(new Benchmark("metadata/cached") {
+
+            private OneCloudData mOneCloudData;
+
+            @Override
+            public void setUp() {
+                mOneCloudData = standIn.open(VERSION_CURRENT);
+                mOneCloudData.getMetadata();
+            }
+
+            @Override
+            public long run() {
+                mOneCloudData.getFileName();
+                return 0;
+            }
+        });
+        benchmarks.add(new MetadataRefresh("metadata/refresh", standIn, VERSION_CURRENT));
+        benchmarks.add(new MetadataRefresh("metadata/refresh/legacy", standIn, VERSION_LEGACY));
+
+        benchmarks.add(new Benchmark("handshake/round-trip") {
+
+            private final HandshakeCallback.Stub mCallback = new HandshakeCallback.Stub() {
+
+                @Override
+                public void onShake() {
+                }
+            };
+
+            @Override
+            public long run() throws RemoteException {
+                binder.sendHandshake(mCallback);
+                return 0;
+            }
+        });
+        benchmarks.add(new Benchmark("restore/parcel") {
+
+            private OneCloudData mOneCloudData;
+
+            @Override
+            public void setUp() {
+                mOneCloudData = standIn.open(VERSION_CURRENT);
+            }
+
+            @Override
+            public long run() {
+                Parcel parcel = Parcel.obtain();
+                try {
+                    mOneCloudData.writeToParcel(parcel, 0);
+                    parcel.setDataPosition(0);
+                    OneCloudData.CREATOR.createFromParcel(parcel);
+                }
+                finally {
+                    parcel.recycle();
+                }
+                return 0;
+            }
+        });
+        return benchmarks;
+    }
+
+    /**
+     * Read a stream to the end.
+     * 
+     * @param in
+     *            Stream.
+     * @param buffer
+     *            Buffer to read into. A buffer of length 1 reads one byte at a time through read().
+     * @return Number of bytes read.
+     * @throws IOException
+     *             Thrown if the stream could not be read.
+     */
+    static long drain(final InputStream in, final byte[] buffer) throws IOException {
+        long total = 0;
+        if (buffer.length == 1) {
+            while (in.read() != -1) {
+                total++;
+            }
+            return total;
+        }
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            total += len;
+        }
+        return total;
+    }
+
+    /**
+     * Write FILE_SIZE bytes to a stream.
+     * 
+     * @param out
+     *            Stream.
+     * @param buffer
+     *            Buffer to write from. A buffer of length 1 writes one byte at a time through write(int).
+     * @return Number of bytes written.
+     * @throws IOException
+     *             Thrown if the stream could not be written.
+     */
+    static long fill(final OutputStream out, final byte[] buffer) throws IOException {
+        if (buffer.length == 1) {
+            for (int i = 0; i < FILE_SIZE; i++) {
+                out.write(i);
+            }
+            return FILE_SIZE;
+        }
+        for (int written = 0; written < FILE_SIZE; written += buffer.length) {
+            out.write(buffer, 0, Math.min(buffer.length, FILE_SIZE - written));
+        }
+        return FILE_SIZE;
+    }
+
+    /**
+     * Reads the whole file through OneCloudData.getInputStream().
+     * 
+     */
+    private static class StreamRead extends Benchmark {
+
+        /** Stand-in for Box. */
+        private final StandIn mStandIn;
+
+        /** Box app version to behave as. */
+        private final int mVersionCode;
+
+        /** Chunk size of the stream. */
+        private final int mChunkSize;
+
+        /** Whether the stream prefetches. */
+        private final boolean mPrefetch;
+
+        /** App-side buffer. */
+        private final byte[] mBuffer;
+
+        /** Transaction under test. */
+        private OneCloudData mOneCloudData;
+
+        /**
+         * Default constructor.
+         * 
+         * @param name
+         *            Benchmark name.
+         * @param standIn
+         *            Stand-in for Box.
+         * @param versionCode
+         *            Box app version to behave as.
+         * @param chunkSize
+         *            Chunk size of the stream.
+         * @param prefetch
+         *            Whether the stream prefetches.
+         * @param bufferSize
+         *            App-side buffer size. 1 reads one byte at a time.
+         */
+        public StreamRead(final String name, final StandIn standIn, final int versionCode, final int chunkSize, final boolean prefetch,
+            final int bufferSize) {
+            super(name);
+            mStandIn = standIn;
+            mVersionCode = versionCode;
+            mChunkSize = chunkSize;
+            mPrefetch = prefetch;
+            mBuffer = new byte[bufferSize];
+        }
+
+        @Override
+        public void setUp() {
+            mOneCloudData = mStandIn.open(mVersionCode);
+        }
+
+        @Override
+        public long run() throws IOException {
+            InputStream in = mOneCloudData.getInputStream(mChunkSize, mPrefetch);
+            try {
+                return drain(in, mBuffer);
+            }
+            finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Writes FILE_SIZE bytes through OneCloudData.getOutputStream().
+     * 
+     */
+    private static class StreamWrite extends Benchmark {
+
+        /** Stand-in for Box. */
+        private final StandIn mStandIn;
+
+        /** Chunk size of the stream. */
+        private final int mChunkSize;
+
+        /** App-side buffer. */
+        private final byte[] mBuffer;
+
+        /** Transaction under test. */
+        private OneCloudData mOneCloudData;
+
+        /**
+         * Default constructor.
+         * 
+         * @param name
+         *            Benchmark name.
+         * @param standIn
+         *            Stand-in for Box.
+         * @param chunkSize
+         *            Chunk size of the stream.
+         * @param bufferSize
+         *            App-side buffer size. 1 writes one byte at a time.
+         */
+        public StreamWrite(final String name, final StandIn standIn, final int chunkSize, final int bufferSize) {
+            super(name);
+            mStandIn = standIn;
+            mChunkSize = chunkSize;
+            mBuffer = new byte[bufferSize];
+        }
+
+        @Override
+        public void setUp() {
+            mOneCloudData = mStandIn.open(VERSION_CURRENT);
+        }
+
+        @Override
+        public long run() throws IOException {
+            OutputStream out = mOneCloudData.getOutputStream(mChunkSize, 4);
+            try {
+                return fill(out, mBuffer);
+            }
+            finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Fetches a fresh metadata snapshot.
+     * 
+     */
+    private static class MetadataRefresh extends Benchmark {
+
+        /** Stand-in for Box. */
+        private final StandIn mStandIn;
+
+        /** Box app version to behave as. */
+        private final int mVersionCode;
+
+        /** Transaction under test. */
+        private OneCloudData mOneCloudData;
+
+        /**
+         * Default constructor.
+         * 
+         * @param name
+         *            Benchmark name.
+         * @param standIn
+         *            Stand-in for Box.
+         * @param versionCode
+         *            Box app version to behave as. Before 2.0.0 the snapshot takes one transaction per field.
+         */
+        public MetadataRefresh(final String name, final StandIn standIn, final int versionCode) {
+            super(name);
+            mStandIn = standIn;
+            mVersionCode = versionCode;
+        }
+
+        @Override
+        public void setUp() {
+            mOneCloudData = mStandIn.open(mVersionCode);
+        }
+
+        @Override
+        public long run() {
+            mOneCloudData.refreshMetadata();
+            return 0;
+        }
+    }
+
+    /**
+     * Transaction with the stand-in for Box, opened by each benchmark as a OneCloudData of its own.
+     * 
+     */
+    private static class StandIn {
+
+        /** Context handshakes are verified in. */
+        private final Context mContext;
+
+        /** Stand-in installed in this process. */
+        private final LocalBoxService mBox;
+
+        /** Transaction. */
+        private final OneCloudInterface mBinder;
+
+        /**
+         * Default constructor.
+         * 
+         * @param context
+         *            Context handshakes are verified in.
+         * @param box
+         *            Stand-in installed in this process.
+         * @param binder
+         *            Transaction.
+         */
+        public StandIn(final Context context, final LocalBoxService box, final OneCloudInterface binder) {
+            mContext = context;
+            mBox = box;
+            mBinder = binder;
+        }
+
+        /**
+         * Wrap the transaction in a OneCloudData and complete a handshake, as a receiver does with the object Box sends it.
+         * 
+         * @param versionCode
+         *            Box app version to behave as, which decides which binder methods OneCloudData uses.
+         * @return Verified OneCloudData.
+         */
+        public OneCloudData open(final int versionCode) {
+            mBox.setVersionCode(versionCode);
+            OneCloudData oneCloudData = new OneCloudData(mBinder);
+            oneCloudData.sendHandshake(mContext);
+            return oneCloudData;
+        }
+    }
+}
@@ -1,8 +1,6 @@
 package com.box.onecloud.android.sample;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -11,6 +9,7 @@ import android.app.Activity;
 import android.app.ProgressDialog;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.util.Log;
@@ -21,7 +20,9 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.box.onecloud.android.OneCloudData;
+import com.box.onecloud.android.OneCloudData.Transformer;
 import com.box.onecloud.android.OneCloudData.UploadListener;
+import com.box.onecloud.android.UploadProgressDispatcher;
 
 public class ZipActivity extends Activity {
 
@@ -75,25 +76,20 @@ public class ZipActivity extends Activity {
             public void run() {
                 try {
 
-                    // We can get input and output streams to read/write data.
-                    final OutputStream boxOutputStream = ocd.getOutputStream();
-                    final InputStream boxInputStream = ocd.getInputStream();
-
-                    // In this example, we take a file from Box and zip it up.
-                    ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(boxOutputStream)); // Notice how we are ultimately writing to the output
-                                                                                                          // stream from the OneCloud object.
-                    ZipEntry entry = new ZipEntry(ocd.getFileName());
-                    zos.putNextEntry(entry);
-                    int len = 0;
-                    byte[] buffer = new byte[40960];
-                    while ((len = boxInputStream.read(buffer)) != -1) {
-                        zos.write(buffer, 0, len);
-                    }
-                    zos.closeEntry();
-
-                    // You MUST close the OutputStream before attempting to upload back to Box. One way or another, the boxOutputStream must have its close()
-                    // method called. In this case, calling close() on the ZipOutputStream will cascade down to the boxOutputStream.
-                    zos.close();
+                    // In this example, we take a file from Box and zip it up. transform() reads the data from Box, passes it through our transformer and
+                    // writes the result back to Box, with reading, zipping and writing each on their own thread.
+                    ocd.transform(new Transformer() {
+
+                        @Override
+                        public OutputStream wrap(OutputStream out) throws IOException {
+                            // Everything written to the returned stream is zipped into out, which ultimately writes to the OneCloud object.
+                            ZipOutputStream zos = new ZipOutputStream(out);
+                            zos.putNextEntry(new ZipEntry(ocd.getFileName()));
+                            return zos;
+                        }
+                    });
+
+                    // Once transform() has returned, the zipped data has reached Box and is ready to be uploaded.
 
                     // Set up a new file name that we want this file to have in Box.
                     final String newFileName = ocd.getFileName() + " " + SystemClock.uptimeMillis() + ".zip";
@@ -109,30 +105,19 @@ public class ZipActivity extends Activity {
 
                         @Override
                         public void onComplete() {
-                            handler.post(new Runnable() {
-
-                                @Override
-                                public void run() {
-                                    Toast.makeText(getApplicationContext(), "Uploaded zip file to Box: " + newFileName, Toast.LENGTH_LONG).show();
-                                }
-                            });
+                            Toast.makeText(getApplicationContext(), "Uploaded zip file to Box: " + newFileName, Toast.LENGTH_LONG).show();
                         }
 
                         @Override
                         public void onError() {
-                            handler.post(new Runnable() {
-
-                                @Override
-                                public void run() {
-                                    Toast.makeText(getApplicationContext(), "Failed to upload zip file to Box: " + newFileName, Toast.LENGTH_LONG).show();
-                                }
-                            });
+                            Toast.makeText(getApplicationContext(), "Failed to upload zip file to Box: " + newFileName, Toast.LENGTH_LONG).show();
                         }
 
                     };
 
-                    // Upload this zipped data as a new file on box.
-                    ocd.uploadNewFile(newFileName, listener);
+                    // Upload this zipped data as a new file on box. Box reports progress very often, so we let an UploadProgressDispatcher throttle the
+                    // updates and call our listener on the main thread.
+                    ocd.uploadNewFile(newFileName, new UploadProgressDispatcher(listener, Looper.getMainLooper()));
 
                     handler.post(new Runnable() {
 